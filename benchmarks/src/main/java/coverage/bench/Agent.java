@@ -0,0 +1,59 @@
+package coverage.bench;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Access to the agent classes.<br>
+ * The agent lives in the unnamed package, which can not be imported: its transformer is created reflectively.
+ * @author kt27
+ */
+public final class Agent {
+    private Agent() {
+    }
+
+    /**
+     * the instrumentation of the agent without its class selection and without reuse of classes seen before
+     */
+    public interface Instrumenter {
+        /**
+         * @param   className   internal class name
+         * @param   classId the content hash of the class file, any value for a benchmark
+         * @return  the instrumented class file
+         */
+        byte[] instrument(String className, long classId, byte[] classfile) throws Throwable;
+    }
+
+    /**
+     * @param   agentArgs   the same argument string as given to -javaagent
+     * @return  a new coverage transformer
+     */
+    public static ClassFileTransformer newTransformer(String agentArgs) {
+        try {
+            return (ClassFileTransformer) Class.forName("mainDriver").getConstructor(String.class).newInstance(agentArgs);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("coverage agent classes are not on the class path", e);
+        }
+    }
+
+    /**
+     * @param   agentArgs   the same argument string as given to -javaagent, for the instrumentation options
+     * @return  the instrumentation the transformer applies to a class it selects and has not seen yet
+     */
+    public static Instrumenter newInstrumenter(String agentArgs) {
+        try {
+            Class<?> options = Class.forName("AgentOptions");
+            Class<?> instrumented = Class.forName("InstrumentedClass");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodHandle instrument = lookup.findStatic(Class.forName("mainDriver"), "instrumentClass",
+                    MethodType.methodType(instrumented, String.class, long.class, byte[].class, options, boolean[].class));
+            instrument = MethodHandles.insertArguments(instrument, 3, options.getMethod("parse", String.class).invoke(null, agentArgs), null);
+            MethodHandle classfile = MethodHandles.filterReturnValue(instrument, lookup.findGetter(instrumented, "classfile", byte[].class));
+            return (className, classId, bytes) -> (byte[]) classfile.invokeExact(className, classId, bytes);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("coverage agent classes are not on the class path", e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package coverage.bench;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A corpus of real class files used as transformation input.<br>
+ * asm: the ASM classes on the class path, jdk: java.base classes of the running JDK.<br>
+ * Classes the bundled ASM version can not parse are left out.
+ * @author kt27
+ */
+public class ClassCorpus {
+    public final List<String> names = new ArrayList<>();
+    public final List<byte[]> classes = new ArrayList<>();
+
+    public static ClassCorpus load(String corpus) {
+        ClassCorpus result = new ClassCorpus();
+        try {
+            switch (corpus) {
+                case "asm" -> result.addCodeSource(ClassReader.class, "org/objectweb/asm/");
+                case "jdk" -> result.addJdk("java.base", "java/util/");
+                default -> throw new IllegalArgumentException("unknown corpus: " + corpus);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (result.classes.isEmpty())
+            throw new IllegalStateException("empty corpus: " + corpus + ", is the class file version supported by the bundled ASM?");
+        return result;
+    }
+
+    /**
+     * @return  the include pattern of the agent selecting the classes of the corpus
+     */
+    public static String includes(String corpus) {
+        return switch (corpus) {
+            case "asm" -> "org.objectweb.asm.**";
+            case "jdk" -> "java.util.**";
+            default -> throw new IllegalArgumentException("unknown corpus: " + corpus);
+        };
+    }
+
+    public int size() {
+        return classes.size();
+    }
+
+    private void addCodeSource(Class<?> anchor, String prefix) throws IOException {
+        Path location;
+        try {
+            location = Path.of(anchor.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (Files.isDirectory(location)) {
+            try (Stream<Path> files = Files.walk(location.resolve(prefix))) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    add(location.relativize(file).toString().replace('\\', '/'), file);
+                }
+            }
+        } else {
+            try (ZipFile zip = new ZipFile(location.toFile())) {
+                for (ZipEntry entry : Collections.list(zip.entries())) {
+                    if (entry.getName().startsWith(prefix)) {
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            add(entry.getName(), in.readAllBytes());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void addJdk(String module, String prefix) throws IOException {
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        Path root = jrt.getPath("/modules", module);
+        try (Stream<Path> files = Files.walk(root.resolve(prefix))) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                add(root.relativize(file).toString(), file);
+            }
+        }
+    }
+
+    private void add(String entryName, Path file) throws IOException {
+        if (entryName.endsWith(".class"))
+            add(entryName, Files.readAllBytes(file));
+    }
+
+    private void add(String entryName, byte[] bytes) {
+        if (!entryName.endsWith(".class") || entryName.endsWith("module-info.class"))
+            return;
+        try {
+            new ClassReader(bytes);
+        } catch (IllegalArgumentException e) {
+            return; // class file version not supported by ASM
+        }
+        names.add(entryName.substring(0, entryName.length() - ".class".length()));
+        classes.add(bytes);
+    }
+}
@@ -0,0 +1,55 @@
+package coverage.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+
+/**
+ * Child-first class loader for the classes of one package.<br>
+ * Each class is defined from its original bytes, optionally passed through a coverage transformer first,
+ * so the same workload can be run instrumented and uninstrumented side by side.
+ * @author kt27
+ */
+public class InstrumentingClassLoader extends ClassLoader {
+    private final String packagePrefix;
+    private final ClassFileTransformer transformer;
+
+    /**
+     * @param   packagePrefix   binary name prefix of the classes defined by this loader
+     * @param   transformer the transformer to apply, null to define the classes unchanged
+     */
+    public InstrumentingClassLoader(String packagePrefix, ClassFileTransformer transformer) {
+        super(InstrumentingClassLoader.class.getClassLoader());
+        this.packagePrefix = packagePrefix;
+        this.transformer = transformer;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!name.startsWith(packagePrefix))
+            return super.loadClass(name, resolve);
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> c = findLoadedClass(name);
+            if (c == null)
+                c = define(name);
+            if (resolve)
+                resolveClass(c);
+            return c;
+        }
+    }
+
+    private Class<?> define(String name) throws ClassNotFoundException {
+        String internalName = name.replace('.', '/');
+        try (InputStream in = getParent().getResourceAsStream(internalName + ".class")) {
+            if (in == null)
+                throw new ClassNotFoundException(name);
+            byte[] bytes = in.readAllBytes();
+            if (transformer != null)
+                bytes = transformer.transform(this, internalName, null, null, bytes);
+            return defineClass(name, bytes, 0, bytes.length);
+        } catch (IOException | IllegalClassFormatException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+}
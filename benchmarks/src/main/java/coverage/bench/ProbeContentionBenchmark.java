@@ -0,0 +1,57 @@
+package coverage.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steady-state cost of recording at 1, 4 and all available threads.<br>
+ * All threads run the same instrumented methods, so they hit the same probes of the same class,
+ * in counting mode the same counters (spread over the counter stripes).
+ * @author kt27
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeContentionBenchmark {
+
+    @Param({"plain", "instrumented", "counting"})
+    public String mode;
+
+    @Param({"1000"})
+    public int size;
+
+    private Workload workload;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        workload = WorkloadBenchmark.load(mode);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long branchy1() {
+        return workload.branchy(size);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long branchy4() {
+        return workload.branchy(size);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long branchyMax() {
+        return workload.branchy(size);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long callChainMax() {
+        return workload.callChain(size / 10);
+    }
+}
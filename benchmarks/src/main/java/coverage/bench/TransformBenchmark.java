@@ -0,0 +1,64 @@
+package coverage.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the agent on a corpus of real class files.<br>
+ * Every invocation handles the next class of the corpus, the score is the average time per class,
+ * for each instrumentation mode of the agent. instrument: a class seen for the first time, transform: the
+ * ClassFileTransformer on classes it has registered before (from the first pass over the corpus on), which reuses
+ * their instrumentation. The classes are defined by a benchmark loader and selected by an explicit include.
+ * @author kt27
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark {
+
+    @Param({"asm", "jdk"})
+    public String corpus;
+
+    @Param({"coverage", "count", "method"})
+    public String mode;
+
+    private ClassCorpus classes;
+    private ClassFileTransformer transformer;
+    private Agent.Instrumenter instrumenter;
+    private final ClassLoader loader = new ClassLoader(TransformBenchmark.class.getClassLoader()) {
+    };
+    private int next;
+
+    @Setup
+    public void setup() {
+        classes = ClassCorpus.load(corpus);
+        // every class of the corpus, generated ones included
+        String agentArgs = "includes=" + ClassCorpus.includes(corpus) + ",excludegenerated=false,mode=" + mode;
+        transformer = Agent.newTransformer(agentArgs);
+        instrumenter = Agent.newInstrumenter(agentArgs);
+    }
+
+    @Benchmark
+    public byte[] instrument() throws Throwable {
+        int i = next();
+        return instrumenter.instrument(classes.names.get(i), i, classes.classes.get(i));
+    }
+
+    @Benchmark
+    public byte[] transform() throws IllegalClassFormatException {
+        int i = next();
+        return transformer.transform(loader, classes.names.get(i), null, null, classes.classes.get(i));
+    }
+
+    private int next() {
+        int i = next;
+        next = i + 1 == classes.size() ? 0 : i + 1;
+        return i;
+    }
+}
@@ -0,0 +1,23 @@
+package coverage.bench;
+
+/**
+ * Representative application code, implemented in the workload package
+ * so it can be loaded both instrumented and uninstrumented.
+ * @author kt27
+ */
+public interface Workload {
+    /**
+     * straight-line arithmetic in a counted loop: one probe per line
+     */
+    long tightLoop(int n);
+
+    /**
+     * data dependent conditions and a switch in a loop: many branch probes
+     */
+    long branchy(int n);
+
+    /**
+     * a chain of small methods: the probe array fetch at every method entry
+     */
+    long callChain(int depth);
+}
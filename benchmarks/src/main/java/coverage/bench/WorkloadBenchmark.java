@@ -0,0 +1,58 @@
+package coverage.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end slowdown of representative workloads: the same classes loaded uninstrumented (plain),
+ * through the coverage transformer (instrumented) and through the transformer in counting mode (counting).
+ * @author kt27
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkloadBenchmark {
+
+    @Param({"plain", "instrumented", "counting"})
+    public String mode;
+
+    @Param({"1000"})
+    public int size;
+
+    Workload workload;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        workload = load(mode);
+    }
+
+    static Workload load(String mode) throws ReflectiveOperationException {
+        String workloadPackage = "coverage.bench.workload.";
+        String agentArgs = "includes=" + workloadPackage + "**";
+        InstrumentingClassLoader loader = new InstrumentingClassLoader(workloadPackage, switch (mode) {
+            case "instrumented" -> Agent.newTransformer(agentArgs);
+            case "counting" -> Agent.newTransformer(agentArgs + ",mode=count");
+            default -> null;
+        });
+        return (Workload) loader.loadClass(workloadPackage + "Workloads").getDeclaredConstructor().newInstance();
+    }
+
+    @Benchmark
+    public long tightLoop() {
+        return workload.tightLoop(size);
+    }
+
+    @Benchmark
+    public long branchy() {
+        return workload.branchy(size);
+    }
+
+    @Benchmark
+    public long callChain() {
+        return workload.callChain(size / 10);
+    }
+}
@@ -0,0 +1,55 @@
+package coverage.bench.workload;
+
+import coverage.bench.Workload;
+
+/**
+ * @author kt27
+ */
+public class Workloads implements Workload {
+
+    @Override
+    public long tightLoop(int n) {
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += i;
+            sum ^= sum >>> 3;
+        }
+        return sum;
+    }
+
+    @Override
+    public long branchy(int n) {
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            if ((i & 1) == 0)
+                sum += i;
+            else if (i % 3 == 0)
+                sum -= i;
+            else
+                sum ^= i;
+            switch (i & 3) {
+                case 0:
+                    sum++;
+                    break;
+                case 1:
+                    sum--;
+                    break;
+                default:
+                    sum <<= 1;
+            }
+            if (sum > 1_000_000)
+                sum = 0;
+        }
+        return sum;
+    }
+
+    @Override
+    public long callChain(int depth) {
+        return depth == 0 ? 1 : step(depth);
+    }
+
+    private long step(int depth) {
+        long value = callChain(depth - 1);
+        return value + depth;
+    }
+}
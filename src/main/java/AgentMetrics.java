@@ -0,0 +1,344 @@
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cost of the agent itself: time spent per instrumentation phase, bytes in and out, probes inserted,
+ * classes skipped, and the rate at which probes record.<br>
+ * Counters are LongAdders, striped per thread, so parallel class loaders do not contend on them.
+ * Nothing is measured on the probe path of the application: the record rate is sampled from the probe arrays,
+ * at most once a second, when the MBean is read or the log line is written. Boolean probes only tell the first hit:
+ * outside counting mode the rate is the one of probes hit for the first time, in counting mode the counters
+ * give probe executions per second too.<br>
+ * Methods are counted by probe emission (see CoverageRecorder.chooseEmission); with growthfile set, the estimated
+ * bytecode size of each method before and after instrumentation is kept and written as CSV at exit.<br>
+ * Turned off by metrics=false: the transformer then holds no metrics and measures nothing.
+ * With metricslog=seconds a line with the totals is written to stderr at that interval.
+ * @author kt27
+ */
+public class AgentMetrics implements AgentMetricsMBean {
+    public static final String OBJECT_NAME = "coverageASM:type=AgentMetrics";
+    private static final long MIN_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LongAdder transformedClasses = new LongAdder();
+    private final LongAdder reusedClasses = new LongAdder();
+    private final LongAdder skippedClasses = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder lineProbes = new LongAdder();
+    private final LongAdder branchProbes = new LongAdder();
+    private final LongAdder methodProbes = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final LongAdder instrumentNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAdder transformNanos = new LongAdder();
+    private final LongAdder[] methods = new LongAdder[CoverageRecorder.EMISSIONS.length]; // per probe emission
+    private final LongAdder crossedLimits = new LongAdder();
+    private final Queue<String> growth; // CSV rows of the instrumented methods, null unless asked for
+
+    private final boolean counting;
+    private final ProbeStripper stripper; // null unless in adaptive mode
+    private Thread thread;
+
+    // record rate, guarded by this
+    private long sampleNanos;
+    private long hitProbes;
+    private long executions;
+    private double hitRate;
+    private double executionRate;
+
+    /**
+     * @param   counting    whether probes count their hits, see AgentOptions.isCounting
+     * @param   stripper    the probe stripper of the adaptive mode, its counters are reported too, null if off
+     * @param   recordGrowth    whether to keep the size of each method, see writeGrowth
+     */
+    public AgentMetrics(boolean counting, ProbeStripper stripper, boolean recordGrowth) {
+        this.counting = counting;
+        this.stripper = stripper;
+        this.executionRate = counting ? 0 : -1;
+        this.growth = recordGrowth ? new ConcurrentLinkedQueue<>() : null;
+        for (int i = 0; i < methods.length; i++)
+            methods[i] = new LongAdder();
+    }
+
+    /**
+     * @return  true if the size of each method is kept: the recorder must collect it
+     */
+    boolean recordsGrowth() {
+        return growth != null;
+    }
+
+    /**
+     * a class left as it is by the transformer
+     */
+    void skipped() {
+        skippedClasses.increment();
+    }
+
+    void hashed(long nanos) {
+        hashNanos.add(nanos);
+    }
+
+    /**
+     * a class instrumented by the single pass
+     * @param   instrumentNanos time of the pass, up to the class writer
+     * @param   writeNanos  time of writing the class file
+     * @param   recorder    the recorder of the pass, holding the number of probes it inserted and the method sizes
+     */
+    void instrumented(long instrumentNanos, long writeNanos, CoverageRecorder recorder) {
+        this.instrumentNanos.add(instrumentNanos);
+        this.writeNanos.add(writeNanos);
+        lineProbes.add(recorder.getLineProbes());
+        branchProbes.add(recorder.getBranchProbes());
+        methodProbes.add(recorder.getMethodProbes());
+        for (int i = 0; i < methods.length; i++)
+            methods[i].add(recorder.getMethodCount(i));
+        crossedLimits.add(recorder.getCrossedLimits());
+        String rows = recorder.getGrowth();
+        if (growth != null && rows != null && !rows.isEmpty())
+            growth.add(rows);
+    }
+
+    /**
+     * write the size of each method instrumented so far, one CSV line per method
+     */
+    public void writeGrowth(Path file) throws IOException {
+        if (growth == null)
+            return;
+        if (file.toAbsolutePath().getParent() != null)
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("CLASS,METHOD,DESC,BYTES_BEFORE,BYTES_AFTER,DELTA,PROBES,EMISSION\n");
+            for (String rows : growth)
+                out.write(rows);
+        }
+    }
+
+    /**
+     * a class returned by the transformer
+     * @param   reused  true if it was not instrumented now, see getReusedClasses
+     * @param   nanos   time spent in the transformer for it
+     */
+    void transformed(int in, int out, boolean reused, long nanos) {
+        transformedClasses.increment();
+        if (reused)
+            reusedClasses.increment();
+        bytesIn.add(in);
+        bytesOut.add(out);
+        transformNanos.add(nanos);
+    }
+
+    /**
+     * register the MBean with the platform MBean server, replacing the one of an earlier dynamic attach
+     */
+    public void registerMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * start the background thread writing the log line
+     */
+    public void start(long intervalMillis) {
+        thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(intervalMillis);
+                    System.err.println("coverage: " + Instant.now() + " metrics " + this);
+                }
+            } catch (InterruptedException e) {
+                // stop
+            }
+        }, "coverage-metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * read the probe arrays (and counters) if the previous sample is older than a second
+     */
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        if (sampleNanos != 0 && now - sampleNanos < MIN_SAMPLE_NANOS)
+            return;
+        long hits = 0;
+        long executed = 0;
+        for (ExecutionData data : ProbeRuntime.getAllExecutionData()) {
+            hits += data.numOfHits();
+            if (counting) {
+                long[] counts = data.counts();
+                if (counts != null) {
+                    for (long count : counts)
+                        executed += count;
+                }
+            }
+        }
+        if (sampleNanos != 0) {
+            double seconds = (now - sampleNanos) / 1e9;
+            // a live reset clears probes and counters: no negative rate
+            hitRate = Math.max(0, hits - hitProbes) / seconds;
+            if (counting)
+                executionRate = Math.max(0, executed - executions) / seconds;
+        }
+        sampleNanos = now;
+        hitProbes = hits;
+        executions = executed;
+    }
+
+    @Override
+    public long getTransformedClasses() {
+        return transformedClasses.sum();
+    }
+
+    @Override
+    public long getReusedClasses() {
+        return reusedClasses.sum();
+    }
+
+    @Override
+    public long getSkippedClasses() {
+        return skippedClasses.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getLineProbes() {
+        return lineProbes.sum();
+    }
+
+    @Override
+    public long getBranchProbes() {
+        return branchProbes.sum();
+    }
+
+    @Override
+    public long getMethodProbes() {
+        return methodProbes.sum();
+    }
+
+    @Override
+    public long getHashNanos() {
+        return hashNanos.sum();
+    }
+
+    @Override
+    public long getInstrumentNanos() {
+        return instrumentNanos.sum();
+    }
+
+    @Override
+    public long getWriteNanos() {
+        return writeNanos.sum();
+    }
+
+    @Override
+    public long getTransformNanos() {
+        return transformNanos.sum();
+    }
+
+    @Override
+    public long getCompactMethods() {
+        return methods[CoverageRecorder.EMIT_COMPACT].sum();
+    }
+
+    @Override
+    public long getEntryProbeMethods() {
+        return methods[CoverageRecorder.EMIT_ENTRY].sum();
+    }
+
+    @Override
+    public long getUninstrumentedMethods() {
+        return methods[CoverageRecorder.EMIT_NONE].sum();
+    }
+
+    @Override
+    public long getCrossedLimits() {
+        return crossedLimits.sum();
+    }
+
+    @Override
+    public synchronized long getHitProbes() {
+        sample();
+        return hitProbes;
+    }
+
+    @Override
+    public synchronized double getHitProbesPerSecond() {
+        sample();
+        return hitRate;
+    }
+
+    @Override
+    public synchronized double getProbeExecutionsPerSecond() {
+        sample();
+        return executionRate;
+    }
+
+    @Override
+    public long getStrippedProbes() {
+        return stripper == null ? 0 : stripper.getStrippedProbes();
+    }
+
+    @Override
+    public long getStripperRetransformedClasses() {
+        return stripper == null ? 0 : stripper.getRetransformedClasses();
+    }
+
+    @Override
+    public String toString() {
+        long classes = getTransformedClasses();
+        long in = getBytesIn();
+        long out = getBytesOut();
+        StringBuilder sb = new StringBuilder();
+        sb.append("classes=").append(classes).append(" reused=").append(getReusedClasses())
+                .append(" skipped=").append(getSkippedClasses())
+                .append(" bytes=").append(in).append("->").append(out);
+        if (classes > 0)
+            sb.append(" (").append(in / classes).append("->").append(out / classes).append(" per class)");
+        sb.append(" probes line=").append(getLineProbes()).append(" branch=").append(getBranchProbes())
+                .append(" method=").append(getMethodProbes())
+                .append(" methods");
+        for (int i = 0; i < methods.length; i++)
+            sb.append(' ').append(CoverageRecorder.EMISSIONS[i]).append('=').append(methods[i].sum());
+        sb.append(" crossedLimits=").append(getCrossedLimits())
+                .append(" ms hash=").append(TimeUnit.NANOSECONDS.toMillis(getHashNanos()))
+                .append(" instrument=").append(TimeUnit.NANOSECONDS.toMillis(getInstrumentNanos()))
+                .append(" write=").append(TimeUnit.NANOSECONDS.toMillis(getWriteNanos()))
+                .append(" transform=").append(TimeUnit.NANOSECONDS.toMillis(getTransformNanos()));
+        synchronized (this) {
+            sample();
+            sb.append(" hitProbes=").append(hitProbes).append(String.format(" (%.1f/s)", hitRate));
+            if (counting)
+                sb.append(String.format(" executions/s=%.0f", executionRate));
+        }
+        if (stripper != null)
+            sb.append(" stripper ").append(stripper);
+        return sb.toString();
+    }
+}
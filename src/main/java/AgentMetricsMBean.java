@@ -0,0 +1,94 @@
+/**
+ * JMX view of the AgentMetrics, registered as coverageASM:type=AgentMetrics.<br>
+ * Counters are totals since the agent started, times in nanoseconds.
+ * @author kt27
+ */
+public interface AgentMetricsMBean {
+    long getTransformedClasses();
+
+    /**
+     * @return  number of classes taken from the instrumentation cache, from identical bytes defined by another loader,
+     * or instrumented ahead of a dynamic attach
+     */
+    long getReusedClasses();
+
+    /**
+     * @return  number of classes left as they are: not included by the filter, or already instrumented offline
+     */
+    long getSkippedClasses();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getLineProbes();
+
+    long getBranchProbes();
+
+    long getMethodProbes();
+
+    /**
+     * @return  number of methods whose probes fetch the probe array themselves, without local
+     */
+    long getCompactMethods();
+
+    /**
+     * @return  number of methods recording only their entry, finer probes would have crossed a size threshold
+     */
+    long getEntryProbeMethods();
+
+    /**
+     * @return  number of methods left uninstrumented, probes would have exceeded the class file limit
+     */
+    long getUninstrumentedMethods();
+
+    /**
+     * @return  number of methods pushed over a size threshold of the JIT that no probe emission avoided
+     */
+    long getCrossedLimits();
+
+    /**
+     * @return  time spent hashing class files
+     */
+    long getHashNanos();
+
+    /**
+     * @return  time spent in the single instrumentation pass: static information, control flow analysis and probe insertion
+     */
+    long getInstrumentNanos();
+
+    /**
+     * @return  time spent writing the instrumented class files
+     */
+    long getWriteNanos();
+
+    /**
+     * @return  time spent in the transformer for included classes, lookups in the cache included
+     */
+    long getTransformNanos();
+
+    /**
+     * @return  number of probes hit so far
+     */
+    long getHitProbes();
+
+    /**
+     * @return  probes hit for the first time per second, since the previous sample
+     */
+    double getHitProbesPerSecond();
+
+    /**
+     * @return  probe executions per second since the previous sample, -1 unless in counting mode
+     */
+    double getProbeExecutionsPerSecond();
+
+    /**
+     * @return  probes removed by the adaptive mode, 0 if it is off
+     */
+    long getStrippedProbes();
+
+    /**
+     * @return  classes retransformed by the adaptive mode, 0 if it is off
+     */
+    long getStripperRetransformedClasses();
+}
@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options of the coverage agent, parsed from the -javaagent argument string.<br>
+ * Format: projectName[,key=value]*<br>
+ * The leading project name keeps the original single-argument form valid.<br>
+ * Supported keys:<br>
+ * includes: class name patterns to instrument separated by :, see ClassFilter (default: the project name)<br>
+ * excludes: class name patterns left out separated by :, replace the default test class patterns<br>
+ * excludeloaders: class or instance name patterns of class loaders whose classes are left out, separated by :<br>
+ * excludegenerated: false to instrument synthetic and generated classes, e.g. proxies (default true)<br>
+ * config: a file of further options, one key=value per line, # starts a comment line.
+ * includes, excludes and excludeloaders add up over repeated keys<br>
+ * destfile: path of the execution data file written at exit, %p is replaced by the process id (default coverage.exec)<br>
+ * cachedir: directory of the persistent instrumentation cache, shared by all JVMs (default: no cache)<br>
+ * cachesize: size bound of the cache directory in MB (default 512)<br>
+ * adaptive: interval in seconds of the adaptive mode, which strips probes already hit from running classes (default 0: off)<br>
+ * control: port of a loopback TCP socket or path of a Unix domain socket serving live snapshots (default: none)<br>
+ * jmx: true to register the CoverageController MBean (default false)<br>
+ * testfile: per-test index file written by coverage sessions, %p is replaced by the process id (default coverage-tests.exec)<br>
+ * mode: coverage (probes record whether code ran), count (probes also count hits, for hotspot triage)
+ * or method (a single probe at method entry, lines and branches are not recorded) (default coverage)<br>
+ * jitlimits: true to also keep methods within the inlining size thresholds of the JIT, at the price of recording only
+ * the entry of small methods that do not fit with their probes. Otherwise methods are kept within the compilation
+ * and class file limits, see CoverageRecorder.chooseEmission (default false)<br>
+ * metrics: false to measure nothing about the agent itself, see AgentMetrics (default true)<br>
+ * metricslog: interval in seconds of a log line with the agent metrics (default 0: none)<br>
+ * growthfile: CSV file written at exit with the bytecode size of each instrumented method before and after,
+ * %p is replaced by the process id (default: none, needs metrics)<br>
+ * Dynamic attach only (see AttachAgent):<br>
+ * duration: seconds to record before the agent dumps and detaches (default 0: until the JVM exits)<br>
+ * batchsize: initial number of loaded classes per retransformation (default 64)<br>
+ * pausebudget: milliseconds a retransformation may add to its fixed cost, batches adapt to it (default 20)
+ * @author kt27
+ */
+public class AgentOptions {
+    public static final String INCLUDES = "includes";
+    public static final String EXCLUDES = "excludes";
+    public static final String EXCLUDELOADERS = "excludeloaders";
+    public static final String EXCLUDEGENERATED = "excludegenerated";
+    public static final String CONFIG = "config";
+    public static final String DESTFILE = "destfile";
+    public static final String CACHEDIR = "cachedir";
+    public static final String CACHESIZE = "cachesize";
+    public static final String ADAPTIVE = "adaptive";
+    public static final String CONTROL = "control";
+    public static final String JMX = "jmx";
+    public static final String TESTFILE = "testfile";
+    public static final String MODE = "mode";
+    public static final String JITLIMITS = "jitlimits";
+    public static final String METRICS = "metrics";
+    public static final String METRICSLOG = "metricslog";
+    public static final String GROWTHFILE = "growthfile";
+    public static final String DURATION = "duration";
+    public static final String BATCHSIZE = "batchsize";
+    public static final String PAUSEBUDGET = "pausebudget";
+
+    public static final String MODE_COVERAGE = "coverage";
+    public static final String MODE_COUNT = "count";
+    public static final String MODE_METHOD = "method";
+
+    public String projectName = "";
+    public final List<String> includes = new ArrayList<>();
+    public List<String> excludes; // null: ClassFilter.DEFAULT_EXCLUDES
+    public final List<String> excludeLoaders = new ArrayList<>();
+    public boolean excludeGenerated = true;
+    public String destFile = "coverage.exec";
+    public String cacheDir;
+    public long cacheSize = 512;
+    public long adaptiveInterval;
+    public String control;
+    public boolean jmx;
+    public String testFile = "coverage-tests.exec";
+    public String mode = MODE_COVERAGE;
+    public boolean jitLimits;
+    public boolean metrics = true;
+    public long metricsLogInterval;
+    public String growthFile;
+    public long duration;
+    public int batchSize = 64;
+    public long pauseBudget = 20;
+
+    /**
+     * set when the agent is attached to a running JVM: loaded classes are retransformed,
+     * which must not add members. Not an agent argument
+     */
+    public boolean attached;
+
+    /**
+     * @param   agentArgs   the argument string given to -javaagent, may be null
+     * @return  parsed options, defaults for every key not given
+     */
+    public static AgentOptions parse(String agentArgs) {
+        AgentOptions options = new AgentOptions();
+        if (agentArgs == null || agentArgs.isEmpty())
+            return options;
+        String[] parts = agentArgs.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            int eq = part.indexOf('=');
+            if (eq < 0) {
+                if (i != 0)
+                    throw new IllegalArgumentException("option without value: " + part);
+                options.projectName = part;
+                continue;
+            }
+            options.set(part.substring(0, eq).trim(), part.substring(eq + 1).trim());
+        }
+        return options;
+    }
+
+    private void set(String key, String value) {
+        switch (key) {
+            case INCLUDES -> addPatterns(includes, value);
+            case EXCLUDES -> {
+                if (excludes == null)
+                    excludes = new ArrayList<>();
+                addPatterns(excludes, value);
+            }
+            case EXCLUDELOADERS -> addPatterns(excludeLoaders, value);
+            case EXCLUDEGENERATED -> excludeGenerated = Boolean.parseBoolean(value);
+            case CONFIG -> readConfig(Path.of(value));
+            case DESTFILE -> destFile = value;
+            case CACHEDIR -> cacheDir = value;
+            case CACHESIZE -> cacheSize = Long.parseLong(value);
+            case ADAPTIVE -> adaptiveInterval = Long.parseLong(value);
+            case CONTROL -> control = value;
+            case JMX -> jmx = Boolean.parseBoolean(value);
+            case TESTFILE -> testFile = value;
+            case MODE -> mode = checkMode(value);
+            case JITLIMITS -> jitLimits = Boolean.parseBoolean(value);
+            case METRICS -> metrics = Boolean.parseBoolean(value);
+            case METRICSLOG -> metricsLogInterval = Long.parseLong(value);
+            case GROWTHFILE -> growthFile = value;
+            case DURATION -> duration = Long.parseLong(value);
+            case BATCHSIZE -> batchSize = Math.max(1, Integer.parseInt(value));
+            case PAUSEBUDGET -> pauseBudget = Long.parseLong(value);
+            default -> throw new IllegalArgumentException("unknown agent option: " + key);
+        }
+    }
+
+    private static void addPatterns(List<String> patterns, String value) {
+        for (String pattern : value.split(":")) {
+            if (!pattern.isBlank())
+                patterns.add(pattern.trim());
+        }
+    }
+
+    private void readConfig(Path file) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("cannot read agent config " + file + ": " + e, e);
+        }
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            int eq = line.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("option without value in " + file + ": " + line);
+            set(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+        }
+    }
+
+    private static String checkMode(String value) {
+        if (!value.equals(MODE_COVERAGE) && !value.equals(MODE_COUNT) && !value.equals(MODE_METHOD))
+            throw new IllegalArgumentException("unknown mode: " + value);
+        return value;
+    }
+
+    /**
+     * @return  true if probes count their hits
+     */
+    public boolean isCounting() {
+        return mode.equals(MODE_COUNT);
+    }
+
+    /**
+     * @return  the options that change the instrumented bytes, part of the cache key
+     */
+    public String instrumentationKey() {
+        String key = mode.equals(MODE_COVERAGE) ? "" : MODE + "=" + mode;
+        if (jitLimits)
+            key += "," + JITLIMITS + "=true";
+        return attached ? key + ",attached" : key;
+    }
+
+    /**
+     * @return  the execution data file of this process
+     */
+    public Path getDestFile() {
+        return resolveDestFile(destFile);
+    }
+
+    /**
+     * @return  the test index file of this process
+     */
+    public Path getTestFile() {
+        return resolveDestFile(testFile);
+    }
+
+    /**
+     * @return  the method growth file of this process, null if none
+     */
+    public Path getGrowthFile() {
+        return growthFile == null ? null : resolveDestFile(growthFile);
+    }
+
+    /**
+     * @param   pattern destination file name, %p is replaced by the process id
+     * @return  the execution data file of this process
+     */
+    public static Path resolveDestFile(String pattern) {
+        return Path.of(pattern.replace("%p", Long.toString(ProcessHandle.current().pid())));
+    }
+}
@@ -0,0 +1,273 @@
+import com.sun.tools.attach.VirtualMachine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dynamic attach: coverage of a JVM that is already running, for a time window.<br>
+ * agentmain registers the transformer, then a background thread instruments the matching loaded classes:
+ * their class files are read from their class loaders and instrumented in parallel first, so that the
+ * transformation inside retransformClasses is only a lookup (see mainDriver.prepare). Classes are then
+ * retransformed in batches. Each batch is one pause of the application, its size adapts to the pause budget
+ * (see retransform), and between two batches the application runs at least as long as the previous batch took.<br>
+ * Retransformation can not add members, so classes are instrumented with an inline lookup of their probes
+ * (see CoverageRecorder), also the ones loaded while attached.<br>
+ * Detach (after the duration, or on "detach" given to a second attach): the execution data file is written,
+ * the transformer removed and all instrumented classes are retransformed in the same batches,
+ * which gives them their original bytes back. The probes are cleared for a later attach.
+ * @author kt27
+ */
+public class AttachAgent {
+    public static final String DETACH = "detach";
+    private static final int MAX_BATCH = 4096;
+
+    private static AttachAgent active; // guarded by AttachAgent.class
+
+    private final AgentOptions options;
+    private final Instrumentation inst;
+    private final mainDriver transformer;
+    private boolean detached; // guarded by this
+
+    private int batches;
+    private long longestPauseNanos;
+    private long fixedCostNanos;
+
+    private AttachAgent(AgentOptions options, Instrumentation inst) {
+        this.options = options;
+        this.inst = inst;
+        this.transformer = new mainDriver(options);
+    }
+
+    /**
+     * entry point of a dynamically loaded agent
+     * @param   agentArgs   agent options, or "detach" to end the running attach
+     */
+    static synchronized void agentmain(String agentArgs, Instrumentation inst) {
+        if (DETACH.equals(agentArgs)) {
+            if (active != null)
+                startThread(active::detach);
+            else
+                System.err.println("coverage: not attached");
+            return;
+        }
+        if (active != null) {
+            System.err.println("coverage: already attached, detach first");
+            return;
+        }
+        if (!inst.isRetransformClassesSupported()) {
+            System.err.println("coverage: retransformation not supported by this JVM, attach ignored");
+            return;
+        }
+        AgentOptions options = AgentOptions.parse(agentArgs);
+        options.attached = true;
+        ProbeRuntime.agentLoaded = true;
+        AttachAgent agent = new AttachAgent(options, inst);
+        active = agent;
+        // the attach listener waits for agentmain: the work runs in the background
+        startThread(agent::attach);
+        Runtime.getRuntime().addShutdownHook(new Thread(agent::dump, "coverage-attach-exit"));
+    }
+
+    private static void startThread(Runnable task) {
+        Thread thread = new Thread(task, "coverage-attach");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void attach() {
+        long start = System.nanoTime();
+        inst.addTransformer(transformer, true); // classes loaded from now on are instrumented as they load
+        transformAgent.startMetrics(transformer.getMetrics(), options);
+        List<Class<?>> classes = new ArrayList<>();
+        ClassFilter filter = transformer.getFilter();
+        for (Class<?> c : inst.getAllLoadedClasses()) {
+            if (c.isArray() || c.isHidden() || !inst.isModifiableClass(c))
+                continue;
+            if (filter.isIncluded(c))
+                classes.add(c);
+        }
+        prepare(classes);
+        try {
+            int failed = retransform(classes);
+            System.err.println("coverage: attached, instrumented " + (classes.size() - failed) + " loaded classes"
+                    + (failed == 0 ? "" : ", " + failed + " failed") + " in " + batches + " batches, longest pause "
+                    + TimeUnit.NANOSECONDS.toMillis(longestPauseNanos) + " ms (fixed cost "
+                    + TimeUnit.NANOSECONDS.toMillis(fixedCostNanos) + " ms), total "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            if (options.duration > 0) {
+                Thread.sleep(options.duration * 1000);
+                detach();
+            }
+        } catch (InterruptedException e) {
+            // stays attached until the JVM exits
+        } finally {
+            transformer.clearPrepared();
+        }
+    }
+
+    /**
+     * instrument the loaded versions of classes in parallel, read through their class loaders
+     */
+    private void prepare(List<Class<?>> classes) {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Class<?> c : classes) {
+                tasks.add(pool.submit(() -> {
+                    String name = c.getName().replace('.', '/');
+                    try (InputStream in = c.getClassLoader().getResourceAsStream(name + ".class")) {
+                        if (in != null)
+                            transformer.prepare(c, in.readAllBytes());
+                    } catch (IOException | RuntimeException e) {
+                        // instrumented during the retransformation instead
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * write the execution data file, remove the transformer and give the instrumented classes their original bytes back
+     */
+    synchronized void detach() {
+        if (detached)
+            return;
+        dump();
+        detached = true;
+        inst.removeTransformer(transformer);
+        if (transformer.getMetrics() != null)
+            transformer.getMetrics().stop();
+        ClassRegistry registry = mainDriver.getRegistry();
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> c : inst.getAllLoadedClasses()) {
+            if (registry.get(c) != null && inst.isModifiableClass(c))
+                classes.add(c);
+        }
+        batches = 0;
+        longestPauseNanos = 0;
+        try {
+            int failed = retransform(classes);
+            System.err.println("coverage: detached, restored " + (classes.size() - failed) + " classes"
+                    + (failed == 0 ? "" : ", " + failed + " failed") + " in " + batches + " batches, longest pause "
+                    + TimeUnit.NANOSECONDS.toMillis(longestPauseNanos) + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ExecutionData data : ProbeRuntime.getAllExecutionData()) {
+            data.snapshotAndReset();
+            data.countsAndReset();
+        }
+        synchronized (AttachAgent.class) {
+            active = null;
+        }
+    }
+
+    private synchronized void dump() {
+        if (detached)
+            return;
+        Path file = options.getDestFile();
+        try {
+            mainDriver.dump(file);
+        } catch (IOException e) {
+            System.err.println("coverage: failed to write " + file + ": " + e);
+        }
+        transformAgent.writeGrowth(transformer.getMetrics(), options);
+    }
+
+    /**
+     * retransform classes in batches within the pause budget, see the class comment.<br>
+     * A retransformation has a fixed cost (a safepoint, walks over the loaded classes and the compiled code)
+     * that does not depend on the batch size. The first batch is a single class, its pause is taken as that cost.
+     * The budget then limits the part of a pause that grows with the batch; a budget below the fixed cost
+     * can not be kept, pauses are held within twice the fixed cost instead.
+     * @return  number of classes that could not be retransformed
+     */
+    private int retransform(List<Class<?>> classes) throws InterruptedException {
+        int batch = 1;
+        long budget = TimeUnit.MILLISECONDS.toNanos(options.pauseBudget);
+        long fixedCost = Long.MAX_VALUE;
+        int failed = 0;
+        for (int i = 0; i < classes.size(); ) {
+            List<Class<?>> chunk = classes.subList(i, Math.min(classes.size(), i + batch));
+            long start = System.nanoTime();
+            failed += retransformBatch(chunk);
+            long elapsed = System.nanoTime() - start;
+            i += chunk.size();
+            batches++;
+            longestPauseNanos = Math.max(longestPauseNanos, elapsed);
+            fixedCost = Math.min(fixedCost, elapsed);
+            long variable = elapsed - fixedCost;
+            long allowed = Math.max(budget, 2 * fixedCost) - fixedCost;
+            if (i == chunk.size()) // the single class measuring the fixed cost
+                batch = options.batchSize;
+            else if (variable > allowed)
+                batch = Math.max(1, batch / 2);
+            else if (variable < allowed / 2)
+                batch = Math.min(MAX_BATCH, batch * 2);
+            if (i < classes.size())
+                TimeUnit.NANOSECONDS.sleep(elapsed);
+        }
+        fixedCostNanos = Math.max(fixedCostNanos, fixedCost == Long.MAX_VALUE ? 0 : fixedCost);
+        return failed;
+    }
+
+    /**
+     * retransform all classes at once, one by one if that fails
+     * @return  number of classes that could not be retransformed
+     */
+    private int retransformBatch(List<Class<?>> classes) {
+        try {
+            inst.retransformClasses(classes.toArray(new Class<?>[0]));
+            return 0;
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            int failed = 0;
+            for (Class<?> c : classes) {
+                try {
+                    inst.retransformClasses(c);
+                } catch (UnmodifiableClassException | RuntimeException | LinkageError e1) {
+                    failed++;
+                }
+            }
+            return failed;
+        }
+    }
+
+    /**
+     * the attach launcher: load this agent into a running JVM
+     * @param   pid the process id of the target JVM
+     * @param   agentArgs   agent options, or "detach"
+     */
+    public static void attach(String pid, String agentArgs) throws IOException {
+        String agentJar;
+        try {
+            agentJar = Path.of(AttachAgent.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IOException("agent jar not found", e);
+        }
+        try {
+            VirtualMachine vm = VirtualMachine.attach(pid);
+            try {
+                vm.loadAgent(agentJar, agentArgs);
+            } finally {
+                vm.detach();
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) { // attach not supported, agent load or initialization failed
+            throw new IOException("attach to " + pid + " failed: " + e, e);
+        }
+    }
+}
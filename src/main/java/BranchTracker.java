@@ -1,28 +1,25 @@
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * The branch tracker for a single class.<br>
  * Including the branches contained in a method and branches in a method.<br>
  * Branches are recognized as jump instructions.<br>
- * Each jump instruction are assigned a unique branch id.
+ * Each jump instruction are assigned a unique branch id.<br>
+ * Methods are indexed by the first pass of the class, covered branches are bitsets over the branch ids.<br>
+ * In counting mode each branch also has a hit count, absent otherwise.
  * @author kt27
  */
 public class BranchTracker {
     public String className;
 
-    // method -> all branches ID contained
-    public Map<FirstPassResult.MethodSignature, Set<Integer>> method2branches;
+    private final FirstPassResult methods; // method index of the class
+    private int[] branchCounts = new int[0]; // method index -> number of branches contained
+    private long[][] coveredBranches = new long[0][]; // method index -> branch ids covered, null while none
+    private long[][] branchHits; // method index -> hit count per branch id, null unless counted
 
-    // method -> all branches ID covered
-    public Map<FirstPassResult.MethodSignature, Set<Integer>> method2Coveredbranches;
-
-    BranchTracker(String className) {
-        this.className = className;
-        method2branches = new HashMap<>();
-        method2Coveredbranches = new HashMap<>();
+    BranchTracker(FirstPassResult methods) {
+        this.className = methods.getClassName();
+        this.methods = methods;
     }
 
     /**
@@ -31,18 +28,11 @@ public class BranchTracker {
      * @return  the newly assigned branch id
      */
     public int createNewBranchId(FirstPassResult.MethodSignature method) {
-        Set<Integer> branches = method2branches.get(method);
-        if (branches == null) {
-            // first branches in this method
-            branches = new HashSet<>();
-        }
-        // now we are sure that branches is not null
+        int index = methods.addMethod(method);
+        if (index >= branchCounts.length)
+            branchCounts = Arrays.copyOf(branchCounts, Math.max(methods.methodCount(), 2 * branchCounts.length));
         // insert a new sequential branch Id
-        int newId = branches.size();
-        branches.add(newId);
-
-        method2branches.put(method, branches);
-        return newId;
+        return branchCounts[index]++;
     }
 
     /**
@@ -51,15 +41,69 @@ public class BranchTracker {
      * @param   id  the branch id that has been covered
      */
     public void coverBranch(FirstPassResult.MethodSignature method, int id) {
-        Set<Integer> coveredbranches = method2Coveredbranches.get(method);
-        if (coveredbranches == null) {
-            // first branches in this method
-            coveredbranches = new HashSet<>();
-        }
-        // now we are sure that branches is not null
-        // add the covered branch id
-        coveredbranches.add(id);
-        method2Coveredbranches.put(method, coveredbranches);
+        int index = methods.indexOf(method);
+        if (index < 0 || id >= getBranchCount(index))
+            return;
+        if (index >= coveredBranches.length)
+            coveredBranches = Arrays.copyOf(coveredBranches, methods.methodCount());
+        if (coveredBranches[index] == null)
+            coveredBranches[index] = new long[(branchCounts[index] + 63) >>> 6];
+        coveredBranches[index][id >>> 6] |= 1L << id;
+    }
+
+    /**
+     * set the hit count of branch id of method
+     */
+    public void setHits(FirstPassResult.MethodSignature method, int id, long count) {
+        int index = methods.indexOf(method);
+        if (index < 0 || id >= getBranchCount(index))
+            return;
+        if (branchHits == null)
+            branchHits = new long[methods.methodCount()][];
+        if (branchHits[index] == null)
+            branchHits[index] = new long[branchCounts[index]];
+        branchHits[index][id] = count;
+    }
+
+    /**
+     * @return  true if hit counts were recorded (counting mode)
+     */
+    public boolean hasHits() {
+        return branchHits != null;
+    }
+
+    /**
+     * @return  the hit count of branch id of the method at index, 0 if not counted
+     */
+    public long getHits(int index, int id) {
+        return branchHits == null || index >= branchHits.length || branchHits[index] == null ? 0 : branchHits[index][id];
+    }
+
+    /**
+     * @return  number of branches contained in the method at index
+     */
+    public int getBranchCount(int index) {
+        return index < branchCounts.length ? branchCounts[index] : 0;
+    }
+
+    /**
+     * @return  number of branches covered in the method at index
+     */
+    public int getCoveredCount(int index) {
+        if (index >= coveredBranches.length || coveredBranches[index] == null)
+            return 0;
+        int n = 0;
+        for (long word : coveredBranches[index])
+            n += Long.bitCount(word);
+        return n;
+    }
+
+    /**
+     * @return  true if branch id of the method at index is covered
+     */
+    public boolean isCovered(int index, int id) {
+        return index < coveredBranches.length && coveredBranches[index] != null
+                && (coveredBranches[index][id >>> 6] & (1L << id)) != 0;
     }
 
     /**
@@ -68,14 +112,15 @@ public class BranchTracker {
      * @return  branch coverage summary
      */
     public String getBranchCoverage(FirstPassResult.MethodSignature method) {
-        Set<Integer> branches = method2branches.get(method);
-        Set<Integer> coveredbranches = method2Coveredbranches.get(method);
-        if (branches == null)
+        int index = methods.indexOf(method);
+        int branches = index < 0 ? 0 : getBranchCount(index);
+        if (branches == 0)
             return "no branch contained";
-        if (coveredbranches == null || coveredbranches.size() == 0)
+        int covered = getCoveredCount(index);
+        if (covered == 0)
             return "no branch coverage";
-        double percent = coveredbranches.size() * 1.0 / branches.size();
+        double percent = covered * 1.0 / branches;
         percent = Math.round(percent*100.0)/100.0;
-        return percent + "(" + coveredbranches.size() + "/" + branches.size() + ")";
+        return percent + "(" + covered + "/" + branches + ")";
     }
 }
@@ -0,0 +1,321 @@
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Selection of the classes to instrument, compiled once from the agent options.<br>
+ * Patterns are globs on class names, with . or / as package separator: ? is one character and * any characters
+ * within a package segment, ** any characters across segments. A leading **. also matches no package,
+ * a trailing .** also matches nothing more (a.** is a and everything below it).<br>
+ * Include and exclude patterns are compiled into a prefix trie on their literal prefix: a class name is walked
+ * down the trie and only the patterns of the nodes on its path are matched, so a class outside every include prefix
+ * is rejected after a few characters. A pattern without literal prefix (**.name.**, **.*Test) sits on the root and is
+ * tried on every name: a substring search for its longest literal, the glob only if that occurs.<br>
+ * The project name is an include pattern: a bare name (no separator, no wildcard) selects every class with a package
+ * segment of that name, **.name.**, so it gets no prefix pruning. A dotted name selects the package and its
+ * subpackages.<br>
+ * Rules applied in the agent before any pattern: classes of the bootstrap and platform loaders, of the agent itself
+ * and of the ASM copy the agent runs on are never instrumented (another loader's copy of ASM is an ordinary library).
+ * Loaders are excluded by class name or loader name, and generated classes (synthetic class files, $$ in the name
+ * as in lambdas and CGLIB proxies, reflection proxies, ByteBuddy, Mockito and Hibernate proxies) are excluded
+ * unless asked for.<br>
+ * Default excludes: test classes, that is packages named test and classes named *Test, *Tests or *TestCase
+ * with their nested classes. Giving excludes replaces them.
+ * @author kt27
+ */
+public class ClassFilter {
+
+    static final String[] DEFAULT_EXCLUDES = {"**.test.**", "**.*Test", "**.*Test$*", "**.*Tests", "**.*Tests$*", "**.*TestCase", "**.*TestCase$*"};
+    private static final String[] GENERATED = {"$$", "$HibernateProxy$", "$ByteBuddy$", "$MockitoMock$"};
+
+    // pattern tokens, chars no class name contains
+    private static final char ANY = '\u0001'; // ?
+    private static final char STAR = '\u0002'; // *
+    private static final char DOUBLE_STAR = '\u0003'; // **
+    private static final char SEGMENTS = '\u0004'; // leading **/ : no or any segments
+    private static final char REST = '\u0005'; // trailing /** : nothing or anything below
+
+    /**
+     * a compiled pattern and the longest literal run every name it matches contains, checked first
+     */
+    private static final class Glob {
+        final char[] tokens;
+        final String required;
+
+        Glob(char[] tokens) {
+            this.tokens = tokens;
+            String longest = "";
+            int start = 0;
+            for (int i = 0; i <= tokens.length; i++) {
+                if (i == tokens.length || tokens[i] <= REST) {
+                    if (i - start > longest.length())
+                        longest = new String(tokens, start, i - start);
+                    start = i + 1;
+                }
+            }
+            this.required = longest;
+        }
+    }
+
+    /**
+     * a node of the prefix trie, a few children per node in insertion order
+     */
+    private static final class Node {
+        char[] chars = new char[0];
+        Node[] children = new Node[0];
+        Glob[] patterns; // patterns whose literal prefix ends here, null if none
+
+        Node child(char c) {
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == c)
+                    return children[i];
+            }
+            return null;
+        }
+
+        Node add(char c) {
+            Node child = child(c);
+            if (child == null) {
+                int i = chars.length;
+                chars = Arrays.copyOf(chars, i + 1);
+                children = Arrays.copyOf(children, i + 1);
+                chars[i] = c;
+                children[i] = child = new Node();
+            }
+            return child;
+        }
+    }
+
+    private final Node includes;
+    private final Node excludes;
+    private final char[][] excludedLoaders;
+    private final boolean excludeGenerated;
+    private final CodeSource agentSource;
+    private final ClassLoader platformLoader = ClassLoader.getPlatformClassLoader();
+    private final ClassLoader asmLoader = ClassReader.class.getClassLoader();
+
+    public ClassFilter(AgentOptions options) {
+        List<String> include = new ArrayList<>(options.includes);
+        if (include.isEmpty())
+            include.add(projectPattern(options.projectName));
+        this.includes = compile(include);
+        this.excludes = compile(options.excludes == null ? List.of(DEFAULT_EXCLUDES) : options.excludes);
+        this.excludedLoaders = new char[options.excludeLoaders.size()][];
+        for (int i = 0; i < excludedLoaders.length; i++)
+            excludedLoaders[i] = compile(options.excludeLoaders.get(i));
+        this.excludeGenerated = options.excludeGenerated;
+        ProtectionDomain domain = ClassFilter.class.getProtectionDomain();
+        this.agentSource = domain == null ? null : domain.getCodeSource();
+    }
+
+    /**
+     * @param   projectName the leading agent argument, empty for all classes. A trailing separator is ignored
+     * @return  the include pattern of the project name, see the class comment
+     */
+    static String projectPattern(String projectName) {
+        while (projectName.endsWith(".") || projectName.endsWith("/"))
+            projectName = projectName.substring(0, projectName.length() - 1); // a package prefix as in com/acme/
+        if (projectName.isEmpty())
+            return "**";
+        if (projectName.indexOf('*') >= 0 || projectName.indexOf('?') >= 0)
+            return projectName;
+        if (projectName.indexOf('.') >= 0 || projectName.indexOf('/') >= 0)
+            return projectName + ".**";
+        return "**." + projectName + ".**";
+    }
+
+    /**
+     * the check of the agent: loader short cuts first, then the patterns, the file is parsed only for included names
+     * @param   loader  the defining loader, null for the bootstrap loader
+     * @param   className   internal class name, null for some hidden classes
+     * @param   domain  protection domain of the class, may be null
+     * @param   classfile   the class file, for the synthetic flag
+     */
+    public boolean isIncluded(ClassLoader loader, String className, ProtectionDomain domain, byte[] classfile) {
+        if (loader == null || loader == platformLoader || className == null)
+            return false;
+        if (!isIncluded(className) || isAgentAsm(loader, className) || isExcludedLoader(loader))
+            return false;
+        if (agentSource != null && domain != null && agentSource.equals(domain.getCodeSource()))
+            return false;
+        return !excludeGenerated || (new ClassReader(classfile).getAccess() & Opcodes.ACC_SYNTHETIC) == 0;
+    }
+
+    /**
+     * the check of the agent for a class already loaded, e.g. by the dynamic attach
+     */
+    public boolean isIncluded(Class<?> loaded) {
+        ClassLoader loader = loaded.getClassLoader();
+        String className = loaded.getName().replace('.', '/');
+        if (loader == null || loader == platformLoader || !isIncluded(className) || isAgentAsm(loader, className)
+                || isExcludedLoader(loader))
+            return false;
+        ProtectionDomain domain = loaded.getProtectionDomain();
+        if (agentSource != null && domain != null && agentSource.equals(domain.getCodeSource()))
+            return false;
+        return !excludeGenerated || !loaded.isSynthetic();
+    }
+
+    /**
+     * the check by name only, e.g. of the offline instrumenter, which also checks isSynthetic
+     * @param   className   internal class name
+     */
+    public boolean isIncluded(String className) {
+        if (!matches(includes, className) || matches(excludes, className))
+            return false;
+        return !excludeGenerated || !isGenerated(className);
+    }
+
+    /**
+     * @param   access  the access flags of a class file
+     * @return  true if the class is synthetic and generated classes are excluded
+     */
+    public boolean isSynthetic(int access) {
+        return excludeGenerated && (access & Opcodes.ACC_SYNTHETIC) != 0;
+    }
+
+    private static boolean isGenerated(String className) {
+        for (String marker : GENERATED) {
+            if (className.contains(marker))
+                return true;
+        }
+        int simple = className.lastIndexOf('/') + 1;
+        return className.startsWith("$Proxy", simple);
+    }
+
+    /**
+     * instrumenting the ASM classes the transformer itself runs on would recurse
+     */
+    private boolean isAgentAsm(ClassLoader loader, String className) {
+        return loader == asmLoader && className.startsWith("org/objectweb/asm/");
+    }
+
+    private boolean isExcludedLoader(ClassLoader loader) {
+        if (excludedLoaders.length == 0)
+            return false;
+        String type = loader.getClass().getName().replace('.', '/');
+        String name = loader.getName();
+        for (char[] pattern : excludedLoaders) {
+            if (match(pattern, 0, type, 0) || name != null && match(pattern, 0, name.replace('.', '/'), 0))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * walk className down the trie, matching the patterns on its path
+     */
+    private static boolean matches(Node root, String className) {
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.patterns != null) {
+                for (Glob glob : node.patterns) {
+                    if (className.contains(glob.required) && match(glob.tokens, 0, className, 0))
+                        return true;
+                }
+            }
+            if (i == className.length())
+                return false;
+            node = node.child(className.charAt(i));
+        }
+        return false;
+    }
+
+    private static Node compile(List<String> globs) {
+        Node root = new Node();
+        for (String glob : globs) {
+            Glob pattern = new Glob(compile(glob));
+            Node node = root;
+            for (char c : pattern.tokens) {
+                if (c <= REST)
+                    break;
+                node = node.add(c);
+            }
+            node.patterns = node.patterns == null ? new Glob[]{pattern} : append(node.patterns, pattern);
+        }
+        return root;
+    }
+
+    private static Glob[] append(Glob[] patterns, Glob pattern) {
+        Glob[] result = Arrays.copyOf(patterns, patterns.length + 1);
+        result[patterns.length] = pattern;
+        return result;
+    }
+
+    /**
+     * @return  the glob in internal form, wildcards replaced by their tokens
+     */
+    static char[] compile(String glob) {
+        String g = glob.trim().replace('.', '/');
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < g.length(); i++) {
+            char c = g.charAt(i);
+            if (c == '*' && i + 1 < g.length() && g.charAt(i + 1) == '*') {
+                if (i == 0 && g.startsWith("**/")) {
+                    sb.append(SEGMENTS);
+                    i += 2;
+                } else if (i == g.length() - 2 && i > 0 && g.charAt(i - 1) == '/') {
+                    sb.setCharAt(sb.length() - 1, REST);
+                    i++;
+                } else {
+                    sb.append(DOUBLE_STAR);
+                    i++;
+                }
+            } else if (c == '*') {
+                sb.append(STAR);
+            } else if (c == '?') {
+                sb.append(ANY);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString().toCharArray();
+    }
+
+    /**
+     * match the compiled pattern from index p against name from index n
+     */
+    static boolean match(char[] pattern, int p, String name, int n) {
+        for (; p < pattern.length; p++, n++) {
+            char c = pattern[p];
+            switch (c) {
+                case STAR:
+                    for (int k = n; ; k++) {
+                        if (match(pattern, p + 1, name, k))
+                            return true;
+                        if (k == name.length() || name.charAt(k) == '/')
+                            return false;
+                    }
+                case DOUBLE_STAR:
+                    for (int k = n; k <= name.length(); k++) {
+                        if (match(pattern, p + 1, name, k))
+                            return true;
+                    }
+                    return false;
+                case SEGMENTS:
+                    if (match(pattern, p + 1, name, n))
+                        return true;
+                    for (int k = n; k < name.length(); k++) {
+                        if (name.charAt(k) == '/' && match(pattern, p + 1, name, k + 1))
+                            return true;
+                    }
+                    return false;
+                case REST:
+                    return n == name.length() || name.charAt(n) == '/';
+                case ANY:
+                    if (n == name.length() || name.charAt(n) == '/')
+                        return false;
+                    break;
+                default:
+                    if (n == name.length() || name.charAt(n) != c)
+                        return false;
+            }
+        }
+        return n == name.length();
+    }
+}
@@ -0,0 +1,65 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Fast 64 bit content hash of class file bytes.<br>
+ * The hash identifies an instrumented class at runtime: identical bytes always map to the same id.
+ * @author kt27
+ */
+public class ClassHash {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long M1 = 0xFF51AFD7ED558CCDL;
+    private static final long M2 = 0xC4CEB9FE1A85EC53L;
+
+    /**
+     * @param   bytes   class file bytes
+     * @return  64 bit hash of the whole array
+     */
+    public static long hash(byte[] bytes) {
+        return hash(SEED, bytes);
+    }
+
+    /**
+     * @param   seed    initial value, used to combine the hash with other keys
+     * @param   bytes   class file bytes
+     * @return  64 bit hash of the whole array
+     */
+    public static long hash(long seed, byte[] bytes) {
+        long h = seed ^ (bytes.length * M1);
+        int i = 0;
+        // consume 8 bytes at a time
+        for (; i + 8 <= bytes.length; i += 8) {
+            h ^= mix((long) LONGS.get(bytes, i));
+            h = Long.rotateLeft(h, 27) * M2 + SEED;
+        }
+        // remaining tail bytes
+        long tail = 0;
+        for (int shift = 0; i < bytes.length; i++, shift += 8) {
+            tail |= (bytes[i] & 0xFFL) << shift;
+        }
+        h ^= mix(tail);
+        return mix(h);
+    }
+
+    /**
+     * @return  64 bit hash of two hash values, order dependent
+     */
+    public static long combine(long h1, long h2) {
+        return mix(h1 * M2 + mix(h2 ^ SEED));
+    }
+
+    /**
+     * murmur3 finalizer: spread every input bit over the whole word
+     */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= M1;
+        k ^= k >>> 33;
+        k *= M2;
+        k ^= k >>> 33;
+        return k;
+    }
+}
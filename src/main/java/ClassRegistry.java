@@ -0,0 +1,224 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the classes instrumented in this JVM, safe for parallel capable class loaders.<br>
+ * A class is registered per (class loader, class name, content hash).<br>
+ * The static information of a class is shared by all loaders defining identical bytes, and so is its probe array
+ * (keyed by content hash, see ProbeRuntime). The instrumented class file is kept softly next to it, so the same
+ * bytes loaded by many loaders (e.g. a library in every application of a server) are analyzed and instrumented once.
+ * Two loaders defining different bytes under one name are two classes, both are reported.<br>
+ * Class loaders are held weakly. The registrations of a collected loader are dropped at the next registration or
+ * listing, and a class no live loader defines any more leaves the registry together with its probes (see
+ * ProbeRuntime.remove): neither is written any more. Classes of the bootstrap loader are never dropped.<br>
+ * Lookups do not lock, registrations and drops are synchronized.
+ * @author kt27
+ */
+public class ClassRegistry {
+
+    /**
+     * a class defined by one loader
+     */
+    public static final class Registration {
+        public final String className;
+        public final long classId;
+
+        Registration(String className, long classId) {
+            this.className = className;
+            this.classId = classId;
+        }
+    }
+
+    /**
+     * the analysis shared by all registrations of identical bytes
+     */
+    private static final class Shared {
+        final coverageInfo coverage;
+        final String key; // instrumentation key the class file was instrumented with
+        volatile SoftReference<byte[]> classfile;
+        int registrations; // guarded by the registry
+
+        Shared(coverageInfo coverage, String key, byte[] classfile) {
+            this.coverage = coverage;
+            this.key = key;
+            this.classfile = new SoftReference<>(classfile);
+        }
+    }
+
+    /**
+     * weak reference to a class loader usable as a map key, equal for the same live loader.
+     * The bootstrap loader (null) has a single key
+     */
+    private static final class LoaderKey extends WeakReference<ClassLoader> {
+        final int hash;
+
+        LoaderKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            this.hash = System.identityHashCode(loader);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof LoaderKey other))
+                return false;
+            ClassLoader loader = get();
+            return loader != null && loader == other.get();
+        }
+    }
+
+    private static final LoaderKey BOOTSTRAP = new LoaderKey(null, null);
+
+    private final ReferenceQueue<ClassLoader> collected = new ReferenceQueue<>();
+    private final Map<LoaderKey, Map<String, Registration>> loaders = new ConcurrentHashMap<>(); // loader -> class name -> registration
+    private final Map<Long, Shared> shared = new ConcurrentHashMap<>(); // class id -> analysis
+    private int registrations; // guarded by this
+
+    /**
+     * @param   classId the content hash of the original class file
+     * @param   key the instrumentation key of the caller, see AgentOptions.instrumentationKey
+     * @return  the class instrumented from identical bytes with the same key, null if none or its class file was collected
+     */
+    public InstrumentedClass getInstrumented(long classId, String key) {
+        Shared s = shared.get(classId);
+        if (s == null || !s.key.equals(key))
+            return null;
+        byte[] classfile = s.classfile.get();
+        return classfile == null ? null : new InstrumentedClass(s.coverage, classfile);
+    }
+
+    /**
+     * register a class defined by loader. Registering the same bytes again under the same loader and name
+     * (e.g. a retransformation) returns the existing registration, other bytes replace it
+     * @param   loader  the defining loader, null for the bootstrap loader
+     * @param   key the instrumentation key instrumented was made with. Identical bytes instrumented with another key
+     *              replace the shared analysis
+     * @return  the registration of the class
+     */
+    public synchronized Registration register(ClassLoader loader, String className, InstrumentedClass instrumented, String key) {
+        expunge();
+        long classId = instrumented.coverage.classId;
+        Shared s = shared.get(classId);
+        if (s == null || !s.key.equals(key)) {
+            Shared replaced = s;
+            s = new Shared(instrumented.coverage, key, instrumented.classfile);
+            if (replaced != null)
+                s.registrations = replaced.registrations;
+            shared.put(classId, s);
+        } else if (s.classfile.get() == null) {
+            s.classfile = new SoftReference<>(instrumented.classfile);
+        }
+        LoaderKey lookup = key(loader, null);
+        Map<String, Registration> names = loaders.get(lookup);
+        if (names == null) {
+            names = new ConcurrentHashMap<>();
+            loaders.put(loader == null ? BOOTSTRAP : new LoaderKey(loader, collected), names);
+        }
+        Registration old = names.get(className);
+        if (old != null) {
+            if (old.classId == classId)
+                return old;
+            release(old); // redefined with other bytes
+        }
+        Registration registration = new Registration(className, classId);
+        names.put(className, registration);
+        s.registrations++;
+        registrations++;
+        return registration;
+    }
+
+    /**
+     * @param   loader  the defining loader, null for the bootstrap loader
+     * @param   className   internal class name
+     * @return  the static information of the class defined by loader, null if it is not registered
+     */
+    public coverageInfo get(ClassLoader loader, String className) {
+        Map<String, Registration> names = loaders.get(key(loader, null));
+        Registration registration = names == null ? null : names.get(className);
+        Shared s = registration == null ? null : shared.get(registration.classId);
+        return s == null ? null : s.coverage;
+    }
+
+    /**
+     * @return  the static information of a loaded class, null if it is not registered
+     */
+    public coverageInfo get(Class<?> loaded) {
+        return get(loaded.getClassLoader(), loaded.getName().replace('.', '/'));
+    }
+
+    /**
+     * @return  the static information of all registered classes, once per distinct class file
+     */
+    public Collection<coverageInfo> classes() {
+        synchronized (this) {
+            expunge();
+        }
+        List<coverageInfo> result = new ArrayList<>(shared.size());
+        for (Shared s : shared.values())
+            result.add(s.coverage);
+        return result;
+    }
+
+    /**
+     * @return  number of (loader, class) registrations
+     */
+    public synchronized int getRegistrationCount() {
+        expunge();
+        return registrations;
+    }
+
+    /**
+     * @return  number of distinct class files registered
+     */
+    public int getClassCount() {
+        return shared.size();
+    }
+
+    /**
+     * @return  number of loaders with registered classes, the bootstrap loader included
+     */
+    public int getLoaderCount() {
+        return loaders.size();
+    }
+
+    private static LoaderKey key(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+        return loader == null ? BOOTSTRAP : new LoaderKey(loader, queue);
+    }
+
+    /**
+     * drop the registrations of the collected loaders, guarded by this
+     */
+    private void expunge() {
+        for (Object ref; (ref = collected.poll()) != null; ) {
+            Map<String, Registration> names = loaders.remove(ref);
+            if (names != null) {
+                for (Registration registration : names.values())
+                    release(registration);
+            }
+        }
+    }
+
+    /**
+     * drop a registration, and the class with its probes once no loader defines its bytes any more. guarded by this
+     */
+    private void release(Registration registration) {
+        registrations--;
+        Shared s = shared.get(registration.classId);
+        if (s != null && --s.registrations == 0) {
+            shared.remove(registration.classId);
+            ProbeRuntime.remove(registration.classId);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Control flow analysis of a single method, decides where probes are needed.<br>
+ * The method is split into basic blocks connected by edges (fall-through, jump, switch target).
+ * A block executed completely if one of its outgoing edges was taken, an edge was taken if:<br>
+ * - it carries a probe, or<br>
+ * - it is the only way into its target block and the target block executed.<br>
+ * So probes are only needed on edges into blocks with several predecessors (the method entry and
+ * exception handlers count as a predecessor) and in front of return, throw and ret.
+ * Straight line code and single entry blocks cost no probe at all.<br>
+ * Every block ends up with the set of probes proving it executed: the lines of a block and both
+ * directions of each conditional jump and each switch target are items of the ProbeLayout.<br>
+ * Limitation: a block left by an exception is not covered, its probe sits at its end.
+ * @author kt27
+ */
+public class ControlFlowAnalyzer implements Opcodes {
+    /**
+     * a block proven by more probes gets its own probe in front of its last instruction
+     */
+    static final int MAX_PROBES_PER_BLOCK = 8;
+
+    static final int FALLTHROUGH = 0;
+    static final int JUMP = 1; // taken direction of a conditional jump
+    static final int GOTO_TARGET = 2;
+    static final int SWITCH_TARGET = 3;
+    static final int JSR_TARGET = 4;
+
+    /**
+     * a basic block, from instruction first to instruction last (inclusive)
+     */
+    static class Block {
+        final int index;
+        AbstractInsnNode first;
+        AbstractInsnNode last;
+        int predecessors;
+        final List<Edge> successors = new ArrayList<>();
+        int exitProbe = -1; // probe in front of the last instruction
+        int[] probes; // probes proving the block executed
+        boolean visiting;
+
+        Block(int index) {
+            this.index = index;
+        }
+    }
+
+    static class Edge {
+        final int kind;
+        final Block target;
+        final LabelNode label; // null for a fall-through edge
+        int probe = -1;
+
+        Edge(int kind, Block target, LabelNode label) {
+            this.kind = kind;
+            this.target = target;
+            this.label = label;
+        }
+
+        /**
+         * @return  true for a direction of a conditional jump or a switch target
+         */
+        boolean isBranch() {
+            return kind == FALLTHROUGH || kind == JUMP || kind == SWITCH_TARGET;
+        }
+    }
+
+    private static final int[] NO_PROBES = new int[0];
+
+    private final MethodNode method;
+    private final ProbeLayout probeLayout;
+    final List<Block> blocks = new ArrayList<>();
+    private final Map<AbstractInsnNode, Block> blockOf = new IdentityHashMap<>();
+    private final Map<LabelNode, AbstractInsnNode> labelTarget = new IdentityHashMap<>(); // label -> next instruction
+
+    /**
+     * @param   probeLayout new probes are allocated in it
+     */
+    public ControlFlowAnalyzer(MethodNode method, ProbeLayout probeLayout) {
+        this.method = method;
+        this.probeLayout = probeLayout;
+    }
+
+    /**
+     * build blocks and edges, allocate the probes and the probe sets of all blocks
+     */
+    public void analyze() {
+        buildBlocks();
+        if (blocks.isEmpty())
+            return;
+        buildEdges();
+        placeProbes();
+        // implicit edges mostly point forward: walking backwards keeps the recursion shallow
+        for (int i = blocks.size() - 1; i >= 0; i--)
+            probes(blocks.get(i));
+    }
+
+    /**
+     * register the lines of the method and the directions of its branches into the layout.<br>
+     * a line covers the blocks holding its instructions, a line without instruction
+     * the block of the next instruction. A line spread over several blocks gets an item per block,
+     * the items of a line are adjacent
+     */
+    public void registerItems(FirstPassResult.MethodSignature signature, BranchTracker branchTracker) {
+        Map<Integer, List<int[]>> line2probes = new LinkedHashMap<>(); // line -> probes of each of its blocks
+        List<Integer> pendingLines = new ArrayList<>(); // lines without instruction so far
+        int current = -1; // line of the previous instruction
+        Block currentBlock = null;
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof LineNumberNode) {
+                pendingLines.add(((LineNumberNode) insn).line);
+            } else if (insn.getOpcode() >= 0) {
+                Block block = blockOf.get(insn);
+                if (!pendingLines.isEmpty()) {
+                    for (int line : pendingLines)
+                        addProbes(line2probes, line, block);
+                    current = pendingLines.get(pendingLines.size() - 1);
+                    pendingLines.clear();
+                } else if (current >= 0 && block != currentBlock) {
+                    addProbes(line2probes, current, block); // the line continues in the next block
+                }
+                currentBlock = block;
+            }
+        }
+        for (Map.Entry<Integer, List<int[]>> entry : line2probes.entrySet()) {
+            for (int[] probes : entry.getValue())
+                probeLayout.addItem(signature, ProbeLayout.LINE, entry.getKey(), probes);
+        }
+        for (Block block : blocks) {
+            for (Edge edge : block.successors) {
+                if (edge.isBranch() && isBranching(block.last))
+                    probeLayout.addItem(signature, ProbeLayout.BRANCH, branchTracker.createNewBranchId(signature), probes(edge));
+            }
+        }
+    }
+
+    /**
+     * blocks proven by the same probes execute together, they are one part of the line
+     */
+    private static void addProbes(Map<Integer, List<int[]>> line2probes, int line, Block block) {
+        List<int[]> parts = line2probes.computeIfAbsent(line, k -> new ArrayList<>());
+        for (int[] probes : parts) {
+            if (Arrays.equals(probes, block.probes))
+                return;
+        }
+        parts.add(block.probes);
+    }
+
+    /**
+     * split the instruction list into basic blocks: a block starts at the first instruction,
+     * at jump and switch targets, at exception handlers and behind every jump, switch, return, throw and ret
+     */
+    private void buildBlocks() {
+        List<LabelNode> pendingLabels = new ArrayList<>();
+        List<AbstractInsnNode> insns = new ArrayList<>();
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof LabelNode) {
+                pendingLabels.add((LabelNode) insn);
+            } else if (insn.getOpcode() >= 0) {
+                for (LabelNode label : pendingLabels)
+                    labelTarget.put(label, insn);
+                pendingLabels.clear();
+                insns.add(insn);
+            }
+        }
+        Map<AbstractInsnNode, Boolean> leaders = new IdentityHashMap<>();
+        for (TryCatchBlockNode tryCatch : method.tryCatchBlocks)
+            markLeader(leaders, tryCatch.handler);
+        for (int i = 0; i < insns.size(); i++) {
+            AbstractInsnNode insn = insns.get(i);
+            if (insn instanceof JumpInsnNode) {
+                markLeader(leaders, ((JumpInsnNode) insn).label);
+            } else if (insn instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode s = (TableSwitchInsnNode) insn;
+                markLeader(leaders, s.dflt);
+                for (LabelNode label : s.labels)
+                    markLeader(leaders, label);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode s = (LookupSwitchInsnNode) insn;
+                markLeader(leaders, s.dflt);
+                for (LabelNode label : s.labels)
+                    markLeader(leaders, label);
+            }
+            if (endsBlock(insn) && i + 1 < insns.size())
+                leaders.put(insns.get(i + 1), Boolean.TRUE);
+        }
+        Block block = null;
+        for (AbstractInsnNode insn : insns) {
+            if (block == null || leaders.containsKey(insn)) {
+                block = new Block(blocks.size());
+                block.first = insn;
+                blocks.add(block);
+            }
+            block.last = insn;
+            blockOf.put(insn, block);
+        }
+    }
+
+    private void markLeader(Map<AbstractInsnNode, Boolean> leaders, LabelNode label) {
+        AbstractInsnNode insn = labelTarget.get(label);
+        if (insn != null)
+            leaders.put(insn, Boolean.TRUE);
+    }
+
+    private void buildEdges() {
+        blocks.get(0).predecessors++; // method entry
+        for (TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+            Block handler = target(tryCatch.handler);
+            if (handler != null)
+                handler.predecessors++;
+        }
+        for (Block block : blocks) {
+            AbstractInsnNode last = block.last;
+            int opcode = last.getOpcode();
+            if (last instanceof JumpInsnNode) {
+                LabelNode label = ((JumpInsnNode) last).label;
+                if (opcode == GOTO) {
+                    addEdge(block, GOTO_TARGET, label);
+                } else if (opcode == JSR) {
+                    addEdge(block, JSR_TARGET, label);
+                    addFallThrough(block);
+                } else {
+                    addEdge(block, JUMP, label);
+                    addFallThrough(block);
+                }
+            } else if (last instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode s = (TableSwitchInsnNode) last;
+                addSwitchEdges(block, s.dflt, s.labels);
+            } else if (last instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode s = (LookupSwitchInsnNode) last;
+                addSwitchEdges(block, s.dflt, s.labels);
+            } else if (!isExit(opcode)) {
+                addFallThrough(block);
+            }
+        }
+    }
+
+    /**
+     * one edge per distinct target block, whatever the number of keys leading to it
+     */
+    private void addSwitchEdges(Block block, LabelNode dflt, List<LabelNode> labels) {
+        Map<Block, Boolean> seen = new HashMap<>();
+        if (seen.put(target(dflt), Boolean.TRUE) == null)
+            addEdge(block, SWITCH_TARGET, dflt);
+        for (LabelNode label : labels) {
+            if (seen.put(target(label), Boolean.TRUE) == null)
+                addEdge(block, SWITCH_TARGET, label);
+        }
+    }
+
+    private void addEdge(Block block, int kind, LabelNode label) {
+        Block target = target(label);
+        if (target == null)
+            return;
+        target.predecessors++;
+        block.successors.add(new Edge(kind, target, label));
+    }
+
+    private void addFallThrough(Block block) {
+        if (block.index + 1 >= blocks.size())
+            return; // falls off the method: invalid code, the verifier rejects it anyway
+        Block next = blocks.get(block.index + 1);
+        next.predecessors++;
+        block.successors.add(new Edge(FALLTHROUGH, next, null));
+    }
+
+    /**
+     * exits always get a probe, an edge only if its target can also be reached another way.
+     * The edge of a JSR never proves its block executed: the return point behind it does
+     */
+    private void placeProbes() {
+        for (Block block : blocks) {
+            if (isExit(block.last.getOpcode()))
+                block.exitProbe = probeLayout.newProbe();
+            for (Edge edge : block.successors) {
+                if (edge.kind != JSR_TARGET && edge.target.predecessors > 1)
+                    edge.probe = probeLayout.newProbe();
+            }
+        }
+    }
+
+    /**
+     * @return  the probes proving block executed, an empty set for unreachable code
+     */
+    int[] probes(Block block) {
+        if (block.probes != null)
+            return block.probes;
+        if (block.exitProbe >= 0)
+            return block.probes = new int[]{block.exitProbe};
+        if (block.visiting)
+            return NO_PROBES; // cycle of single entry blocks: never entered
+        block.visiting = true;
+        TreeSet<Integer> probes = new TreeSet<>();
+        for (Edge edge : block.successors) {
+            if (edge.kind == JSR_TARGET)
+                continue;
+            for (int p : probes(edge))
+                probes.add(p);
+        }
+        block.visiting = false;
+        if (probes.size() > MAX_PROBES_PER_BLOCK) {
+            block.exitProbe = probeLayout.newProbe();
+            return block.probes = new int[]{block.exitProbe};
+        }
+        return block.probes = toArray(probes);
+    }
+
+    int[] probes(Edge edge) {
+        return edge.probe >= 0 ? new int[]{edge.probe} : probes(edge.target);
+    }
+
+    /**
+     * @return  the frame in front of the instruction of label, null if there is none (class files before version 50)
+     */
+    FrameNode frameAt(LabelNode label) {
+        for (AbstractInsnNode insn = label; insn != null && insn.getOpcode() < 0; insn = insn.getNext()) {
+            if (insn instanceof FrameNode)
+                return (FrameNode) insn;
+        }
+        return null;
+    }
+
+    private Block target(LabelNode label) {
+        AbstractInsnNode insn = labelTarget.get(label);
+        return insn == null ? null : blockOf.get(insn);
+    }
+
+    private static boolean endsBlock(AbstractInsnNode insn) {
+        return insn instanceof JumpInsnNode || insn instanceof TableSwitchInsnNode
+                || insn instanceof LookupSwitchInsnNode || isExit(insn.getOpcode());
+    }
+
+    private static boolean isBranching(AbstractInsnNode insn) {
+        int opcode = insn.getOpcode();
+        return (insn instanceof JumpInsnNode && opcode != GOTO && opcode != JSR)
+                || insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode;
+    }
+
+    static boolean isExit(int opcode) {
+        return (opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW || opcode == RET;
+    }
+
+    private static int[] toArray(TreeSet<Integer> set) {
+        int[] array = new int[set.size()];
+        int i = 0;
+        for (int value : set)
+            array[i++] = value;
+        return array;
+    }
+}
@@ -0,0 +1,208 @@
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Live access to the coverage of a running JVM, without waiting for the shutdown hook.<br>
+ * Commands, each answered with a complete execution data file:<br>
+ * snapshot: static information and probes of all classes, and their hit counts in counting mode<br>
+ * reset: snapshot, then clear all probes and hit counts<br>
+ * delta: only the classes with probes hit since the previous snapshot, reset or delta, and only those probes (no hit counts)<br>
+ * Application threads are never paused: probes are read racily, a reset clears each probe by an atomic
+ * exchange so that a concurrent hit ends up in exactly one answer (see ExecutionData).
+ * The cost is a copy of the probe arrays, cheap enough for a poll every few seconds.<br>
+ * Access: a local control channel (a loopback TCP port or a Unix domain socket) taking one command line
+ * per connection, and a JMX MBean.
+ * @author kt27
+ */
+public class CoverageController implements CoverageControllerMBean {
+    public static final String SNAPSHOT = "snapshot";
+    public static final String RESET = "reset";
+    public static final String DELTA = "delta";
+    public static final String OBJECT_NAME = "coverageASM:type=CoverageController";
+
+    private static final int MAX_COMMAND = 64;
+
+    private final ProbeStripper stripper; // null unless in adaptive mode
+    private final Map<Long, long[]> sent = new HashMap<>(); // class id -> probes already answered, for delta
+
+    /**
+     * @param   stripper    the running probe stripper, its probes are put back before a reset
+     */
+    public CoverageController(ProbeStripper stripper) {
+        this.stripper = stripper;
+    }
+
+    @Override
+    public synchronized byte[] snapshot() throws IOException {
+        return encode(false, false);
+    }
+
+    @Override
+    public synchronized byte[] snapshotAndReset() throws IOException {
+        if (stripper != null)
+            stripper.restore(); // a stripped probe could not be hit again after the reset
+        return encode(true, false);
+    }
+
+    @Override
+    public synchronized byte[] delta() throws IOException {
+        return encode(false, true);
+    }
+
+    @Override
+    public void dump(String command, String file) throws IOException {
+        ExecDataWriter.writeAtomically(AgentOptions.resolveDestFile(file), execute(command));
+    }
+
+    @Override
+    public int getExecutedClassCount() {
+        return ProbeRuntime.getAllExecutionData().size();
+    }
+
+    /**
+     * @param   command snapshot, reset or delta
+     * @return  the execution data file answering the command
+     */
+    public byte[] execute(String command) throws IOException {
+        return switch (command) {
+            case SNAPSHOT -> snapshot();
+            case RESET -> snapshotAndReset();
+            case DELTA -> delta();
+            default -> throw new IllegalArgumentException("unknown command: " + command);
+        };
+    }
+
+    private byte[] encode(boolean reset, boolean delta) throws IOException {
+        Map<Long, coverageInfo> classes = new HashMap<>();
+        for (coverageInfo coverage : mainDriver.getInstrumentedClasses())
+            classes.put(coverage.classId, coverage);
+        ExecDataWriter writer = new ExecDataWriter();
+        if (!delta) {
+            for (coverageInfo coverage : classes.values())
+                writer.addClass(coverage);
+        }
+        if (reset)
+            sent.clear();
+        for (ExecutionData data : ProbeRuntime.getAllExecutionData()) {
+            long[] bits = reset ? data.snapshotAndReset() : data.snapshot();
+            long[] previous = sent.get(data.classId);
+            if (delta) {
+                long[] changed = new long[bits.length];
+                boolean any = false;
+                for (int i = 0; i < bits.length; i++) {
+                    changed[i] = previous == null ? bits[i] : bits[i] & ~previous[i];
+                    any |= changed[i] != 0;
+                }
+                if (!any)
+                    continue;
+                coverageInfo coverage = classes.get(data.classId);
+                if (coverage != null)
+                    writer.addClass(coverage);
+                writer.addProbes(data.classId, data.className, changed, data.probes.length);
+            } else {
+                writer.addProbes(data.classId, data.className, bits, data.probes.length);
+                long[] counts = reset ? data.countsAndReset() : data.counts();
+                if (counts != null)
+                    writer.addCounts(data.classId, counts);
+            }
+            if (!reset) {
+                if (previous == null)
+                    sent.put(data.classId, bits);
+                else
+                    for (int i = 0; i < bits.length; i++)
+                        previous[i] |= bits[i];
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * serve the control channel on a daemon thread
+     * @param   address a port number for a loopback TCP socket, otherwise the path of a Unix domain socket
+     */
+    public void listen(String address) throws IOException {
+        ServerSocketChannel server;
+        if (isPort(address)) {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+        } else {
+            Path path = Path.of(address);
+            Files.deleteIfExists(path); // left over by a previous JVM
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(path));
+        }
+        Thread thread = new Thread(() -> {
+            while (server.isOpen()) {
+                try (SocketChannel channel = server.accept()) {
+                    serve(channel);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("coverage: control request failed: " + e);
+                }
+            }
+        }, "coverage-control");
+        thread.setDaemon(true);
+        thread.start();
+        System.err.println("coverage: control channel on " + server.getLocalAddress());
+    }
+
+    /**
+     * one command line in, one execution data file out, then the connection is closed
+     */
+    private void serve(SocketChannel channel) throws IOException {
+        InputStream in = Channels.newInputStream(channel);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) >= 0 && b != '\n'; ) {
+            if (line.size() >= MAX_COMMAND)
+                throw new IOException("command too long");
+            line.write(b);
+        }
+        ByteBuffer answer = ByteBuffer.wrap(execute(line.toString(StandardCharsets.US_ASCII).trim()));
+        while (answer.hasRemaining())
+            channel.write(answer);
+    }
+
+    /**
+     * client side of the control channel
+     * @return  the execution data file sent by the agent
+     */
+    public static byte[] request(String address, String command) throws IOException {
+        SocketAddress target = isPort(address)
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address))
+                : UnixDomainSocketAddress.of(address);
+        try (SocketChannel channel = SocketChannel.open(target)) {
+            channel.write(ByteBuffer.wrap((command + "\n").getBytes(StandardCharsets.US_ASCII)));
+            byte[] answer = Channels.newInputStream(channel).readAllBytes();
+            if (answer.length < ExecDataWriter.HEADER_SIZE)
+                throw new IOException("no execution data received, command rejected: " + command);
+            return answer;
+        }
+    }
+
+    /**
+     * register the MBean with the platform MBean server
+     */
+    public void registerMBean() throws Exception {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    private static boolean isPort(String address) {
+        return !address.isEmpty() && address.chars().allMatch(Character::isDigit);
+    }
+}
@@ -0,0 +1,25 @@
+import java.io.IOException;
+
+/**
+ * JMX view of the CoverageController, registered as coverageASM:type=CoverageController.<br>
+ * The byte arrays are complete execution data files.
+ * @author kt27
+ */
+public interface CoverageControllerMBean {
+    byte[] snapshot() throws IOException;
+
+    byte[] snapshotAndReset() throws IOException;
+
+    byte[] delta() throws IOException;
+
+    /**
+     * @param   command snapshot, reset or delta
+     * @param   file    execution data file written by the agent JVM
+     */
+    void dump(String command, String file) throws IOException;
+
+    /**
+     * @return  number of classes that executed code so far
+     */
+    int getExecutedClassCount();
+}
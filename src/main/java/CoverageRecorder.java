@@ -1,19 +1,112 @@
 import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+import java.nio.charset.StandardCharsets;
 
 /**
  * Encapsulate the class writer.<br>
- * Used during second pass.
+ * Used right behind StaticInfoCollector in the single transformation pass.<br>
+ * Each instrumented class gets a static probe array, fetched once per method invocation into a local.<br>
+ * Probes are placed on the control flow graph of each method (see ControlFlowAnalyzer): one array store
+ * per exit and per edge into a block with several predecessors, lines and branch directions are derived from them.<br>
+ * Probes never branch, so existing (expanded) frames stay valid once the probe local is added to them,
+ * trampolines of redirected jumps repeat the frame of the original target.<br>
+ * Counting mode: the method also fetches the hit counter stripe of its thread into a second local,
+ * each probe store is followed by a counter increment (see ProbeRuntime.count).<br>
+ * Method mode: a single probe store at method entry, without local, control flow analysis or frame changes.
+ * Methods are streamed through, only the max stack may grow.<br>
+ * Classes already loaded (dynamic attach) can only be retransformed without new members: the probe array and
+ * counters are then looked up in ProbeRuntime by class id on each invocation, see ProbeRuntime.getProbes(long).
  * @author kt27
  */
 public class CoverageRecorder extends ClassVisitor implements Opcodes {
 
+    static final String PROBE_FIELD = "$cov$probes";
+    static final String PROBE_DESC = "[Z";
+    static final String INIT_METHOD = "$cov$init";
+    static final String INIT_DESC = "()[Z";
+    static final String COUNTS_METHOD = "$cov$counts";
+    static final String COUNTS_DESC = "()[J";
+    static final String COUNTER_DESC = "[J";
+
+    /**
+     * HotSpot bytecode size thresholds (defaults): MaxInlineSize, methods inlined even when not hot,
+     * FreqInlineSize, hot methods inlined, HugeMethodLimit, methods never compiled, and the class file limit
+     */
+    static final int MAX_INLINE_SIZE = 35;
+    static final int FREQ_INLINE_SIZE = 325;
+    static final int HUGE_METHOD_LIMIT = 8000;
+    static final int MAX_CODE_SIZE = 65535;
+    private static final int[] JIT_LIMITS = {MAX_INLINE_SIZE, FREQ_INLINE_SIZE, HUGE_METHOD_LIMIT, MAX_CODE_SIZE};
+    private static final int[] COMPILE_LIMITS = {HUGE_METHOD_LIMIT, MAX_CODE_SIZE};
+
+    /**
+     * probe emission of a method, from the finest to none
+     */
+    static final int EMIT_LOCAL = 0; // probe array fetched once into a local, a store per probe
+    static final int EMIT_COMPACT = 1; // no local, each store fetches the probe array itself
+    static final int EMIT_ENTRY = 2; // a single probe at method entry, lines and branches not recorded
+    static final int EMIT_NONE = 3; // no probe, the method would not fit the class file limit
+    static final String[] EMISSIONS = {"local", "compact", "entry", "none"};
+
+    /**
+     * constant pool entry of the init method name: tag CONSTANT_Utf8, u2 length, bytes
+     */
+    private static final byte[] INIT_MARKER = ("\1\0" + (char) INIT_METHOD.length() + INIT_METHOD).getBytes(StandardCharsets.ISO_8859_1);
+
     private final String className;
+    private final long classId;
+    private final FirstPassResult lineContained;
     public BranchTracker branchTracker;
+    public ProbeLayout probeLayout;
 
-    public CoverageRecorder(ClassVisitor cv, String className, BranchTracker branchTracker) {
-        super(Opcodes.ASM5, cv);
+    private boolean isInterface;
+    private int version;
+    private boolean hasCode; // whether any method has probes, before stripping
+    private final boolean[] stripped; // probes left out, null to insert all
+    private final boolean counting; // probes also count their hits
+    private final boolean methodLevel; // a single entry probe per method
+    private final boolean inlineLookup; // no member added, the probe array is looked up by class id
+    private final int[] limits; // code size thresholds a method should stay below, see chooseEmission
+    private int lineProbes; // probe stores inserted, by kind, see getLineProbes
+    private int branchProbes;
+    private int methodProbes;
+    private final int[] emissions = new int[EMISSIONS.length]; // number of methods per emission
+    private int crossedLimits; // methods pushed over a threshold they were below
+    private StringBuilder downgraded; // methods with entry or no emission, logged at the end of the class
+    private StringBuilder growth; // one CSV row per method, null unless asked for
+    private boolean wideLdc; // the constant pool is too large for ldc to reach every constant
+
+    public CoverageRecorder(ClassVisitor cv, String className, long classId, FirstPassResult lineContained,
+                            BranchTracker branchTracker, ProbeLayout probeLayout) {
+        this(cv, className, classId, lineContained, branchTracker, probeLayout, new AgentOptions(), null);
+    }
+
+    /**
+     * @param   options the instrumentation mode and whether members may be added, see AgentOptions
+     * @param   stripped    probes already hit, their stores are left out. Probe ids and the members added to
+     *                      the class stay the same as without stripping, as retransformation requires
+     */
+    public CoverageRecorder(ClassVisitor cv, String className, long classId, FirstPassResult lineContained,
+                            BranchTracker branchTracker, ProbeLayout probeLayout, AgentOptions options, boolean[] stripped) {
+        super(Opcodes.ASM9, cv);
         this.className = className;
+        this.classId = classId;
+        this.lineContained = lineContained;
         this.branchTracker = branchTracker;
+        this.probeLayout = probeLayout;
+        this.stripped = stripped;
+        this.counting = options.isCounting();
+        this.methodLevel = options.mode.equals(AgentOptions.MODE_METHOD);
+        this.inlineLookup = options.attached;
+        this.limits = options.jitLimits ? JIT_LIMITS : COMPILE_LIMITS;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        this.version = version;
+        this.isInterface = (access & ACC_INTERFACE) != 0;
+        super.visit(version, access, name, signature, superName, interfaces);
     }
 
     /**
@@ -22,64 +115,599 @@ public class CoverageRecorder extends ClassVisitor implements Opcodes {
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
         MethodVisitor mv = cv.visitMethod(access, name, desc, signature, exceptions);
-        return new methodInjector(mv, name, desc, branchTracker);
+        if (mv == null || (isInterface && version < V1_8)) // old interfaces can not hold the private init method
+            return mv;
+        if (methodLevel)
+            return new EntryProbe(mv, name, desc);
+        return new methodInjector(mv, access, name, desc, signature, exceptions);
+    }
+
+    /**
+     * @return  number of probe stores inserted on exits and on edges that are not a branch direction
+     */
+    public int getLineProbes() {
+        return lineProbes;
+    }
+
+    /**
+     * @return  number of probe stores inserted on the edges leaving a block with several successors
+     */
+    public int getBranchProbes() {
+        return branchProbes;
+    }
+
+    /**
+     * @return  number of probe stores inserted at method entry, method mode or entry emission
+     */
+    public int getMethodProbes() {
+        return methodProbes;
+    }
+
+    /**
+     * @param   emission    EMIT_LOCAL to EMIT_NONE
+     * @return  number of methods instrumented with that emission (line mode)
+     */
+    public int getMethodCount(int emission) {
+        return emissions[emission];
+    }
+
+    /**
+     * @return  number of methods whose probes pushed them over a size threshold (see chooseEmission) no emission could keep
+     */
+    public int getCrossedLimits() {
+        return crossedLimits;
+    }
+
+    /**
+     * @param   itemCount   number of constant pool entries of the class, see ClassReader.getItemCount
+     */
+    public void setConstantPoolSize(int itemCount) {
+        wideLdc = itemCount > 256;
+    }
+
+    /**
+     * collect the size of each method before and after instrumentation, see getGrowth
+     */
+    public void recordGrowth() {
+        growth = new StringBuilder();
+    }
+
+    /**
+     * @return  one line per instrumented method: class,method,descriptor,bytes before,bytes after,delta,probes,emission.
+     * Sizes are estimated from the instructions, as the class writer would encode them. Null unless recordGrowth was called
+     */
+    public String getGrowth() {
+        return growth == null ? null : growth.toString();
+    }
+
+    private boolean isLive(int probe) {
+        return probe >= 0 && (stripped == null || !stripped[probe]);
+    }
+
+    /**
+     * Append the probe array field and its init method once all methods are visited,
+     * the probe count is only known at this point. Methods left without line and branch probes are logged
+     */
+    @Override
+    public void visitEnd() {
+        if (downgraded != null)
+            System.err.println("coverage: " + className + ": lines and branches not recorded to stay within the size limits:" + downgraded);
+        if (hasCode && !inlineLookup) {
+            if (!isInterface) {
+                // interfaces can not hold a non-final static field: fetch from runtime on each invocation
+                cv.visitField(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC | ACC_TRANSIENT, PROBE_FIELD, PROBE_DESC, null, null);
+            }
+            addInitMethod();
+            if (counting)
+                addCountsMethod();
+        }
+        super.visitEnd();
+    }
+
+    /**
+     * generate: <br>
+     * private static boolean[] $cov$init() { <br>
+     *     boolean[] p = $cov$probes; <br>
+     *     if (p == null) $cov$probes = p = ProbeRuntime.getProbes(classId, className, probeCount); <br>
+     *     return p; <br>
+     * }
+     */
+    private void addInitMethod() {
+        MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, INIT_METHOD, INIT_DESC, null, null);
+        mv.visitCode();
+        if (isInterface) {
+            pushRuntimeLookup(mv);
+        } else {
+            Label done = new Label();
+            mv.visitFieldInsn(GETSTATIC, className, PROBE_FIELD, PROBE_DESC);
+            mv.visitInsn(DUP);
+            mv.visitJumpInsn(IFNONNULL, done);
+            mv.visitInsn(POP);
+            pushRuntimeLookup(mv);
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(PUTSTATIC, className, PROBE_FIELD, PROBE_DESC);
+            mv.visitLabel(done);
+            if (version >= V1_6)
+                mv.visitFrame(F_NEW, 0, new Object[0], 1, new Object[]{PROBE_DESC});
+        }
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(4, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * generate: <br>
+     * private static long[] $cov$counts() { <br>
+     *     return ProbeRuntime.getCounters(classId, className, probeCount); <br>
+     * } <br>
+     * the stripe depends on the calling thread, it can not be cached in a field
+     */
+    private void addCountsMethod() {
+        MethodVisitor mv = cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, COUNTS_METHOD, COUNTS_DESC, null, null);
+        mv.visitCode();
+        mv.visitLdcInsn(classId);
+        mv.visitLdcInsn(className);
+        pushInt(mv, probeLayout.size());
+        mv.visitMethodInsn(INVOKESTATIC, "ProbeRuntime", "getCounters", "(JLjava/lang/String;I)[J", false);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(4, 0);
+        mv.visitEnd();
+    }
+
+    private void pushRuntimeLookup(MethodVisitor mv) {
+        mv.visitLdcInsn(classId);
+        mv.visitLdcInsn(className);
+        pushInt(mv, probeLayout.size());
+        mv.visitMethodInsn(INVOKESTATIC, "ProbeRuntime", "getProbes", "(JLjava/lang/String;I)[Z", false);
+    }
+
+    /**
+     * @return  true if the class file was already instrumented, e.g. offline: it holds the init method name
+     * as a CONSTANT_Utf8 entry. Instrumenting it again would add a duplicate probe field
+     */
+    static boolean isInstrumented(byte[] classfile) {
+        outer:
+        for (int i = 10, end = classfile.length - INIT_MARKER.length; i <= end; i++) { // skip the class file header
+            for (int j = 0; j < INIT_MARKER.length; j++) {
+                if (classfile[i + j] != INIT_MARKER[j])
+                    continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return  the shortest instruction pushing an int constant
+     */
+    static AbstractInsnNode pushInt(int value) {
+        if (value >= -1 && value <= 5)
+            return new InsnNode(ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            return new IntInsnNode(BIPUSH, value);
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            return new IntInsnNode(SIPUSH, value);
+        else
+            return new LdcInsnNode(value);
+    }
+
+    /**
+     * push an int constant with the shortest instruction
+     */
+    static void pushInt(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5)
+            mv.visitInsn(ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            mv.visitIntInsn(BIPUSH, value);
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            mv.visitIntInsn(SIPUSH, value);
+        else
+            mv.visitLdcInsn(value);
     }
 
     /**
-     * Encapsulate the method visitor of class writer.<br>
-     * Override visitLineNumber method.
+     * Buffer a method, then insert the probes chosen by the control flow analysis and replay
+     * the method into the method visitor of class writer.<br>
+     * The probe array is fetched into a new local behind all existing ones, every existing frame gets it appended,
+     * in counting mode followed by the counter stripe.
      */
-    private class methodInjector extends MethodVisitor implements Opcodes {
-        private final String methodName;
-        private final String methodDesc;
-        public BranchTracker branchTracker;
+    private class methodInjector extends MethodNode {
+        private final MethodVisitor next;
+
+        public methodInjector(MethodVisitor mv, int access, String name, String desc, String signature, String[] exceptions) {
+            super(ASM9, access, name, desc, signature, exceptions);
+            this.next = mv;
+        }
 
-        public methodInjector(MethodVisitor mv, String name, String desc, BranchTracker branchTracker) {
-            super(ASM5, mv);
-            this.methodName = name;
-            this.methodDesc = desc;
-            this.branchTracker = branchTracker;
+        @Override
+        public void visitEnd() {
+            if (instructions.size() > 0)
+                insertProbes();
+            accept(next);
         }
 
         /**
          * implement the core logic <br>
-         * for each line number that invoke this method: <br>
-         * put class name, method signature, line number onto the argument before <br>
-         * inserting the method invocation of collect.<br>
-         * At last, do normal forwarding
+         * 1. analyze the blocks and edges of the method, choose how to emit its probes (see chooseEmission)<br>
+         * 2. register its lines and branch directions, or only its entry for the entry emission<br>
+         * 3. exits and fall-through edges get a probe store right in place<br>
+         * 4. taken jumps and switch targets are redirected to a trampoline at the end of the method:
+         * probe store, then a jump to the original target. The trampoline repeats the frame of the target
          */
-        @Override
-        public void visitLineNumber(int line, Label start) {
-            mv.visitLdcInsn(className);
-            mv.visitLdcInsn(methodName);
-            mv.visitLdcInsn(methodDesc);
-            mv.visitIntInsn(SIPUSH, line);
-            // now argument stack is set up, insert the method call
-            mv.visitMethodInsn(INVOKESTATIC, "mainDriver", "record", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;I)V", false);
-            super.visitLineNumber(line, start);
+        private void insertProbes() {
+            int firstProbe = probeLayout.size();
+            ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer(this, probeLayout);
+            analyzer.analyze();
+            FirstPassResult.MethodSignature signature = new FirstPassResult.MethodSignature(name, desc);
+            hasCode = true;
+            int before = codeSize(instructions, wideLdc);
+            int emission = chooseEmission(analyzer, before, firstProbe);
+            emissions[emission]++;
+            if (emission == EMIT_ENTRY || emission == EMIT_NONE) {
+                probeLayout.truncate(firstProbe); // the probes of the analysis are never registered
+                if (stripped == null) { // reported once, not on every retransformation
+                    downgraded = downgraded == null ? new StringBuilder() : downgraded.append(',');
+                    downgraded.append(' ').append(name).append(desc).append(' ').append(EMISSIONS[emission]);
+                }
+                if (emission == EMIT_ENTRY) {
+                    int probe = probeLayout.newProbe();
+                    probeLayout.addItem(signature, ProbeLayout.METHOD, 0, new int[]{probe});
+                    if (isLive(probe)) {
+                        instructions.insert(compactProbe(probe));
+                        methodProbes++;
+                    }
+                }
+                recordGrowth(before, emission, probeLayout.size() - firstProbe);
+                return;
+            }
+            analyzer.registerItems(signature, branchTracker);
+            if (!hasLiveProbe(analyzer)) {
+                recordGrowth(before, emission, probeLayout.size() - firstProbe);
+                return; // every probe hit: the original method
+            }
+            boolean local = emission == EMIT_LOCAL;
+            int probeLocal = maxLocals;
+            if (local)
+                addProbeLocals(probeLocal);
+
+            InsnList trampolines = new InsnList();
+            for (ControlFlowAnalyzer.Block block : analyzer.blocks) {
+                if (isLive(block.exitProbe)) {
+                    instructions.insertBefore(block.last, local ? probe(probeLocal, block.exitProbe) : compactProbe(block.exitProbe));
+                    lineProbes++;
+                }
+                for (ControlFlowAnalyzer.Edge edge : block.successors) {
+                    if (!isLive(edge.probe))
+                        continue;
+                    if (block.successors.size() > 1)
+                        branchProbes++;
+                    else
+                        lineProbes++;
+                    InsnList probe = local ? probe(probeLocal, edge.probe) : compactProbe(edge.probe);
+                    switch (edge.kind) {
+                        case ControlFlowAnalyzer.FALLTHROUGH -> instructions.insert(block.last, probe);
+                        case ControlFlowAnalyzer.GOTO_TARGET -> instructions.insertBefore(block.last, probe);
+                        default -> {
+                            LabelNode trampoline = new LabelNode();
+                            redirect(block.last, edge.label, trampoline);
+                            trampolines.add(trampoline);
+                            FrameNode frame = analyzer.frameAt(edge.label);
+                            if (frame != null)
+                                trampolines.add(new FrameNode(F_NEW, frame.local.size(), frame.local.toArray(),
+                                        frame.stack.size(), frame.stack.toArray()));
+                            trampolines.add(probe);
+                            trampolines.add(new JumpInsnNode(GOTO, edge.label));
+                        }
+                    }
+                }
+            }
+            instructions.add(trampolines);
+
+            if (local) {
+                InsnList prologue = probesLookup();
+                prologue.add(new VarInsnNode(ASTORE, probeLocal));
+                if (counting) {
+                    prologue.add(countersLookup());
+                    prologue.add(new VarInsnNode(ASTORE, probeLocal + 1));
+                }
+                instructions.insert(prologue);
+            }
+            recordGrowth(before, emission, probeLayout.size() - firstProbe);
+        }
+
+        /**
+         * Probes add bytecode, which can push a method over a size threshold of the JIT or of the class file.
+         * The thresholds are the compilation and class file limits, with jitlimits also the inlining limits.
+         * The thresholds the method is below are tried from the smallest: the finest emission keeping the method
+         * below it wins. The local emission is the default, the compact one is taken for a single probe
+         * (smaller, no local, no frame change) and when the local one does not fit. If only the entry probe fits,
+         * the method records its entry instead of lines and branches. A threshold that no emission keeps is crossed,
+         * the next one is tried. A method that would exceed the class file limit keeps its original code.<br>
+         * The decision does not depend on stripped probes: a retransformation keeps the probe layout
+         * @param   before  estimated code size of the method
+         * @param   firstProbe  probe id the entry probe would get
+         */
+        private int chooseEmission(ControlFlowAnalyzer analyzer, int before, int firstProbe) {
+            int probeLocal = maxLocals;
+            int localSize = before + lookupSize() + varSize(probeLocal) + (counting ? lookupSize() + varSize(probeLocal + 1) : 0);
+            int compactSize = before;
+            int probes = 0;
+            for (ControlFlowAnalyzer.Block block : analyzer.blocks) {
+                if (block.exitProbe >= 0) {
+                    localSize += storeSize(probeLocal, block.exitProbe);
+                    compactSize += compactStoreSize(block.exitProbe);
+                    probes++;
+                }
+                for (ControlFlowAnalyzer.Edge edge : block.successors) {
+                    if (edge.probe < 0)
+                        continue;
+                    int jump = edge.kind == ControlFlowAnalyzer.FALLTHROUGH || edge.kind == ControlFlowAnalyzer.GOTO_TARGET ? 0 : 3; // trampoline goto
+                    localSize += storeSize(probeLocal, edge.probe) + jump;
+                    compactSize += compactStoreSize(edge.probe) + jump;
+                    probes++;
+                }
+            }
+            int entrySize = before + compactStoreSize(firstProbe);
+            int fine = probes == 1 && compactSize <= localSize ? EMIT_COMPACT : EMIT_LOCAL;
+            int fineSize = fine == EMIT_COMPACT ? compactSize : localSize;
+            boolean below = true; // no threshold crossed yet
+            for (int limit : limits) {
+                if (before > limit)
+                    continue;
+                int emission = fineSize <= limit ? fine
+                        : compactSize <= limit ? EMIT_COMPACT
+                        : entrySize <= limit ? EMIT_ENTRY
+                        : -1;
+                if (emission >= 0) {
+                    if (!below)
+                        crossedLimits++;
+                    return emission;
+                }
+                below = false;
+            }
+            return EMIT_NONE;
+        }
+
+        private void recordGrowth(int before, int emission, int probes) {
+            if (growth == null)
+                return;
+            int after = codeSize(instructions, wideLdc);
+            growth.append(className).append(',').append(name).append(',').append(desc).append(',')
+                    .append(before).append(',').append(after).append(',').append(after - before).append(',')
+                    .append(probes).append(',').append(EMISSIONS[emission]).append('\n');
+        }
+
+        private boolean hasLiveProbe(ControlFlowAnalyzer analyzer) {
+            for (ControlFlowAnalyzer.Block block : analyzer.blocks) {
+                if (isLive(block.exitProbe))
+                    return true;
+                for (ControlFlowAnalyzer.Edge edge : block.successors) {
+                    if (isLive(edge.probe))
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * append the probe local (and the counter local) to the locals of every frame, padded with TOP
+         */
+        private void addProbeLocals(int probeLocal) {
+            for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                if (!(insn instanceof FrameNode))
+                    continue;
+                FrameNode frame = (FrameNode) insn;
+                int slots = 0;
+                for (Object type : frame.local)
+                    slots += type == LONG || type == DOUBLE ? 2 : 1;
+                for (; slots < probeLocal; slots++)
+                    frame.local.add(TOP);
+                frame.local.add(PROBE_DESC);
+                if (counting)
+                    frame.local.add(COUNTER_DESC);
+            }
+        }
+
+        /**
+         * point every reference to target of the jump or switch instruction at trampoline
+         */
+        private void redirect(AbstractInsnNode insn, LabelNode target, LabelNode trampoline) {
+            if (insn instanceof JumpInsnNode) {
+                ((JumpInsnNode) insn).label = trampoline;
+            } else if (insn instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode s = (TableSwitchInsnNode) insn;
+                s.dflt = s.dflt == target ? trampoline : s.dflt;
+                s.labels.replaceAll(label -> label == target ? trampoline : label);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode s = (LookupSwitchInsnNode) insn;
+                s.dflt = s.dflt == target ? trampoline : s.dflt;
+                s.labels.replaceAll(label -> label == target ? trampoline : label);
+            }
+        }
+
+        /**
+         * @return  probes[probeId] = true, in counting mode followed by ProbeRuntime.count(counters, probeId)
+         */
+        private InsnList probe(int probeLocal, int probeId) {
+            InsnList probe = new InsnList();
+            probe.add(new VarInsnNode(ALOAD, probeLocal));
+            probe.add(pushInt(probeId));
+            probe.add(new InsnNode(ICONST_1));
+            probe.add(new InsnNode(BASTORE));
+            if (counting) {
+                probe.add(new VarInsnNode(ALOAD, probeLocal + 1));
+                probe.add(pushInt(probeId));
+                probe.add(new MethodInsnNode(INVOKESTATIC, "ProbeRuntime", "count", "([JI)V", false));
+            }
+            return probe;
+        }
+        /**
+         * @return  lookup()[probeId] = true, without local. In counting mode followed by
+         * ProbeRuntime.count(counters lookup, probeId)
+         */
+        private InsnList compactProbe(int probeId) {
+            InsnList probe = probesLookup();
+            probe.add(pushInt(probeId));
+            probe.add(new InsnNode(ICONST_1));
+            probe.add(new InsnNode(BASTORE));
+            if (counting) {
+                probe.add(countersLookup());
+                probe.add(pushInt(probeId));
+                probe.add(new MethodInsnNode(INVOKESTATIC, "ProbeRuntime", "count", "([JI)V", false));
+            }
+            return probe;
+        }
+
+        /**
+         * @return  estimated size of a probe store of the local emission
+         */
+        private int storeSize(int probeLocal, int probeId) {
+            int size = varSize(probeLocal) + pushSize(probeId) + 2;
+            return counting ? size + varSize(probeLocal + 1) + pushSize(probeId) + 3 : size;
         }
 
         /**
-         * implement the core logic of branch coverage
-         * for each valid jump instruction that invoke this method:<br>
-         * register current branch with the given global branch tracker, <br>
-         * put class name, method signature, assigned branch id onto the argument stack before <br>
-         * inserting the method invocation of recordBranch
+         * @return  estimated size of a probe store of the compact emission
          */
+        private int compactStoreSize(int probeId) {
+            int size = lookupSize() + pushSize(probeId) + 2;
+            return counting ? size + lookupSize() + pushSize(probeId) + 3 : size;
+        }
+    }
+
+    /**
+     * @return  the instructions pushing the probe array of the class
+     */
+    private InsnList probesLookup() {
+        InsnList lookup = new InsnList();
+        if (inlineLookup) {
+            lookup.add(new LdcInsnNode(classId));
+            lookup.add(new MethodInsnNode(INVOKESTATIC, "ProbeRuntime", "getProbes", "(J)[Z", false));
+        } else {
+            lookup.add(new MethodInsnNode(INVOKESTATIC, className, INIT_METHOD, INIT_DESC, isInterface));
+        }
+        return lookup;
+    }
+
+    /**
+     * @return  the instructions pushing the counter stripe of the current thread
+     */
+    private InsnList countersLookup() {
+        InsnList lookup = new InsnList();
+        if (inlineLookup) {
+            lookup.add(new LdcInsnNode(classId));
+            lookup.add(new MethodInsnNode(INVOKESTATIC, "ProbeRuntime", "getCounters", "(J)[J", false));
+        } else {
+            lookup.add(new MethodInsnNode(INVOKESTATIC, className, COUNTS_METHOD, COUNTS_DESC, isInterface));
+        }
+        return lookup;
+    }
+
+    /**
+     * @return  size of probesLookup or countersLookup: invokestatic, behind an ldc2_w of the class id without members
+     */
+    private int lookupSize() {
+        return inlineLookup ? 6 : 3;
+    }
+
+    /**
+     * @return  size of a load or store of local var
+     */
+    private static int varSize(int var) {
+        return var <= 3 ? 1 : var <= 255 ? 2 : 4;
+    }
+
+    /**
+     * @return  size of the instruction chosen by pushInt
+     */
+    private static int pushSize(int value) {
+        if (value >= -1 && value <= 5)
+            return 1;
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            return 2;
+        else
+            return 3; // sipush, or ldc_w to be safe
+    }
+
+    /**
+     * Estimated size of the code of a method as the class writer encodes it. Exact except for jumps too far
+     * for a 2 byte offset, and for ldc in a large constant pool: counted as ldc_w, the upper bound
+     * @param   wideLdc true if the constant pool has entries ldc can not address
+     * @return  code size in bytes
+     */
+    static int codeSize(InsnList instructions, boolean wideLdc) {
+        int size = 0;
+        for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            int opcode = insn.getOpcode();
+            if (opcode < 0)
+                continue; // label, line number, frame
+            switch (insn.getType()) {
+                case AbstractInsnNode.INT_INSN -> size += opcode == SIPUSH ? 3 : 2;
+                case AbstractInsnNode.VAR_INSN -> {
+                    int var = ((VarInsnNode) insn).var;
+                    size += opcode == RET ? (var <= 255 ? 2 : 4) : varSize(var);
+                }
+                case AbstractInsnNode.TYPE_INSN, AbstractInsnNode.FIELD_INSN, AbstractInsnNode.JUMP_INSN -> size += 3;
+                case AbstractInsnNode.METHOD_INSN -> size += opcode == INVOKEINTERFACE ? 5 : 3;
+                case AbstractInsnNode.INVOKE_DYNAMIC_INSN -> size += 5;
+                case AbstractInsnNode.LDC_INSN -> {
+                    Object cst = ((LdcInsnNode) insn).cst;
+                    size += cst instanceof Long || cst instanceof Double || wideLdc ? 3 : 2;
+                }
+                case AbstractInsnNode.IINC_INSN -> {
+                    IincInsnNode iinc = (IincInsnNode) insn;
+                    size += iinc.var > 255 || iinc.incr < Byte.MIN_VALUE || iinc.incr > Byte.MAX_VALUE ? 6 : 3;
+                }
+                case AbstractInsnNode.TABLESWITCH_INSN -> // opcode, padding to 4 bytes, default, low, high, offsets
+                        size += 1 + (3 - (size & 3)) + 12 + 4 * ((TableSwitchInsnNode) insn).labels.size();
+                case AbstractInsnNode.LOOKUPSWITCH_INSN -> // opcode, padding to 4 bytes, default, npairs, pairs
+                        size += 1 + (3 - (size & 3)) + 8 + 8 * ((LookupSwitchInsnNode) insn).labels.size();
+                case AbstractInsnNode.MULTIANEWARRAY_INSN -> size += 4;
+                default -> size += 1;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Method mode: $cov$init()[probeId] = true in front of the first instruction,
+     * ProbeRuntime.getProbes(classId)[probeId] = true without added members.
+     * The stack is empty at method entry, the store needs 3 slots. No local is added, so frames stay as they are
+     */
+    private class EntryProbe extends MethodVisitor {
+        private final FirstPassResult.MethodSignature method;
+        private boolean live;
+
+        EntryProbe(MethodVisitor mv, String name, String desc) {
+            super(ASM9, mv);
+            this.method = new FirstPassResult.MethodSignature(name, desc);
+        }
+
         @Override
-        public void visitJumpInsn(int opcode, Label label) {
-            if (opcode != Opcodes.GOTO && opcode != Opcodes.JSR) { // do not consider the two kind of jump instructions
-                // record the existence of current branch
-                FirstPassResult.MethodSignature method = new FirstPassResult.MethodSignature(methodName, methodDesc);
-                int branchId = branchTracker.createNewBranchId(method);
-                // Insert instructions to track branch execution
-                mv.visitLdcInsn(className);
-                mv.visitLdcInsn(methodName);
-                mv.visitLdcInsn(methodDesc);
-                mv.visitIntInsn(SIPUSH, branchId); // set up argument
-                mv.visitMethodInsn(INVOKESTATIC, "mainDriver", "recordBranch", "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;I)V", false);
+        public void visitCode() {
+            super.visitCode();
+            int probe = probeLayout.newProbe();
+            lineContained.addMethod(method);
+            probeLayout.addItem(method, ProbeLayout.METHOD, 0, new int[]{probe});
+            hasCode = true;
+            live = isLive(probe);
+            if (!live)
+                return;
+            if (inlineLookup) {
+                mv.visitLdcInsn(classId);
+                mv.visitMethodInsn(INVOKESTATIC, "ProbeRuntime", "getProbes", "(J)[Z", false);
+            } else {
+                mv.visitMethodInsn(INVOKESTATIC, className, INIT_METHOD, INIT_DESC, isInterface);
             }
-            mv.visitJumpInsn(opcode, label);
+            pushInt(mv, probe);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(BASTORE);
+            methodProbes++;
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            super.visitMaxs(live ? Math.max(maxStack, 3) : maxStack, maxLocals);
         }
     }
 }
@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-test coverage: the probes hit between startSession and endSession are attributed to one test.<br>
+ * Sessions do not copy or walk the coverage model. Starting a session clears the probe arrays, ending it
+ * clears them again and takes the hits out as bitsets, only for the classes that ran (see ExecutionData.drain).
+ * The probes taken out still count for the overall execution data file.<br>
+ * Each ended session is appended to the test index file as a session block, followed by the class blocks
+ * of classes seen for the first time, so the file can be queried by class and line (see TestIndex)
+ * even if the JVM does not exit normally.<br>
+ * Sessions are per JVM: tests running in parallel inside one JVM share the open session.
+ * Starting a session ends the open one. Adaptive mode is stopped by the first session,
+ * a stripped probe could not be attributed to later tests.<br>
+ * Without the agent (offline instrumented classes) sessions are recorded only if the system property
+ * coverage.testfile is set, class blocks then come from the offline metadata file.
+ * @author kt27
+ */
+public class CoverageSession {
+
+    private static Path file; // set by the agent or from coverage.testfile, null: sessions are ignored
+    private static ProbeStripper stripper; // running in adaptive mode, stopped by the first session
+    private static FileChannel channel;
+    private static String current; // test of the open session
+    private static final Set<Long> written = new HashSet<>(); // classes whose class block is in the file
+    private static int sessions;
+
+    static {
+        String property = System.getProperty("coverage.testfile");
+        if (property != null)
+            file = AgentOptions.resolveDestFile(property);
+    }
+
+    /**
+     * called by the agent at startup
+     * @param   testFile    the test index file
+     * @param   adaptiveStripper    the probe stripper of the adaptive mode, null if off
+     */
+    static synchronized void configure(Path testFile, ProbeStripper adaptiveStripper) {
+        file = testFile;
+        stripper = adaptiveStripper;
+    }
+
+    /**
+     * start attributing probe hits to testId, ends the open session if any
+     */
+    public static synchronized void startSession(String testId) {
+        if (file == null)
+            return;
+        if (current != null)
+            endSession();
+        if (channel == null && !open())
+            return;
+        // hits since the previous session belong to no test, e.g. static initializers or @BeforeAll
+        for (ExecutionData data : ProbeRuntime.getAllExecutionData())
+            data.drain();
+        current = testId;
+    }
+
+    /**
+     * end the open session and append its hits to the test index file
+     */
+    public static synchronized void endSession() {
+        if (current == null)
+            return;
+        String testId = current;
+        current = null;
+        List<ExecutionData> hit = new ArrayList<>();
+        List<long[]> bits = new ArrayList<>();
+        for (ExecutionData data : ProbeRuntime.getAllExecutionData()) {
+            long[] drained = data.drain();
+            if (drained != null) {
+                hit.add(data);
+                bits.add(drained);
+            }
+        }
+        long[] classIds = new long[hit.size()];
+        int[] probeCounts = new int[hit.size()];
+        for (int i = 0; i < classIds.length; i++) {
+            classIds[i] = hit.get(i).classId;
+            probeCounts[i] = hit.get(i).probes.length;
+        }
+        ExecDataWriter writer = new ExecDataWriter();
+        writer.addSession(testId, classIds, probeCounts, bits.toArray(new long[0][]));
+        if (ProbeRuntime.agentLoaded)
+            addNewClasses(writer, classIds);
+        try {
+            writer.appendTo(channel);
+            sessions++;
+        } catch (IOException e) {
+            System.err.println("coverage: failed to write " + file + ", sessions disabled: " + e);
+            close();
+            file = null;
+        }
+    }
+
+    /**
+     * @return  the test of the open session, null if none
+     */
+    public static synchronized String currentSession() {
+        return current;
+    }
+
+    /**
+     * @return  number of sessions written so far
+     */
+    public static synchronized int getSessionCount() {
+        return sessions;
+    }
+
+    private static void addNewClasses(ExecDataWriter writer, long[] classIds) {
+        Map<Long, coverageInfo> classes = null;
+        for (long classId : classIds) {
+            if (written.contains(classId))
+                continue;
+            if (classes == null) {
+                classes = new HashMap<>();
+                for (coverageInfo coverage : mainDriver.getInstrumentedClasses())
+                    classes.put(coverage.classId, coverage);
+            }
+            coverageInfo coverage = classes.get(classId);
+            if (coverage != null) {
+                writer.addClass(coverage);
+                written.add(classId);
+            }
+        }
+    }
+
+    private static boolean open() {
+        if (stripper != null) {
+            System.err.println("coverage: coverage sessions started, adaptive mode stopped");
+            stripper.stop();
+            stripper = null;
+        }
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            ExecDataWriter.writeHeader(channel);
+        } catch (IOException e) {
+            System.err.println("coverage: failed to open " + file + ", sessions disabled: " + e);
+            close();
+            file = null;
+            return false;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (CoverageSession.class) {
+                endSession();
+                close();
+            }
+        }, "coverage-session-exit"));
+        return true;
+    }
+
+    private static void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to write
+        }
+        channel = null;
+    }
+}
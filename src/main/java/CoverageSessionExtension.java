@@ -0,0 +1,23 @@
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+/**
+ * JUnit 5 extension opening a coverage session around each test, see CoverageSession.<br>
+ * Registered as a service: with junit.jupiter.extensions.autodetection.enabled=true JUnit picks it up
+ * from the agent jar on the test class path, otherwise use @ExtendWith(CoverageSessionExtension.class).<br>
+ * The session spans @BeforeEach and @AfterEach methods, the test id is className#methodName.
+ * @author kt27
+ */
+public class CoverageSessionExtension implements BeforeEachCallback, AfterEachCallback {
+
+    @Override
+    public void beforeEach(ExtensionContext context) {
+        CoverageSession.startSession(context.getRequiredTestClass().getName() + "#" + context.getRequiredTestMethod().getName());
+    }
+
+    @Override
+    public void afterEach(ExtensionContext context) {
+        CoverageSession.endSession();
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Merge of execution data files from many JVMs into a single file.<br>
+ * Files are memory mapped and scanned block by block without decoding the static information:
+ * the state kept per class is its first class block (as bytes), the union of its hit probes and,
+ * in counting mode, the sum of its hit counts,
+ * so memory depends on the number of distinct classes, not on the number of files.<br>
+ * Files are scanned in parallel, each class has its own merge state and lock: workers only meet
+ * when they merge the same class at the same time.<br>
+ * Consistency checks, reported as conflicts:<br>
+ * a class block differing from an earlier one with the same class id (instrumented differently: another
+ * agent version, other probe layout or branch ids), its probes from that file are left out<br>
+ * a probes or counts block whose probe count does not match the class, left out<br>
+ * a class name with several class ids (instrumented from different class files), all versions are kept<br>
+ * Session blocks and cached class files are not merged, test index files are queried together instead (see TestIndex).
+ * @author kt27
+ */
+public class ExecDataMerger {
+
+    /**
+     * merge state of one class
+     */
+    private static class MergedClass {
+        final long classId;
+        String className;
+        byte[] classBlock; // first class block seen, with its type byte, null if none yet
+        int probeCount = -1; // -1 until a class or probes block fixes it
+        long[] bits; // union of the hit probes, null if no probes block yet
+        long[] counts; // sum of the hit counts, null if no counts block yet
+
+        MergedClass(long classId) {
+            this.classId = classId;
+        }
+    }
+
+    private final Map<Long, MergedClass> classes = new ConcurrentHashMap<>();
+    private final Queue<String> conflicts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger files = new AtomicInteger();
+    private final AtomicInteger skippedBlocks = new AtomicInteger();
+
+    /**
+     * merge files into this merger, directories are searched for *.exec files
+     * @param   parallelism number of files scanned at the same time
+     */
+    public ExecDataMerger merge(Collection<Path> inputs, int parallelism) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        for (Path input : inputs) {
+            if (Files.isDirectory(input)) {
+                try (Stream<Path> walk = Files.walk(input)) {
+                    walk.filter(p -> p.toString().endsWith(".exec") && Files.isRegularFile(p)).sorted().forEach(paths::add);
+                }
+            } else {
+                paths.add(input);
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Path path : paths) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        merge(path);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        return this;
+    }
+
+    /**
+     * merge a single file into this merger
+     */
+    public void merge(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < ExecDataWriter.HEADER_SIZE || buffer.getInt() != ExecDataWriter.MAGIC)
+                throw new IOException("not an execution data file: " + file);
+            short version = buffer.getShort();
+            if (version != ExecDataWriter.VERSION)
+                throw new IOException("unsupported execution data version " + version + ": " + file);
+            Set<Long> rejected = new HashSet<>(); // classes of this file whose probes must be left out
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                byte type = buffer.get();
+                int end = ExecDataReader.blockEnd(buffer, type);
+                switch (type) {
+                    case ExecDataWriter.BLOCK_CLASS -> mergeClass(file, buffer, start, end, rejected);
+                    case ExecDataWriter.BLOCK_PROBES -> mergeProbes(file, buffer, rejected);
+                    case ExecDataWriter.BLOCK_COUNTS -> mergeCounts(file, buffer, rejected);
+                    default -> skippedBlocks.incrementAndGet();
+                }
+                buffer.position(end);
+            }
+        }
+        files.incrementAndGet();
+    }
+
+    private void mergeClass(Path file, ByteBuffer buffer, int start, int end, Set<Long> rejected) {
+        long classId = buffer.getLong(start + 1);
+        MergedClass merged = classes.computeIfAbsent(classId, MergedClass::new);
+        ByteBuffer block = buffer.slice(start, end - start);
+        int nameLength = buffer.getInt(start + 9);
+        int probeCount = buffer.getInt(start + 13 + nameLength);
+        synchronized (merged) {
+            if (merged.classBlock == null) {
+                if (merged.probeCount >= 0 && merged.probeCount != probeCount) {
+                    conflict(file, className(buffer, start + 9), classId, "probe count " + probeCount + " instead of " + merged.probeCount);
+                    rejected.add(classId);
+                    return;
+                }
+                merged.classBlock = new byte[end - start];
+                block.get(merged.classBlock);
+                merged.className = className(buffer, start + 9);
+                merged.probeCount = probeCount;
+            } else if (!block.equals(ByteBuffer.wrap(merged.classBlock))) {
+                conflict(file, merged.className, classId, "instrumented differently: other probe layout, lines or branch ids");
+                rejected.add(classId);
+            }
+        }
+    }
+
+    private void mergeProbes(Path file, ByteBuffer buffer, Set<Long> rejected) {
+        long classId = buffer.getLong();
+        int nameLength = buffer.getInt();
+        int pos = buffer.position() + nameLength;
+        int probeCount = buffer.getInt(pos);
+        pos += 4;
+        if (rejected.contains(classId))
+            return;
+        MergedClass merged = classes.computeIfAbsent(classId, MergedClass::new);
+        synchronized (merged) {
+            if (merged.probeCount >= 0 && merged.probeCount != probeCount) {
+                conflict(file, className(buffer, buffer.position() - 4), classId, "probe count " + probeCount + " instead of " + merged.probeCount);
+                return;
+            }
+            if (merged.className == null)
+                merged.className = className(buffer, buffer.position() - 4);
+            merged.probeCount = probeCount;
+            if (merged.bits == null)
+                merged.bits = new long[(probeCount + 63) >>> 6];
+            long[] bits = merged.bits;
+            for (int i = 0; i < bits.length; i++, pos += 8)
+                bits[i] |= buffer.getLong(pos);
+        }
+    }
+
+    private void mergeCounts(Path file, ByteBuffer buffer, Set<Long> rejected) {
+        long classId = buffer.getLong();
+        int probeCount = buffer.getInt();
+        int pos = buffer.position();
+        if (rejected.contains(classId))
+            return;
+        MergedClass merged = classes.computeIfAbsent(classId, MergedClass::new);
+        synchronized (merged) {
+            if (merged.probeCount >= 0 && merged.probeCount != probeCount) {
+                conflict(file, merged.className, classId, "hit counts of " + probeCount + " probes instead of " + merged.probeCount);
+                return;
+            }
+            merged.probeCount = probeCount;
+            if (merged.counts == null)
+                merged.counts = new long[probeCount];
+            long[] counts = merged.counts;
+            for (int i = 0; i < counts.length; i++, pos += 8)
+                counts[i] += buffer.getLong(pos);
+        }
+    }
+
+    private static String className(ByteBuffer buffer, int pos) {
+        byte[] name = new byte[buffer.getInt(pos)];
+        buffer.get(pos + 4, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private void conflict(Path file, String className, long classId, String reason) {
+        conflicts.add(file + ": " + className + " (" + Long.toHexString(classId) + ") " + reason);
+    }
+
+    /**
+     * write the merged data: class blocks, then probes blocks, then counts blocks, each ordered by class name
+     */
+    public void write(Path file) throws IOException {
+        List<MergedClass> sorted = new ArrayList<>(classes.values());
+        sorted.sort(Comparator.comparing((MergedClass m) -> m.className == null ? "" : m.className)
+                .thenComparingLong(m -> m.classId));
+        ExecDataWriter writer = new ExecDataWriter();
+        for (MergedClass merged : sorted) {
+            if (merged.classBlock != null)
+                writer.addEncodedBlock(merged.classBlock);
+        }
+        for (MergedClass merged : sorted) {
+            if (merged.bits != null)
+                writer.addProbes(merged.classId, merged.className, merged.bits, merged.probeCount);
+        }
+        for (MergedClass merged : sorted) {
+            if (merged.counts != null)
+                writer.addCounts(merged.classId, merged.counts);
+        }
+        writer.write(file);
+    }
+
+    /**
+     * @return  the inconsistencies found so far, see the class comment
+     */
+    public List<String> getConflicts() {
+        List<String> result = new ArrayList<>(conflicts);
+        Map<String, Integer> versions = new HashMap<>();
+        for (MergedClass merged : classes.values()) {
+            if (merged.className != null)
+                versions.merge(merged.className, 1, Integer::sum);
+        }
+        for (Map.Entry<String, Integer> entry : versions.entrySet()) {
+            if (entry.getValue() > 1)
+                result.add(entry.getKey() + ": " + entry.getValue() + " class ids, instrumented from different class files");
+        }
+        return result;
+    }
+
+    public int getFileCount() {
+        return files.get();
+    }
+
+    public int getClassCount() {
+        return classes.size();
+    }
+
+    /**
+     * @return  number of session and class file blocks left out
+     */
+    public int getSkippedBlockCount() {
+        return skippedBlocks.get();
+    }
+}
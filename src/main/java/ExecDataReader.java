@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reader of the binary execution data format written by ExecDataWriter.<br>
+ * Files are memory mapped and decoded block by block into a visitor.<br>
+ * read() loads any number of files back into the coverageInfo / BranchTracker model:
+ * class blocks and probes blocks may come from different files, probes of the same class and probe layout
+ * are united, hit counts of the same class are added up.
+ * @author kt27
+ */
+public class ExecDataReader {
+
+    /**
+     * receiver of the decoded blocks, in file order
+     */
+    public interface Visitor {
+        /**
+         * @param   coverage    static information of a class, nothing covered yet
+         */
+        void visitClass(coverageInfo coverage);
+
+        /**
+         * @param   bits    bitset of the hit probes, bit i of word i / 64 is probe i
+         */
+        void visitProbes(long classId, String className, int probeCount, long[] bits);
+
+        /**
+         * @param   counts  hit count per probe, only present in counting mode
+         */
+        default void visitCounts(long classId, long[] counts) {
+        }
+
+        /**
+         * @param   classfile   the instrumented class file, only present in cache entries
+         */
+        default void visitClassFile(long classId, byte[] classfile) {
+        }
+
+        /**
+         * @param   testId  the test the session was started for
+         * @param   classIds    classes with a probe hit during the session
+         * @param   probeCounts probe count per class
+         * @param   bits    hit probes per class, bit i of word i / 64 is probe i
+         */
+        default void visitSession(String testId, long[] classIds, int[] probeCounts, long[][] bits) {
+        }
+    }
+
+    /**
+     * decode all blocks of file into visitor
+     * @throws  IOException if the file is not an execution data file or of an unsupported version
+     */
+    public static void accept(Path file, Visitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < ExecDataWriter.HEADER_SIZE || buffer.getInt() != ExecDataWriter.MAGIC)
+                throw new IOException("not an execution data file: " + file);
+            short version = buffer.getShort();
+            if (version != ExecDataWriter.VERSION)
+                throw new IOException("unsupported execution data version " + version + ": " + file);
+            while (buffer.hasRemaining()) {
+                byte type = buffer.get();
+                switch (type) {
+                    case ExecDataWriter.BLOCK_CLASS -> visitor.visitClass(readClass(buffer));
+                    case ExecDataWriter.BLOCK_PROBES -> readProbes(buffer, visitor);
+                    case ExecDataWriter.BLOCK_CLASSFILE -> readClassFile(buffer, visitor);
+                    case ExecDataWriter.BLOCK_SESSION -> readSession(buffer, visitor);
+                    case ExecDataWriter.BLOCK_COUNTS -> readCounts(buffer, visitor);
+                    default -> throw new IOException("unknown block type " + type + " in " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * load files into the coverage model.<br>
+     * Probes of a class recorded with another probe layout (another mode, e.g. count or method, of the same
+     * original bytes) can not be interpreted: their blocks are skipped and reported on stderr as a conflict,
+     * as the merger does
+     * @return  mapping from class id to the coverage of that class, probes already folded in
+     */
+    public static Map<Long, coverageInfo> read(Collection<Path> files) throws IOException {
+        Map<Long, coverageInfo> classes = new HashMap<>();
+        Map<Long, Map<Integer, long[]>> probes = new HashMap<>(); // class id -> probe count -> united bits
+        Map<Long, Map<Integer, String>> origins = new HashMap<>(); // class id -> probe count -> first file, for conflicts
+        Map<Long, long[]> counts = new HashMap<>();
+        Path[] current = new Path[1];
+        Visitor visitor = new Visitor() {
+            @Override
+            public void visitClass(coverageInfo coverage) {
+                classes.putIfAbsent(coverage.classId, coverage);
+            }
+
+            @Override
+            public void visitProbes(long classId, String className, int probeCount, long[] bits) {
+                long[] merged = probes.computeIfAbsent(classId, k -> new HashMap<>()).putIfAbsent(probeCount, bits);
+                if (merged != null) {
+                    for (int i = 0; i < merged.length && i < bits.length; i++)
+                        merged[i] |= bits[i];
+                } else {
+                    origins.computeIfAbsent(classId, k -> new HashMap<>()).put(probeCount, current[0] + ": " + className);
+                }
+            }
+
+            @Override
+            public void visitCounts(long classId, long[] classCounts) {
+                long[] merged = counts.putIfAbsent(classId, classCounts);
+                if (merged != null) {
+                    for (int i = 0; i < merged.length && i < classCounts.length; i++)
+                        merged[i] += classCounts[i];
+                }
+            }
+        };
+        for (Path file : files) {
+            current[0] = file;
+            accept(file, visitor);
+        }
+        for (Map.Entry<Long, Map<Integer, long[]>> entry : probes.entrySet()) {
+            coverageInfo coverage = classes.get(entry.getKey());
+            if (coverage == null)
+                continue; // execution data without static information can not be interpreted
+            int probeCount = coverage.probeLayout.size();
+            for (Map.Entry<Integer, long[]> layout : entry.getValue().entrySet()) {
+                if (layout.getKey() == probeCount)
+                    coverage.collect(toProbes(layout.getValue(), probeCount));
+                else
+                    System.err.println("coverage: conflict: " + origins.get(entry.getKey()).get(layout.getKey()) + " ("
+                            + Long.toHexString(entry.getKey()) + ") probe count " + layout.getKey() + " instead of " + probeCount);
+            }
+        }
+        for (Map.Entry<Long, long[]> entry : counts.entrySet()) {
+            coverageInfo coverage = classes.get(entry.getKey());
+            if (coverage != null && entry.getValue().length == coverage.probeLayout.size())
+                coverage.collectCounts(entry.getValue());
+        }
+        return classes;
+    }
+
+    /**
+     * find the end of a block without decoding it
+     * @param   buffer  positioned right after the block type, the position is not changed
+     * @param   type    the block type
+     * @return  the position right after the block
+     */
+    static int blockEnd(ByteBuffer buffer, byte type) throws IOException {
+        int pos = buffer.position();
+        switch (type) {
+            case ExecDataWriter.BLOCK_CLASS -> {
+                pos += 8;
+                pos += 4 + buffer.getInt(pos); // class name
+                pos += 4;
+                int methodCount = buffer.getInt(pos);
+                pos += 4;
+                for (int m = 0; m < methodCount; m++) {
+                    pos += 4 + buffer.getInt(pos); // name
+                    pos += 4 + buffer.getInt(pos); // desc
+                    pos += 4 + 4 * buffer.getInt(pos); // lines
+                    pos += 4; // branch count
+                }
+                int itemCount = buffer.getInt(pos);
+                pos += 4;
+                for (int i = 0; i < itemCount; i++) {
+                    pos += 4 + 1 + 4;
+                    pos += 4 + 4 * buffer.getInt(pos); // probes
+                }
+            }
+            case ExecDataWriter.BLOCK_PROBES -> {
+                pos += 8;
+                pos += 4 + buffer.getInt(pos);
+                pos += 4 + 8 * ((buffer.getInt(pos) + 63) >>> 6);
+            }
+            case ExecDataWriter.BLOCK_COUNTS -> pos += 8 + 4 + 8 * buffer.getInt(pos + 8);
+            case ExecDataWriter.BLOCK_CLASSFILE -> pos += 8 + 4 + buffer.getInt(pos + 8);
+            case ExecDataWriter.BLOCK_SESSION -> {
+                pos += 4 + buffer.getInt(pos); // test id
+                int classCount = buffer.getInt(pos);
+                pos += 4;
+                for (int i = 0; i < classCount; i++)
+                    pos += 8 + 4 + 8 * ((buffer.getInt(pos + 8) + 63) >>> 6);
+            }
+            default -> throw new IOException("unknown block type " + type);
+        }
+        return pos;
+    }
+
+    public static boolean[] toProbes(long[] bits, int probeCount) {
+        boolean[] probes = new boolean[probeCount];
+        for (int i = 0; i < probeCount; i++)
+            probes[i] = (bits[i >>> 6] & (1L << i)) != 0;
+        return probes;
+    }
+
+    private static coverageInfo readClass(ByteBuffer buffer) {
+        long classId = buffer.getLong();
+        String className = getString(buffer);
+        int probeCount = buffer.getInt();
+        int methodCount = buffer.getInt();
+
+        FirstPassResult lineContained = new FirstPassResult(className);
+        BranchTracker branchTracker = new BranchTracker(lineContained);
+        FirstPassResult.MethodSignature[] methods = new FirstPassResult.MethodSignature[methodCount];
+        for (int m = 0; m < methodCount; m++) {
+            FirstPassResult.MethodSignature method = new FirstPassResult.MethodSignature(getString(buffer), getString(buffer));
+            methods[m] = method;
+            lineContained.addMethod(method); // same index as in the file
+            int lineCount = buffer.getInt();
+            for (int l = 0; l < lineCount; l++)
+                lineContained.saveLineNumber(method, buffer.getInt());
+            int branchCount = buffer.getInt();
+            for (int b = 0; b < branchCount; b++)
+                branchTracker.createNewBranchId(method);
+        }
+        ProbeLayout probeLayout = new ProbeLayout();
+        for (int p = 0; p < probeCount; p++)
+            probeLayout.newProbe();
+        int itemCount = buffer.getInt();
+        for (int i = 0; i < itemCount; i++) {
+            FirstPassResult.MethodSignature method = methods[buffer.getInt()];
+            int kind = buffer.get();
+            int value = buffer.getInt();
+            int[] probes = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(probes);
+            buffer.position(buffer.position() + 4 * probes.length);
+            probeLayout.addItem(method, kind, value, probes);
+        }
+
+        coverageInfo coverage = new coverageInfo(lineContained, new SecondPassResult(lineContained));
+        coverage.className = className;
+        coverage.classId = classId;
+        coverage.branchTracker = branchTracker;
+        coverage.probeLayout = probeLayout;
+        return coverage;
+    }
+
+    private static void readProbes(ByteBuffer buffer, Visitor visitor) {
+        long classId = buffer.getLong();
+        String className = getString(buffer);
+        int probeCount = buffer.getInt();
+        long[] bits = new long[(probeCount + 63) >>> 6];
+        buffer.asLongBuffer().get(bits);
+        buffer.position(buffer.position() + 8 * bits.length);
+        visitor.visitProbes(classId, className, probeCount, bits);
+    }
+
+    private static void readCounts(ByteBuffer buffer, Visitor visitor) {
+        long classId = buffer.getLong();
+        long[] counts = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(counts);
+        buffer.position(buffer.position() + 8 * counts.length);
+        visitor.visitCounts(classId, counts);
+    }
+
+    private static void readClassFile(ByteBuffer buffer, Visitor visitor) {
+        long classId = buffer.getLong();
+        byte[] classfile = new byte[buffer.getInt()];
+        buffer.get(classfile);
+        visitor.visitClassFile(classId, classfile);
+    }
+
+    private static void readSession(ByteBuffer buffer, Visitor visitor) {
+        String testId = getString(buffer);
+        int classCount = buffer.getInt();
+        long[] classIds = new long[classCount];
+        int[] probeCounts = new int[classCount];
+        long[][] bits = new long[classCount][];
+        for (int i = 0; i < classCount; i++) {
+            classIds[i] = buffer.getLong();
+            probeCounts[i] = buffer.getInt();
+            bits[i] = new long[(probeCounts[i] + 63) >>> 6];
+            buffer.asLongBuffer().get(bits[i]);
+            buffer.position(buffer.position() + 8 * bits[i].length);
+        }
+        visitor.visitSession(testId, classIds, probeCounts, bits);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,440 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Writer of the binary execution data format.<br>
+ * File layout (big endian): header, then a sequence of blocks until the end of the file.<br>
+ * header: int MAGIC, short VERSION<br>
+ * class block: byte BLOCK_CLASS, long classId, string className, int probeCount,
+ * int methodCount, per method [string name, string desc, int lineCount, int[] lines, int branchCount],
+ * int itemCount, per item [int methodIndex, byte kind, int value, int probeCount, int[] probes]<br>
+ * probes block: byte BLOCK_PROBES, long classId, string className, int probeCount, long[] bitset of hit probes<br>
+ * class file block: byte BLOCK_CLASSFILE, long classId, int length, instrumented class file bytes (cache entries only)<br>
+ * session block: byte BLOCK_SESSION, string testId, int classCount, per class [long classId, int probeCount, long[] bitset of hit probes]<br>
+ * counts block: byte BLOCK_COUNTS, long classId, int probeCount, long[probeCount] hit count per probe (counting mode only)<br>
+ * string: int byte length, UTF-8 bytes<br>
+ * The class id is the content hash of the original class file, a class block holds the static layout
+ * needed to rebuild coverage, a probes block holds the execution data of one class,
+ * a session block the probes hit during a single test (see CoverageSession), a counts block
+ * how often each probe of a class was hit.<br>
+ * The exact size is computed first, then the file is written through a memory mapped buffer.
+ * @author kt27
+ */
+public class ExecDataWriter {
+    public static final int MAGIC = 0xC0DEC0FE;
+    public static final short VERSION = 2;
+    public static final byte BLOCK_CLASS = 1;
+    public static final byte BLOCK_PROBES = 2;
+    public static final byte BLOCK_CLASSFILE = 3;
+    public static final byte BLOCK_SESSION = 4;
+    public static final byte BLOCK_COUNTS = 5;
+
+    static final int HEADER_SIZE = 4 + 2;
+
+    /**
+     * a single encoded block, sized before it is written
+     */
+    interface Block {
+        int size();
+
+        void write(ByteBuffer buffer);
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+
+    /**
+     * add the static information of a class: lines, branches and probe layout
+     */
+    public ExecDataWriter addClass(coverageInfo coverage) {
+        blocks.add(new ClassBlock(coverage));
+        return this;
+    }
+
+    /**
+     * add the execution data of a class
+     */
+    public ExecDataWriter addProbes(long classId, String className, boolean[] probes) {
+        blocks.add(new ProbesBlock(classId, className, toBits(probes), probes.length));
+        return this;
+    }
+
+    /**
+     * add the execution data of a class already in bitset form
+     */
+    public ExecDataWriter addProbes(long classId, String className, long[] bits, int probeCount) {
+        blocks.add(new ProbesBlock(classId, className, bits, probeCount));
+        return this;
+    }
+
+    /**
+     * add the hit counts of a class, recorded in counting mode
+     * @param   counts  hit count per probe
+     */
+    public ExecDataWriter addCounts(long classId, long[] counts) {
+        blocks.add(new CountsBlock(classId, counts));
+        return this;
+    }
+
+    /**
+     * add the instrumented class file of a class
+     */
+    public ExecDataWriter addClassFile(long classId, byte[] classfile) {
+        blocks.add(new ClassFileBlock(classId, classfile));
+        return this;
+    }
+
+    /**
+     * add a complete block as found in another file, starting with its type
+     */
+    public ExecDataWriter addEncodedBlock(byte[] block) {
+        blocks.add(new EncodedBlock(block));
+        return this;
+    }
+
+    /**
+     * add the probes hit during one test, only classes with a hit probe
+     * @param   bits    per class the hit probes, bit i of word i / 64 is probe i
+     */
+    public ExecDataWriter addSession(String testId, long[] classIds, int[] probeCounts, long[][] bits) {
+        blocks.add(new SessionBlock(testId, classIds, probeCounts, bits));
+        return this;
+    }
+
+    /**
+     * convenience: write static information and execution data of all given classes
+     */
+    public static void write(Path file, Collection<coverageInfo> classes, Collection<ExecutionData> data) throws IOException {
+        ExecDataWriter writer = new ExecDataWriter();
+        for (coverageInfo coverage : classes)
+            writer.addClass(coverage);
+        for (ExecutionData d : data) {
+            writer.addProbes(d.classId, d.className, d.snapshot(), d.probes.length);
+            long[] counts = d.counts();
+            if (counts != null)
+                writer.addCounts(d.classId, counts);
+        }
+        writer.write(file);
+    }
+
+    /**
+     * Write all blocks to file. The data is written into a temporary file next to it
+     * and moved over the target, readers never see a half written file.
+     */
+    public void write(Path file) throws IOException {
+        long size = size();
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("execution data too large for a single mapping: " + size);
+        Path tmp = tempFile(file);
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                writeTo(buffer);
+                buffer.force();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * write an already encoded file content, through a temporary file as write(Path) does
+     */
+    public static void writeAtomically(Path file, byte[] content) throws IOException {
+        Path tmp = tempFile(file);
+        try {
+            Files.write(tmp, content);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return  a temporary file next to file, unique per writing thread:
+     * forked JVMs and threads may write the same file concurrently
+     */
+    private static Path tempFile(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        return dir.resolve(file.getFileName() + "." + ProcessHandle.current().pid() + "-" + Thread.currentThread().threadId() + ".tmp");
+    }
+
+    /**
+     * @return  the complete file content, e.g. to send it over a socket
+     */
+    public byte[] toByteArray() throws IOException {
+        long size = size();
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("execution data too large for a single array: " + size);
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * write the file header, blocks are appended later by appendTo
+     */
+    public static void writeHeader(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        write(channel, buffer.flip());
+    }
+
+    /**
+     * append the blocks, without header, to a file being written block by block
+     */
+    public void appendTo(WritableByteChannel channel) throws IOException {
+        long size = size() - HEADER_SIZE;
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("execution data too large for a single array: " + size);
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        for (Block block : blocks)
+            block.write(buffer);
+        write(channel, buffer.flip());
+    }
+
+    private static void write(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private long size() {
+        long size = HEADER_SIZE;
+        for (Block block : blocks)
+            size += block.size();
+        return size;
+    }
+
+    private void writeTo(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        for (Block block : blocks)
+            block.write(buffer);
+    }
+
+    /**
+     * @return  the hit probes as a bitset, bit i of word i / 64 is probe i
+     */
+    public static long[] toBits(boolean[] probes) {
+        long[] bits = new long[(probes.length + 63) >>> 6];
+        for (int i = 0; i < probes.length; i++) {
+            if (probes[i])
+                bits[i >>> 6] |= 1L << i;
+        }
+        return bits;
+    }
+
+    static int sizeOf(byte[] string) {
+        return 4 + string.length;
+    }
+
+    static void putString(ByteBuffer buffer, byte[] string) {
+        buffer.putInt(string.length);
+        buffer.put(string);
+    }
+
+    static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class ClassBlock implements Block {
+        private final coverageInfo coverage;
+        private final byte[] className;
+        private final List<byte[]> methodNames = new ArrayList<>();
+
+        ClassBlock(coverageInfo coverage) {
+            this.coverage = coverage;
+            this.className = utf8(coverage.className);
+            // method table: the method index of the class, it covers every method with lines, branches or probes
+            FirstPassResult methods = coverage.lineContained;
+            for (int m = 0; m < methods.methodCount(); m++) {
+                methodNames.add(utf8(methods.getMethod(m).getName()));
+                methodNames.add(utf8(methods.getMethod(m).getDesc()));
+            }
+        }
+
+        @Override
+        public int size() {
+            int size = 1 + 8 + sizeOf(className) + 4 + 4;
+            for (byte[] name : methodNames)
+                size += sizeOf(name);
+            for (int m = 0; m < coverage.lineContained.methodCount(); m++)
+                size += 4 + 4 * coverage.lineContained.lineCount(m) + 4;
+            size += 4;
+            for (int i = 0; i < coverage.probeLayout.itemCount(); i++)
+                size += 13 + 4 * coverage.probeLayout.getItem(i).probes.length;
+            return size;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            FirstPassResult methods = coverage.lineContained;
+            buffer.put(BLOCK_CLASS);
+            buffer.putLong(coverage.classId);
+            putString(buffer, className);
+            buffer.putInt(coverage.probeLayout.size());
+            buffer.putInt(methods.methodCount());
+            for (int m = 0; m < methods.methodCount(); m++) {
+                putString(buffer, methodNames.get(2 * m));
+                putString(buffer, methodNames.get(2 * m + 1));
+                buffer.putInt(methods.lineCount(m));
+                for (int l = 0; l < methods.lineCount(m); l++)
+                    buffer.putInt(methods.getLine(m, l));
+                buffer.putInt(coverage.branchTracker.getBranchCount(m));
+            }
+            buffer.putInt(coverage.probeLayout.itemCount());
+            for (int p = 0; p < coverage.probeLayout.itemCount(); p++) {
+                ProbeLayout.Item item = coverage.probeLayout.getItem(p);
+                buffer.putInt(methods.indexOf(item.method));
+                buffer.put((byte) item.kind);
+                buffer.putInt(item.value);
+                buffer.putInt(item.probes.length);
+                for (int probe : item.probes)
+                    buffer.putInt(probe);
+            }
+        }
+    }
+
+    private static class ProbesBlock implements Block {
+        private final long classId;
+        private final byte[] className;
+        private final long[] bits;
+        private final int probeCount;
+
+        ProbesBlock(long classId, String className, long[] bits, int probeCount) {
+            this.classId = classId;
+            this.className = utf8(className);
+            this.bits = bits;
+            this.probeCount = probeCount;
+        }
+
+        @Override
+        public int size() {
+            return 1 + 8 + sizeOf(className) + 4 + 8 * bits.length;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.put(BLOCK_PROBES);
+            buffer.putLong(classId);
+            putString(buffer, className);
+            buffer.putInt(probeCount);
+            for (long word : bits)
+                buffer.putLong(word);
+        }
+    }
+
+    private static class CountsBlock implements Block {
+        private final long classId;
+        private final long[] counts;
+
+        CountsBlock(long classId, long[] counts) {
+            this.classId = classId;
+            this.counts = counts;
+        }
+
+        @Override
+        public int size() {
+            return 1 + 8 + 4 + 8 * counts.length;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.put(BLOCK_COUNTS);
+            buffer.putLong(classId);
+            buffer.putInt(counts.length);
+            for (long count : counts)
+                buffer.putLong(count);
+        }
+    }
+
+    private static class ClassFileBlock implements Block {
+        private final long classId;
+        private final byte[] classfile;
+
+        ClassFileBlock(long classId, byte[] classfile) {
+            this.classId = classId;
+            this.classfile = classfile;
+        }
+
+        @Override
+        public int size() {
+            return 1 + 8 + 4 + classfile.length;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.put(BLOCK_CLASSFILE);
+            buffer.putLong(classId);
+            buffer.putInt(classfile.length);
+            buffer.put(classfile);
+        }
+    }
+
+    private static class SessionBlock implements Block {
+        private final byte[] testId;
+        private final long[] classIds;
+        private final int[] probeCounts;
+        private final long[][] bits;
+
+        SessionBlock(String testId, long[] classIds, int[] probeCounts, long[][] bits) {
+            this.testId = utf8(testId);
+            this.classIds = classIds;
+            this.probeCounts = probeCounts;
+            this.bits = bits;
+        }
+
+        @Override
+        public int size() {
+            int size = 1 + sizeOf(testId) + 4;
+            for (long[] classBits : bits)
+                size += 8 + 4 + 8 * classBits.length;
+            return size;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.put(BLOCK_SESSION);
+            putString(buffer, testId);
+            buffer.putInt(classIds.length);
+            for (int i = 0; i < classIds.length; i++) {
+                buffer.putLong(classIds[i]);
+                buffer.putInt(probeCounts[i]);
+                for (long word : bits[i])
+                    buffer.putLong(word);
+            }
+        }
+    }
+
+    private static class EncodedBlock implements Block {
+        private final byte[] block;
+
+        EncodedBlock(byte[] block) {
+            this.block = block;
+        }
+
+        @Override
+        public int size() {
+            return block.length;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) {
+            buffer.put(block);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+
+/**
+ * Runtime probe data of a single instrumented class.<br>
+ * The probe array is shared with the instrumented class itself:<br>
+ * every executed probe stores true into its own slot.<br>
+ * Coverage sessions clear the array after each test (see CoverageSession), the probes they take out
+ * are kept here and still reported by snapshot().<br>
+ * In counting mode each probe also has a hit counter. Counters are striped by thread id, a stripe is owned
+ * by the first live thread using it, which increments its cells without atomics. Another live thread mapped
+ * to the same stripe adds atomically to the shared cells of the stripe instead. So threads running the same
+ * hot line never wait on a common cell. The stripes are summed when the counts are read.
+ * @author kt27
+ */
+public class ExecutionData {
+    private static final VarHandle PROBES = MethodHandles.arrayElementVarHandle(boolean[].class);
+    private static final VarHandle STRIPES = MethodHandles.arrayElementVarHandle(Stripe[].class);
+    private static final VarHandle SHARED = MethodHandles.arrayElementVarHandle(long[][].class);
+    static final VarHandle COUNTERS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * number of counter stripes of a class: a power of two, twice the processors, at least 16 and at most 64.
+     * Only the slots are allocated up front, the cells of a stripe on its first use
+     */
+    static final int STRIPE_COUNT = Math.min(64, Math.max(16, Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1));
+
+    public final long classId;
+    public final String className;
+    public final boolean[] probes;
+    private long[] drained; // probes cleared by coverage sessions but not by a reset, guarded by this
+    private volatile Stripe[] counters; // counter stripes, null unless counting, a stripe is created on first use
+    private long[][] shared; // per stripe the cells of threads not owning it, published through counters
+    private long[] countBase; // counts at the last reset, guarded by this
+
+    /**
+     * the counters of one stripe owned by a thread. The cell behind the last probe is 0,
+     * it tells ProbeRuntime.count that plain increments are safe
+     */
+    private static final class Stripe {
+        final WeakReference<Thread> owner;
+        final long[] owned;
+
+        Stripe(Thread owner, long[] owned) {
+            this.owner = new WeakReference<>(owner);
+            this.owned = owned;
+        }
+    }
+
+    public ExecutionData(long classId, String className, int probeCount) {
+        this.classId = classId;
+        this.className = className;
+        this.probes = new boolean[probeCount];
+    }
+
+    /**
+     * @return  number of probes that have been hit
+     */
+    public int numOfHits() {
+        int sum = 0;
+        for (long word : snapshot())
+            sum += Long.bitCount(word);
+        return sum;
+    }
+
+    /**
+     * @return  the hit probes as a bitset, read without stopping the application threads.
+     * Includes the probes moved out of the array by coverage sessions
+     */
+    public synchronized long[] snapshot() {
+        long[] bits = ExecDataWriter.toBits(probes);
+        if (drained != null) {
+            for (int i = 0; i < bits.length; i++)
+                bits[i] |= drained[i];
+        }
+        return bits;
+    }
+
+    /**
+     * Read and clear the hit probes. Each probe is cleared by an atomic exchange,
+     * a hit racing with the reset is either part of the result or stays in the array: it is never lost
+     * @return  the hit probes as a bitset
+     */
+    public synchronized long[] snapshotAndReset() {
+        long[] bits = new long[(probes.length + 63) >>> 6];
+        take(bits);
+        if (drained != null) {
+            for (int i = 0; i < bits.length; i++)
+                bits[i] |= drained[i];
+            drained = null;
+        }
+        return bits;
+    }
+
+    /**
+     * Clear the hit probes for the next coverage session. The probes stay part of snapshot(),
+     * only the array is cleared so that the next session sees its own hits
+     * @return  the probes hit since the previous drain or reset as a bitset, null if none
+     */
+    public synchronized long[] drain() {
+        long[] bits = new long[(probes.length + 63) >>> 6];
+        if (!take(bits))
+            return null;
+        if (drained == null)
+            drained = new long[bits.length];
+        for (int i = 0; i < bits.length; i++)
+            drained[i] |= bits[i];
+        return bits;
+    }
+
+    /**
+     * move the hit probes into bits
+     * @return  true if any probe was hit
+     */
+    private boolean take(long[] bits) {
+        boolean any = false;
+        for (int i = 0; i < probes.length; i++) {
+            if (probes[i] && (boolean) PROBES.getAndSet(probes, i, false)) {
+                bits[i >>> 6] |= 1L << i;
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    /**
+     * @return  the counter cells of the current thread, see count: the cells of its stripe if the thread owns it,
+     * the shared cells of the stripe otherwise
+     */
+    long[] counterStripe() {
+        Stripe[] stripes = counters;
+        if (stripes == null)
+            stripes = initCounters();
+        Thread current = Thread.currentThread();
+        int i = (int) current.threadId() & (STRIPE_COUNT - 1);
+        Stripe stripe = (Stripe) STRIPES.getAcquire(stripes, i);
+        if (stripe != null && stripe.owner.get() == current)
+            return stripe.owned;
+        return claim(stripes, i, stripe, current);
+    }
+
+    /**
+     * take over a stripe without owner or with a terminated owner, its counts are kept: the termination of the
+     * previous owner happens before isAlive returns false, so its plain writes are all visible
+     */
+    private long[] claim(Stripe[] stripes, int i, Stripe stripe, Thread current) {
+        while (stripe == null || !isAlive(stripe.owner)) {
+            Stripe claimed = new Stripe(current, stripe == null ? new long[probes.length + 1] : stripe.owned);
+            if (STRIPES.compareAndSet(stripes, i, stripe, claimed))
+                return claimed.owned;
+            stripe = (Stripe) STRIPES.getAcquire(stripes, i); // claimed by a racing thread
+        }
+        long[] cells = (long[]) SHARED.getAcquire(shared, i);
+        if (cells == null) {
+            cells = new long[probes.length + 1];
+            cells[probes.length] = 1; // marks atomic adds
+            if (!SHARED.compareAndSet(shared, i, null, cells))
+                cells = (long[]) SHARED.getAcquire(shared, i);
+        }
+        return cells;
+    }
+
+    private static boolean isAlive(WeakReference<Thread> owner) {
+        Thread thread = owner.get();
+        return thread != null && thread.isAlive();
+    }
+
+    private synchronized Stripe[] initCounters() {
+        if (counters == null) {
+            shared = new long[STRIPE_COUNT][];
+            counters = new Stripe[STRIPE_COUNT];
+        }
+        return counters;
+    }
+
+    /**
+     * @return  the hit count of each probe since the last reset, summed over all stripes, null if the class is not counting
+     */
+    public synchronized long[] counts() {
+        long[] sums = sumCounters();
+        if (sums != null && countBase != null) {
+            for (int i = 0; i < sums.length; i++)
+                sums[i] -= countBase[i];
+        }
+        return sums;
+    }
+
+    /**
+     * Read the hit counts and start counting from zero. Counters written without atomics can not be cleared,
+     * the current sums become the base the next counts are taken from: an increment racing with the reset
+     * is part of either this result or the next one, it is never lost
+     * @return  the hit count of each probe since the last reset, null if the class is not counting
+     */
+    public synchronized long[] countsAndReset() {
+        long[] sums = sumCounters();
+        if (sums == null)
+            return null;
+        long[] counts = sums.clone();
+        if (countBase != null) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] -= countBase[i];
+        }
+        countBase = sums;
+        return counts;
+    }
+
+    private long[] sumCounters() {
+        Stripe[] stripes = counters;
+        if (stripes == null)
+            return null;
+        long[] sums = new long[probes.length];
+        for (int s = 0; s < STRIPE_COUNT; s++) {
+            Stripe stripe = (Stripe) STRIPES.getAcquire(stripes, s);
+            if (stripe != null)
+                add(sums, stripe.owned);
+            long[] cells = (long[]) SHARED.getAcquire(shared, s);
+            if (cells != null)
+                add(sums, cells);
+        }
+        return sums;
+    }
+
+    private static void add(long[] sums, long[] cells) {
+        for (int i = 0; i < sums.length; i++)
+            sums[i] += (long) COUNTERS.getOpaque(cells, i);
+    }
+}
@@ -3,7 +3,9 @@ import java.util.*;
 /**
  * Collect first-pass information for a single class.
  * <br>
- * Core data structure: method signature->line numbers
+ * Core data structure: method signature->line numbers<br>
+ * Methods get a dense index per class, the lines of a method are kept as a sorted int[].
+ * Coverage of lines and branches refers to these indexes, see SecondPassResult and BranchTracker.
  * @author kt27
  */
 class FirstPassResult {
@@ -18,6 +20,14 @@ class FirstPassResult {
             this.desc = desc;
         }
 
+        public String getName() {
+            return methodName;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -43,18 +53,19 @@ class FirstPassResult {
         }
     }
 
-    /**
-     * mapping from a method representation to associated source code line numbers
-     */
-    final Map<MethodSignature, SortedSet<Integer>> method2lines;
     private final String className;
-
+    private final Map<MethodSignature, Integer> methodIndex = new HashMap<>(); // method -> dense index
+    private MethodSignature[] methods = new MethodSignature[8];
+    private int methodCount;
+    private int[][] lines = new int[8][]; // per method index: sorted line numbers, first lineCounts[i] are valid
+    private int[] lineCounts = new int[8];
+    private int methodsWithLines;
+    private int statements;
 
     /**
      * initialize an empty structure w.r.t input class name
      */
     public FirstPassResult(String className) {
-        this.method2lines = new HashMap<>();
         this.className = className;
     }
 
@@ -65,33 +76,110 @@ class FirstPassResult {
      * @param   line    the line number
      */
     public void saveLineNumber(String methodName, String methodDesc, int line) {
-        MethodSignature m = new MethodSignature(methodName, methodDesc);
-        if(method2lines.containsKey(m)){
-            SortedSet<Integer> lines = method2lines.get(m);
-            lines.add(line);
-        } else {
-            SortedSet<Integer> lines = new TreeSet<>();
-            lines.add(line);
-            method2lines.put(m, lines);
+        saveLineNumber(new MethodSignature(methodName, methodDesc), line);
+    }
+
+    /**
+     * associate a line number to a method signature
+     * @param   m   the method signature this line number to be associated with
+     * @param   line    the line number
+     */
+    public void saveLineNumber(MethodSignature m, int line) {
+        int index = addMethod(m);
+        int count = lineCounts[index];
+        int pos = count; // line numbers mostly come in ascending order: append
+        if (count > 0 && lines[index][count - 1] >= line) {
+            pos = Arrays.binarySearch(lines[index], 0, count, line);
+            if (pos >= 0)
+                return;
+            pos = -pos - 1;
         }
+        if (lines[index] == null)
+            lines[index] = new int[4];
+        else if (count == lines[index].length)
+            lines[index] = Arrays.copyOf(lines[index], count * 2);
+        System.arraycopy(lines[index], pos, lines[index], pos + 1, count - pos);
+        lines[index][pos] = line;
+        lineCounts[index] = count + 1;
+        statements++;
+        if (count == 0)
+            methodsWithLines++;
+    }
+
+    /**
+     * give a method a dense index in this class, methods without lines get one as well (e.g. for branches)
+     * @return  the index of m, 0..methodCount()-1
+     */
+    public int addMethod(MethodSignature m) {
+        Integer index = methodIndex.get(m);
+        if (index != null)
+            return index;
+        if (methodCount == methods.length) {
+            methods = Arrays.copyOf(methods, methodCount * 2);
+            lines = Arrays.copyOf(lines, methodCount * 2);
+            lineCounts = Arrays.copyOf(lineCounts, methodCount * 2);
+        }
+        methods[methodCount] = m;
+        methodIndex.put(m, methodCount);
+        return methodCount++;
+    }
+
+    /**
+     * @return  the index of m, -1 if the method is unknown
+     */
+    public int indexOf(MethodSignature m) {
+        Integer index = methodIndex.get(m);
+        return index == null ? -1 : index;
     }
 
     /**
-     * @return total number of (covered/contained) methods in this class
+     * @return  number of indexed methods, with or without lines
+     */
+    public int methodCount() {
+        return methodCount;
+    }
+
+    public MethodSignature getMethod(int index) {
+        return methods[index];
+    }
+
+    /**
+     * @return  number of lines of the method at index
+     */
+    public int lineCount(int index) {
+        return lineCounts[index];
+    }
+
+    /**
+     * @return  the i-th line of the method at index, lines are sorted in ascending order
+     */
+    public int getLine(int index, int i) {
+        return lines[index][i];
+    }
+
+    /**
+     * @return  the position of line among the lines of the method at index, negative if absent
+     */
+    public int lineIndex(int index, int line) {
+        return lineCounts[index] == 0 ? -1 : Arrays.binarySearch(lines[index], 0, lineCounts[index], line);
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return  total number of (covered/contained) methods in this class
      */
     public int numOfMethods() {
-        return method2lines.size();
+        return methodsWithLines;
     }
 
     /**
-     * @return total number of (covered/contained) statements in this class
+     * @return  total number of (covered/contained) statements in this class
      */
     public int numOfStatements() {
-        int sum = 0;
-        for (var entry : method2lines.entrySet()) {
-            sum += entry.getValue().size();
-        }
-        return sum;
+        return statements;
     }
 
     /**
@@ -100,18 +188,16 @@ class FirstPassResult {
      */
     @Override
     public String toString() {
-        Iterator<Map.Entry<MethodSignature, SortedSet<Integer>>> method2lines_itr = method2lines.entrySet().iterator();
-        StringBuilder sb0 = new StringBuilder(); // root string builder
-        sb0.append(className+System.getProperty("line.separator")); // print class name
-
-        while(method2lines_itr.hasNext()){
-            Map.Entry<MethodSignature, SortedSet<Integer>> thisMethod2lines = method2lines_itr.next();
-            StringBuilder sb = new StringBuilder(thisMethod2lines.getKey()+" : "); // print method signature
-            for (int line : thisMethod2lines.getValue()) {
-                sb.append(line+" "); // print line numbers
-            }
-            sb0.append(sb+System.getProperty("line.separator"));
+        StringBuilder sb = new StringBuilder(); // root string builder
+        sb.append(className).append(System.lineSeparator()); // print class name
+        for (int m = 0; m < methodCount; m++) {
+            if (lineCounts[m] == 0)
+                continue;
+            sb.append(methods[m]).append(" : "); // print method signature
+            for (int i = 0; i < lineCounts[m]; i++)
+                sb.append(lines[m][i]).append(' '); // print line numbers
+            sb.append(System.lineSeparator());
         }
-        return sb0.toString();
+        return sb.toString();
     }
-}
\ No newline at end of file
+}
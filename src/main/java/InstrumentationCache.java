@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Persistent, content addressed cache of instrumented classes.<br>
+ * An entry holds the instrumented class file and the static information of the class
+ * (lines, branches, probe layout), stored in the execution data format.<br>
+ * Key: hash of the original class bytes combined with a fingerprint of the agent,
+ * so a changed agent never picks up entries of another instrumentation.<br>
+ * Entries are written by a background thread into a temporary file and moved into place atomically,
+ * forked JVMs sharing the directory never see partial entries. A hit touches the entry,
+ * eviction removes the least recently used entries once the directory grows over its bound.
+ * @author kt27
+ */
+public class InstrumentationCache {
+    private static final String SUFFIX = ".cov";
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long fingerprint;
+    private final AtomicLong size = new AtomicLong(); // approximate size of the directory
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "coverage-cache-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param   dir cache directory, shared by any number of JVMs
+     * @param   maxBytes    size bound of the directory
+     * @param   options     instrumentation relevant options, part of the key
+     */
+    public InstrumentationCache(Path dir, long maxBytes, String options) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.fingerprint = ClassHash.combine(agentFingerprint(), ClassHash.hash(ExecDataWriter.utf8(options)));
+        writer.execute(this::evict); // initial size of the directory
+    }
+
+    /**
+     * @param   classId the content hash of the original class file
+     * @return  the cached entry, null on a miss or an unreadable entry
+     */
+    public InstrumentedClass get(long classId) {
+        Path file = entryFile(classId);
+        coverageInfo[] coverage = new coverageInfo[1];
+        byte[][] classfile = new byte[1][];
+        try {
+            ExecDataReader.accept(file, new ExecDataReader.Visitor() {
+                @Override
+                public void visitClass(coverageInfo c) {
+                    coverage[0] = c;
+                }
+
+                @Override
+                public void visitProbes(long id, String className, int probeCount, long[] bits) {
+                }
+
+                @Override
+                public void visitClassFile(long id, byte[] bytes) {
+                    classfile[0] = bytes;
+                }
+            });
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // corrupt or foreign entry: drop it, the class is instrumented again
+            deleteQuietly(file);
+            return null;
+        }
+        if (coverage[0] == null || classfile[0] == null || coverage[0].classId != classId)
+            return null;
+        writer.execute(() -> touch(file));
+        return new InstrumentedClass(coverage[0], classfile[0]);
+    }
+
+    /**
+     * store an instrumentation result, asynchronously
+     */
+    public void put(long classId, InstrumentedClass instrumented) {
+        // only the static part of the model is encoded, it does not change after the transformation
+        ExecDataWriter entry = new ExecDataWriter().addClass(instrumented.coverage).addClassFile(classId, instrumented.classfile);
+        writer.execute(() -> {
+            Path file = entryFile(classId);
+            try {
+                entry.write(file);
+                if (size.addAndGet(Files.size(file)) > maxBytes)
+                    evict();
+            } catch (IOException e) {
+                // cache is best effort, the class is simply instrumented again next time
+            }
+        });
+    }
+
+    /**
+     * entries fan out over 256 sub directories: dir/ab/abcdef0123456789.cov
+     */
+    private Path entryFile(long classId) {
+        String key = String.format("%016x", ClassHash.combine(fingerprint, classId));
+        return dir.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    /**
+     * measure the directory and remove least recently used entries until it is below 3/4 of its bound
+     */
+    private void evict() {
+        List<Path> files = new ArrayList<>();
+        List<long[]> attributes = new ArrayList<>(); // last modified, size
+        long total = 0;
+        try (Stream<Path> walk = Files.walk(dir, 2)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                if (!file.getFileName().toString().endsWith(SUFFIX))
+                    continue;
+                try {
+                    BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class);
+                    files.add(file);
+                    attributes.add(new long[]{a.lastModifiedTime().toMillis(), a.size()});
+                    total += a.size();
+                } catch (IOException e) {
+                    // removed by another JVM meanwhile
+                }
+            }
+        } catch (IOException e) {
+            return; // directory does not exist yet
+        }
+        if (total > maxBytes) {
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++)
+                order.add(i);
+            order.sort(Comparator.comparingLong(i -> attributes.get(i)[0]));
+            for (int i : order) {
+                if (total <= maxBytes / 4 * 3)
+                    break;
+                deleteQuietly(files.get(i));
+                total -= attributes.get(i)[1];
+            }
+        }
+        size.set(total);
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // evicted meanwhile
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // another JVM holds or removed it
+        }
+    }
+
+    /**
+     * @return  hash over the class files that determine the instrumentation
+     */
+    private static long agentFingerprint() {
+        long h = 0;
+        for (Class<?> c : new Class<?>[]{mainDriver.class, StaticInfoCollector.class, CoverageRecorder.class, ControlFlowAnalyzer.class,
+                ProbeLayout.class, ExecDataWriter.class}) {
+            try (InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class")) {
+                if (in != null)
+                    h = ClassHash.combine(h, ClassHash.hash(in.readAllBytes()));
+            } catch (IOException e) {
+                throw new IllegalStateException("can not read agent class " + c.getName(), e);
+            }
+        }
+        return h;
+    }
+}
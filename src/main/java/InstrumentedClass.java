@@ -0,0 +1,14 @@
+/**
+ * Result of instrumenting a single class: the instrumented class file
+ * and the static information needed to interpret its probes
+ * @author kt27
+ */
+public class InstrumentedClass {
+    public final coverageInfo coverage;
+    public final byte[] classfile;
+
+    public InstrumentedClass(coverageInfo coverage, byte[] classfile) {
+        this.coverage = coverage;
+        this.classfile = classfile;
+    }
+}
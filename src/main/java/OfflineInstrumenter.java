@@ -0,0 +1,212 @@
+import org.objectweb.asm.ClassReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Ahead-of-time instrumentation of class directories and archives (jar, war, zip).<br>
+ * Classes go through the same StaticInfoCollector -> CoverageRecorder pass as in the agent,
+ * in parallel on a fork-join pool. The static information of all classes is written into a metadata
+ * file (class blocks of the execution data format), the instrumented classes then only need
+ * ProbeRuntime and its few helpers at runtime, see ProbeRuntime.<br>
+ * Archives are streamed: entries are read one by one, at most a bounded window of class entries is
+ * in flight, and results are written in the original entry order. Other entries are copied through.
+ * Signature files are dropped, the instrumented classes no longer match them.
+ * @author kt27
+ */
+public class OfflineInstrumenter {
+
+    private final ClassFilter filter;
+    private final AgentOptions options;
+    private final ForkJoinPool pool;
+    private final int window; // max class entries in flight per archive
+    private final Queue<coverageInfo> classes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    /**
+     * @param   options     the project name and the filter options select the classes and the mode the instrumentation, as in the agent
+     * @param   parallelism number of worker threads
+     */
+    public OfflineInstrumenter(AgentOptions options, int parallelism) {
+        this.filter = new ClassFilter(options);
+        this.options = options;
+        this.pool = new ForkJoinPool(parallelism);
+        this.window = 4 * parallelism;
+    }
+
+    /**
+     * instrument a class directory tree or an archive into target, target has the same layout as source
+     */
+    public void instrument(Path source, Path target) throws IOException {
+        if (Files.isDirectory(source))
+            instrumentDirectory(source, target);
+        else
+            instrumentArchive(source, target);
+    }
+
+    /**
+     * write the static information of all classes instrumented so far
+     */
+    public void writeMetadata(Path file) throws IOException {
+        ExecDataWriter writer = new ExecDataWriter();
+        for (coverageInfo coverage : classes)
+            writer.addClass(coverage);
+        writer.write(file);
+    }
+
+    /**
+     * @return  number of classes instrumented so far
+     */
+    public int getInstrumentedCount() {
+        return classes.size();
+    }
+
+    /**
+     * @return  number of classes kept unchanged because they failed to instrument
+     */
+    public int getSkippedCount() {
+        return skipped.get();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * class files are instrumented in parallel, archives inside the tree one after another
+     * (each of them in parallel), everything else is copied
+     */
+    private void instrumentDirectory(Path source, Path target) throws IOException {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(source)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                Path out = target.resolve(source.relativize(file).toString());
+                if (Files.isDirectory(file)) {
+                    Files.createDirectories(out);
+                } else if (file.toString().endsWith(".class")) {
+                    tasks.add(pool.submit(() -> {
+                        try {
+                            Files.write(out, instrumentClass(file.toString(), Files.readAllBytes(file)));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
+                } else if (isArchive(file.toString())) {
+                    instrumentArchive(file, out);
+                } else {
+                    Files.copy(file, out, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        try {
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void instrumentArchive(Path source, Path target) throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(Files.newInputStream(source)));
+             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+            Deque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+            Deque<ZipEntry> pendingEntries = new ArrayDeque<>();
+            Set<String> names = new HashSet<>();
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (isSignature(name) || !names.add(name))
+                    continue;
+                ZipEntry copy = new ZipEntry(name);
+                copy.setTime(entry.getTime());
+                if (name.endsWith(".class")) {
+                    byte[] classfile = in.readAllBytes();
+                    String location = source + "!/" + name;
+                    pending.add(pool.submit(() -> instrumentClass(location, classfile)));
+                    pendingEntries.add(copy);
+                    if (pending.size() >= window)
+                        writeNext(out, pending, pendingEntries);
+                } else {
+                    // keep the entry order: everything before it is written first, then the entry is streamed through
+                    while (!pending.isEmpty())
+                        writeNext(out, pending, pendingEntries);
+                    out.putNextEntry(copy);
+                    in.transferTo(out);
+                    out.closeEntry();
+                }
+            }
+            while (!pending.isEmpty())
+                writeNext(out, pending, pendingEntries);
+        }
+    }
+
+    private static void writeNext(ZipOutputStream out, Deque<ForkJoinTask<byte[]>> pending, Deque<ZipEntry> entries) throws IOException {
+        byte[] classfile = pending.removeFirst().join();
+        out.putNextEntry(entries.removeFirst());
+        out.write(classfile);
+        out.closeEntry();
+    }
+
+    /**
+     * @param   location    file or archive entry, for diagnostics
+     * @return  the instrumented class file, or the original one if the class is not selected
+     */
+    private byte[] instrumentClass(String location, byte[] classfile) {
+        String className;
+        int access;
+        try {
+            ClassReader reader = new ClassReader(classfile);
+            className = reader.getClassName(); // the path may not match, e.g. WEB-INF/classes or multi-release entries
+            access = reader.getAccess();
+        } catch (RuntimeException e) {
+            System.err.println("coverage: not a class file, copied: " + location);
+            return classfile;
+        }
+        if (className.equals("module-info") || className.endsWith("package-info") || !filter.isIncluded(className)
+                || filter.isSynthetic(access) || CoverageRecorder.isInstrumented(classfile))
+            return classfile;
+        try {
+            InstrumentedClass instrumented = mainDriver.instrumentClass(className, ClassHash.hash(classfile), classfile, options, null);
+            classes.add(instrumented.coverage);
+            return instrumented.classfile;
+        } catch (RuntimeException e) {
+            skipped.incrementAndGet();
+            System.err.println("coverage: failed to instrument " + location + ", copied: " + e);
+            return classfile;
+        }
+    }
+
+    private static boolean isArchive(String name) {
+        return name.endsWith(".jar") || name.endsWith(".war") || name.endsWith(".zip");
+    }
+
+    /**
+     * @return  true for the signature files of a signed archive: META-INF/*.SF, *.RSA, *.DSA, *.EC
+     */
+    private static boolean isSignature(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0)
+            return false;
+        return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC");
+    }
+}
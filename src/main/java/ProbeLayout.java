@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Static probe layout of a single class, built during the transformation.<br>
+ * Probes are placed on the control flow graph of each method (see ControlFlowAnalyzer),
+ * a single probe may stand for many lines and a line may be reached through several probes.<br>
+ * The layout therefore lists items: a line or a branch direction inside a method (in method mode: the method entry),
+ * together with the probes whose hit proves the item executed. An item is covered if any of its probes is hit.
+ * A line spread over several blocks has an item per block, adjacent in the layout.<br>
+ * Used at dump time to rebuild line and branch coverage from the probe array.
+ * @author kt27
+ */
+public class ProbeLayout {
+    public static final int LINE = 0;
+    public static final int BRANCH = 1;
+    public static final int METHOD = 2; // entry of a method: method mode, or a method too large for finer probes
+
+    /**
+     * a line number or a branch id inside a method, or the method entry, and the probes covering it
+     */
+    public static class Item {
+        public final FirstPassResult.MethodSignature method;
+        public final int kind;
+        public final int value;
+        public final int[] probes;
+
+        public Item(FirstPassResult.MethodSignature method, int kind, int value, int[] probes) {
+            this.method = method;
+            this.kind = kind;
+            this.value = value;
+            this.probes = probes;
+        }
+
+        /**
+         * @param   hits    the probe array of the class
+         * @return  true if any probe of this item is hit
+         */
+        public boolean isCovered(boolean[] hits) {
+            for (int probe : probes) {
+                if (hits[probe])
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private int probeCount;
+    private final List<Item> items = new ArrayList<>();
+
+    /**
+     * Allocate a new probe
+     * @return  the newly assigned probe index
+     */
+    public int newProbe() {
+        return probeCount++;
+    }
+
+    /**
+     * Give back the probes allocated since the layout had size probes, none of them may be part of an item yet.
+     * Used when a method falls back to coarser probes than its control flow analysis placed
+     */
+    public void truncate(int size) {
+        probeCount = size;
+    }
+
+    /**
+     * Register a line, a branch direction or a method entry covered by the given probes
+     */
+    public void addItem(FirstPassResult.MethodSignature method, int kind, int value, int[] probes) {
+        items.add(new Item(method, kind, value, probes));
+    }
+
+    public Item getItem(int index) {
+        return items.get(index);
+    }
+
+    /**
+     * @return  number of lines, branch directions and method entries in this class
+     */
+    public int itemCount() {
+        return items.size();
+    }
+
+    /**
+     * @return  total number of probes in this class
+     */
+    public int size() {
+        return probeCount;
+    }
+}
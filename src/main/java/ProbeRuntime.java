@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runtime side of the probe based coverage recording.<br>
+ * Each instrumented class asks for its probe array once through getProbes and caches it in a static field.<br>
+ * Afterwards covering a line or a branch is a single array store, no lookup or allocation is involved.<br>
+ * Thread safety: probe stores are idempotent (always true), so racing threads never lose information
+ * and no lock or per-thread buffer is needed, which also keeps virtual threads free of any allocation.<br>
+ * Counting mode adds a counter increment to each probe: the method fetches the counter stripe of its thread
+ * once per invocation through getCounters. The increment is a plain one on a stripe owned by the thread,
+ * an atomic add on the shared cells of a stripe owned by another thread (see ExecutionData).
+ * The class table is read without locking, only the registration of a new class is synchronized.<br>
+ * Without the agent (offline instrumented classes), the probes of all classes are written at exit
+ * into the file named by the system property coverage.destfile (default coverage.exec, %p is replaced by the process id).
+ * Only ProbeRuntime, ExecutionData, ExecDataWriter and AgentOptions are needed on the class path in that case.
+ * @author kt27
+ */
+public class ProbeRuntime {
+
+    /**
+     * Open addressing table from class id to the probe data of that class.<br>
+     * A reader racing with an insert either sees the complete entry (all fields are final) or an empty slot
+     * and falls back to the synchronized path. A removal publishes a new table, a reader racing with it
+     * may still find the removed entry
+     */
+    private static volatile ExecutionData[] table = new ExecutionData[256];
+    private static int size;
+
+    /**
+     * set by the agent, which writes static information and execution data itself
+     */
+    static volatile boolean agentLoaded;
+    private static boolean exitHookInstalled;
+
+    /**
+     * the trigger invoked by the instrumented class to fetch its probe array.<br>
+     * the array is created on the first request
+     * @param   classId     the content hash of the original class file
+     * @param   className   class name, used for reporting only
+     * @param   probeCount  number of probes inserted into the class
+     * @return  the probe array of the class
+     */
+    public static boolean[] getProbes(long classId, String className, int probeCount) {
+        ExecutionData data = find(table, classId);
+        if (data == null)
+            data = register(classId, className, probeCount);
+        return data.probes;
+    }
+
+    /**
+     * the lookup inlined into classes instrumented without added members (dynamic attach), on each method invocation.
+     * The agent registers the class before its instrumented version is installed
+     * @param   classId     the content hash of the original class file
+     * @return  the probe array of the class
+     */
+    public static boolean[] getProbes(long classId) {
+        return find(table, classId).probes;
+    }
+
+    /**
+     * the counterpart of getProbes(long) in counting mode
+     * @return  the counter cells of the current thread
+     */
+    public static long[] getCounters(long classId) {
+        return find(table, classId).counterStripe();
+    }
+
+    /**
+     * the trigger invoked by a class instrumented in counting mode to fetch the hit counters of the current thread
+     * @return  the counter cells of the current thread, one per probe and a last one telling count how to add
+     */
+    public static long[] getCounters(long classId, String className, int probeCount) {
+        ExecutionData data = find(table, classId);
+        if (data == null)
+            data = register(classId, className, probeCount);
+        return data.counterStripe();
+    }
+
+    /**
+     * count a hit of a probe, invoked right behind the probe store in counting mode
+     * @param   counters    the counter cells fetched by getCounters, the cell behind the last probe is 0
+     *                      if only the current thread writes them
+     */
+    public static void count(long[] counters, int probe) {
+        if (counters[counters.length - 1] == 0)
+            counters[probe]++;
+        else
+            ExecutionData.COUNTERS.getAndAdd(counters, probe, 1L);
+    }
+
+    /**
+     * @param   classId the content hash of the original class file
+     * @return  probe data of the class, null if the class never executed any code
+     */
+    public static ExecutionData getExecutionData(long classId) {
+        return find(table, classId);
+    }
+
+    /**
+     * @return  probe data of all classes that executed code so far
+     */
+    public static List<ExecutionData> getAllExecutionData() {
+        List<ExecutionData> result = new ArrayList<>();
+        for (ExecutionData data : table) {
+            if (data != null)
+                result.add(data);
+        }
+        return result;
+    }
+
+    /**
+     * drop the probe data of a class no loader defines any more, see ClassRegistry.
+     * Its probes are no longer written, a class of the same bytes defined later starts from scratch
+     * @param   classId the content hash of the original class file
+     */
+    static synchronized void remove(long classId) {
+        ExecutionData[] t = table;
+        ExecutionData data = find(t, classId);
+        if (data == null)
+            return;
+        // linear probing leaves no holes to fill: rebuild without the entry, publish it complete
+        ExecutionData[] rebuilt = new ExecutionData[t.length];
+        for (ExecutionData other : t) {
+            if (other != null && other != data)
+                insert(rebuilt, other);
+        }
+        table = rebuilt;
+        size--;
+    }
+
+    private static ExecutionData find(ExecutionData[] t, long classId) {
+        int mask = t.length - 1;
+        for (int i = slot(classId, mask); ; i = (i + 1) & mask) {
+            ExecutionData data = t[i];
+            if (data == null || data.classId == classId)
+                return data;
+        }
+    }
+
+    private static synchronized ExecutionData register(long classId, String className, int probeCount) {
+        ExecutionData data = find(table, classId);
+        if (data != null)
+            return data; // registered by a racing thread
+        data = new ExecutionData(classId, className, probeCount);
+        ExecutionData[] t = table;
+        if ((size + 1) * 2 > t.length) {
+            // keep the load factor below 1/2, publish the new table only once it is complete
+            t = rehash(t, t.length * 2);
+            insert(t, data);
+            table = t;
+        } else {
+            insert(t, data);
+        }
+        size++;
+        if (!exitHookInstalled && !agentLoaded)
+            installExitHook();
+        return data;
+    }
+
+    /**
+     * write the probes of all classes at exit, static information comes from the offline metadata file
+     */
+    private static void installExitHook() {
+        exitHookInstalled = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Path file = AgentOptions.resolveDestFile(System.getProperty("coverage.destfile", "coverage.exec"));
+            ExecDataWriter writer = new ExecDataWriter();
+            for (ExecutionData data : getAllExecutionData()) {
+                writer.addProbes(data.classId, data.className, data.snapshot(), data.probes.length);
+                long[] counts = data.counts();
+                if (counts != null)
+                    writer.addCounts(data.classId, counts);
+            }
+            try {
+                writer.write(file);
+            } catch (IOException e) {
+                System.err.println("coverage: failed to write " + file + ": " + e);
+            }
+        }, "coverage-exit"));
+    }
+
+    private static ExecutionData[] rehash(ExecutionData[] old, int capacity) {
+        ExecutionData[] t = new ExecutionData[capacity];
+        for (ExecutionData data : old) {
+            if (data != null)
+                insert(t, data);
+        }
+        return t;
+    }
+
+    private static void insert(ExecutionData[] t, ExecutionData data) {
+        int mask = t.length - 1;
+        int i = slot(data.classId, mask);
+        while (t[i] != null)
+            i = (i + 1) & mask;
+        t[i] = data;
+    }
+
+    private static int slot(long classId, int mask) {
+        return (int) (classId ^ (classId >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,245 @@
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adaptive mode: remove probes that are already hit from running classes.<br>
+ * A background thread looks at the probe arrays periodically. A class whose hit probes did not change
+ * over the last interval, but still executes some of them, is retransformed: the transformer instruments
+ * the original bytes again and leaves out the stores of the hit probes (see CoverageRecorder).
+ * Probe ids stay the same and the probe array is kept, so the recorded data is untouched.
+ * A method whose probes are all hit runs its original code again.<br>
+ * Counters and a log line per round tell how many classes were retransformed and de-instrumented, and when.
+ * @author kt27
+ */
+public class ProbeStripper {
+
+    private final long intervalMillis;
+    private final Map<Long, boolean[]> stripped = new ConcurrentHashMap<>(); // class id -> probes left out of the current version
+    private final Map<Long, Integer> lastHits = new HashMap<>(); // guarded by this
+    private Instrumentation inst;
+    private Thread thread;
+
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong retransformedClasses = new AtomicLong();
+    private final AtomicLong deinstrumentedClasses = new AtomicLong();
+    private final AtomicLong strippedProbes = new AtomicLong();
+    private final AtomicLong failedClasses = new AtomicLong();
+    private volatile long lastRetransformMillis;
+
+    /**
+     * @param   intervalMillis  time between two looks at the probe arrays
+     */
+    public ProbeStripper(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * start the background thread, the transformer must be registered as retransformation capable
+     */
+    public void start(Instrumentation inst) {
+        this.inst = inst;
+        thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(intervalMillis);
+                    strip();
+                }
+            } catch (InterruptedException e) {
+                // stop
+            }
+        }, "coverage-probe-stripper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * stop the background thread and put all stripped probes back
+     */
+    public void stop() {
+        if (thread != null)
+            thread.interrupt();
+        restore();
+    }
+
+    /**
+     * @param   classId the content hash of the original class file
+     * @return  probes to leave out when the class is transformed again, null for none
+     */
+    public boolean[] getStripped(long classId) {
+        return stripped.get(classId);
+    }
+
+    /**
+     * one round: select the classes with hit probes still in their code and retransform them
+     */
+    synchronized void strip() {
+        rounds.incrementAndGet();
+        Map<Long, coverageInfo> candidates = new HashMap<>(); // class id -> class
+        for (coverageInfo coverage : mainDriver.getInstrumentedClasses()) {
+            ExecutionData data = ProbeRuntime.getExecutionData(coverage.classId);
+            if (data == null)
+                continue;
+            int hits = count(data.probes);
+            Integer previous = lastHits.put(coverage.classId, hits);
+            // wait until the class settles, each retransformation has a cost
+            if (previous != null && previous == hits && hits > count(stripped.get(coverage.classId)))
+                candidates.put(coverage.classId, coverage);
+        }
+        if (candidates.isEmpty())
+            return;
+
+        List<Class<?>> classes = new ArrayList<>();
+        Map<Long, boolean[]> previous = new HashMap<>();
+        ClassRegistry registry = mainDriver.getRegistry();
+        Map<Class<?>, coverageInfo> selected = new HashMap<>();
+        for (Class<?> c : inst.getAllLoadedClasses()) {
+            coverageInfo registered = registry.get(c); // the version defined by the loader of c
+            coverageInfo coverage = registered == null ? null : candidates.get(registered.classId);
+            if (coverage == null || !inst.isModifiableClass(c))
+                continue;
+            selected.put(c, coverage);
+            classes.add(c);
+            if (!previous.containsKey(coverage.classId)) {
+                // the transformer picks up the new set during retransformation
+                previous.put(coverage.classId, stripped.get(coverage.classId));
+                stripped.put(coverage.classId, ProbeRuntime.getExecutionData(coverage.classId).probes.clone());
+            }
+        }
+        List<Class<?>> failed = retransform(classes);
+        Set<Long> done = new HashSet<>(); // classes with at least one loader's version stripped keep the new set
+        for (Class<?> c : classes) {
+            if (!failed.contains(c))
+                done.add(selected.get(c).classId);
+        }
+        for (Class<?> c : failed) {
+            coverageInfo coverage = selected.get(c);
+            if (done.contains(coverage.classId) || !previous.containsKey(coverage.classId))
+                continue;
+            boolean[] old = previous.remove(coverage.classId);
+            if (old == null)
+                stripped.remove(coverage.classId);
+            else
+                stripped.put(coverage.classId, old);
+        }
+
+        int retransformed = classes.size() - failed.size();
+        int deinstrumented = 0;
+        long probes = 0;
+        for (Map.Entry<Long, boolean[]> entry : previous.entrySet()) {
+            boolean[] now = stripped.get(entry.getKey());
+            probes += count(now) - count(entry.getValue());
+            if (count(now) == now.length)
+                deinstrumented++;
+        }
+        retransformedClasses.addAndGet(retransformed);
+        deinstrumentedClasses.addAndGet(deinstrumented);
+        strippedProbes.addAndGet(probes);
+        failedClasses.addAndGet(failed.size());
+        lastRetransformMillis = System.currentTimeMillis();
+        System.err.println("coverage: " + Instant.ofEpochMilli(lastRetransformMillis) + " retransformed " + retransformed
+                + " classes, stripped " + probes + " probes, " + deinstrumented + " classes fully de-instrumented"
+                + (failed.isEmpty() ? "" : ", " + failed.size() + " failed") + " (total " + this + ")");
+    }
+
+    /**
+     * put all stripped probes back into their classes, needed before the probe arrays are reset:
+     * a stripped probe could never be hit again
+     */
+    public synchronized void restore() {
+        if (stripped.isEmpty())
+            return;
+        Set<Long> restored = new HashSet<>(stripped.keySet());
+        stripped.clear();
+        lastHits.clear();
+        ClassRegistry registry = mainDriver.getRegistry();
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> c : inst.getAllLoadedClasses()) {
+            coverageInfo coverage = registry.get(c);
+            if (coverage != null && restored.contains(coverage.classId) && inst.isModifiableClass(c))
+                classes.add(c);
+        }
+        List<Class<?>> failed = retransform(classes);
+        failedClasses.addAndGet(failed.size());
+        System.err.println("coverage: " + Instant.now() + " restored the probes of " + (classes.size() - failed.size()) + " classes"
+                + (failed.isEmpty() ? "" : ", " + failed.size() + " failed"));
+    }
+
+    /**
+     * retransform all classes at once, one by one if that fails
+     * @return  the classes that could not be retransformed
+     */
+    private List<Class<?>> retransform(List<Class<?>> classes) {
+        List<Class<?>> failed = new ArrayList<>();
+        try {
+            inst.retransformClasses(classes.toArray(new Class<?>[0]));
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            for (Class<?> c : classes) {
+                try {
+                    inst.retransformClasses(c);
+                } catch (UnmodifiableClassException | RuntimeException | LinkageError e1) {
+                    failed.add(c);
+                }
+            }
+        }
+        return failed;
+    }
+
+    private static int count(boolean[] probes) {
+        int n = 0;
+        if (probes != null) {
+            for (boolean probe : probes) {
+                if (probe)
+                    n++;
+            }
+        }
+        return n;
+    }
+
+    public long getRounds() {
+        return rounds.get();
+    }
+
+    /**
+     * @return  number of class retransformations that stripped probes
+     */
+    public long getRetransformedClasses() {
+        return retransformedClasses.get();
+    }
+
+    /**
+     * @return  number of classes that lost their last probe
+     */
+    public long getDeinstrumentedClasses() {
+        return deinstrumentedClasses.get();
+    }
+
+    public long getStrippedProbes() {
+        return strippedProbes.get();
+    }
+
+    public long getFailedClasses() {
+        return failedClasses.get();
+    }
+
+    /**
+     * @return  time of the last retransformation in milliseconds since the epoch, 0 if none
+     */
+    public long getLastRetransformMillis() {
+        return lastRetransformMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "retransformed=" + getRetransformedClasses() + " deinstrumented=" + getDeinstrumentedClasses()
+                + " strippedProbes=" + getStrippedProbes() + " failed=" + getFailedClasses();
+    }
+}
@@ -0,0 +1,517 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coverage report from saved execution data: HTML pages, an XML and a CSV file.<br>
+ * HTML: index.html lists the packages, a package page its classes, a class page its methods,
+ * and a source page shows the source file with every line marked covered, partly covered or missed,
+ * and with the hit count of every line if the data was recorded in counting mode.
+ * Classes recorded in method mode only show which methods were entered, their lines are not marked.
+ * The source file of a class is looked up in the source roots by its package and outer class name.<br>
+ * Source files (with all their classes) are rendered in parallel. Every page is written through a buffered
+ * stream while it is rendered, only the counters of each class are kept until the end.<br>
+ * Incremental: a fingerprint of everything a page shows (source text, line states, counters) is kept in
+ * the output directory, a page whose fingerprint did not change is not written again.
+ * Pages of classes no longer present are deleted. The XML and CSV files are always written.
+ * @author kt27
+ */
+public class ReportGenerator {
+    private static final long LAYOUT_VERSION = 1; // change when the pages look different
+    private static final String FINGERPRINTS = ".fingerprints";
+
+    // line states on the source page
+    private static final byte MISSED = 1;
+    private static final byte COVERED = 2;
+
+    /**
+     * covered and total counts of a class, package or the whole report
+     */
+    private static class Counts {
+        int methods, coveredMethods, lines, coveredLines, branches, coveredBranches;
+
+        void add(Counts other) {
+            methods += other.methods;
+            coveredMethods += other.coveredMethods;
+            lines += other.lines;
+            coveredLines += other.coveredLines;
+            branches += other.branches;
+            coveredBranches += other.coveredBranches;
+        }
+
+        long fingerprint() {
+            long h = ClassHash.combine(methods, coveredMethods);
+            h = ClassHash.combine(h, ClassHash.combine(lines, coveredLines));
+            return ClassHash.combine(h, ClassHash.combine(branches, coveredBranches));
+        }
+    }
+
+    /**
+     * write the content of a page
+     */
+    private interface Content {
+        void write(Writer out) throws IOException;
+    }
+
+    private final Path outputDir;
+    private final List<Path> sourceRoots;
+    private final Map<String, Long> previous = new HashMap<>(); // page -> fingerprint of the last run
+    private final Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+    private final Map<coverageInfo, Counts> counts = new ConcurrentHashMap<>();
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+
+    /**
+     * @param   outputDir   report directory, an earlier report in it is updated
+     * @param   sourceRoots directories holding the sources by package, may be empty
+     */
+    public ReportGenerator(Path outputDir, List<Path> sourceRoots) {
+        this.outputDir = outputDir;
+        this.sourceRoots = sourceRoots;
+    }
+
+    /**
+     * @param   classes coverage with the probes already collected, e.g. loaded by ExecDataReader
+     * @param   parallelism number of source files rendered at the same time
+     */
+    public void generate(Collection<coverageInfo> classes, int parallelism) throws IOException {
+        Files.createDirectories(outputDir);
+        readFingerprints();
+        // package -> source file -> classes
+        Map<String, Map<String, List<coverageInfo>>> packages = new TreeMap<>();
+        for (coverageInfo coverage : classes)
+            packages.computeIfAbsent(packageOf(coverage.className), p -> new TreeMap<>())
+                    .computeIfAbsent(sourceOf(coverage.className), s -> new ArrayList<>()).add(coverage);
+        for (Map<String, List<coverageInfo>> sources : packages.values()) {
+            for (List<coverageInfo> list : sources.values())
+                list.sort((a, b) -> a.className.equals(b.className) ? Long.compare(a.classId, b.classId) : a.className.compareTo(b.className));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Map.Entry<String, Map<String, List<coverageInfo>>> pkg : packages.entrySet()) {
+                for (Map.Entry<String, List<coverageInfo>> source : pkg.getValue().entrySet()) {
+                    tasks.add(pool.submit(() -> {
+                        try {
+                            renderSource(pkg.getKey(), source.getKey(), source.getValue());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
+                }
+            }
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+
+        Map<String, Counts> packageCounts = new TreeMap<>();
+        for (Map.Entry<String, Map<String, List<coverageInfo>>> pkg : packages.entrySet()) {
+            Counts total = new Counts();
+            for (List<coverageInfo> list : pkg.getValue().values()) {
+                for (coverageInfo coverage : list)
+                    total.add(counts.get(coverage));
+            }
+            packageCounts.put(pkg.getKey(), total);
+            renderPackage(pkg.getKey(), pkg.getValue(), total);
+        }
+        renderIndex(packageCounts);
+        writeXml(packages, packageCounts);
+        writeCsv(packages);
+        deleteStalePages();
+        writeFingerprints();
+    }
+
+    /**
+     * @return  number of pages written by the last generate
+     */
+    public int getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return  number of pages left untouched by the last generate, their content did not change
+     */
+    public int getUnchangedCount() {
+        return unchanged.get();
+    }
+
+    /**
+     * the class pages of one source file and the annotated source page
+     */
+    private void renderSource(String pkg, String source, List<coverageInfo> classes) throws IOException {
+        int maxLine = 0;
+        for (coverageInfo coverage : classes) {
+            counts.put(coverage, countsOf(coverage));
+            for (int m = 0; m < coverage.lineContained.methodCount(); m++) {
+                int n = coverage.lineContained.lineCount(m);
+                if (n > 0)
+                    maxLine = Math.max(maxLine, coverage.lineContained.getLine(m, n - 1));
+            }
+        }
+        byte[] states = new byte[maxLine + 1];
+        long[] hits = null; // per line, the most executed of the methods sharing it, null unless counted
+        for (coverageInfo coverage : classes) {
+            if (coverage.isMethodLevel())
+                continue;
+            if (coverage.lineCovered.hasHits() && hits == null)
+                hits = new long[maxLine + 1];
+            for (int m = 0; m < coverage.lineContained.methodCount(); m++) {
+                if (coverage.isMethodLevel(m))
+                    continue; // lines not recorded
+                for (int i = 0; i < coverage.lineContained.lineCount(m); i++) {
+                    int line = coverage.lineContained.getLine(m, i);
+                    states[line] |= coverage.lineCovered.isCovered(m, i) ? COVERED : MISSED;
+                    if (hits != null)
+                        hits[line] = Math.max(hits[line], coverage.lineCovered.getHits(m, i));
+                }
+            }
+        }
+        Path sourceFile = findSource(pkg, source);
+        String sourcePage = sourceFile == null ? null : source + ".html";
+
+        for (coverageInfo coverage : classes)
+            renderClass(pkg, coverage, sourcePage);
+
+        if (sourceFile == null)
+            return;
+        byte[] text = Files.readAllBytes(sourceFile);
+        long[] lineHits = hits;
+        long fingerprint = ClassHash.combine(ClassHash.hash(text), ClassHash.hash(states));
+        if (lineHits != null) {
+            for (long count : lineHits)
+                fingerprint = ClassHash.combine(fingerprint, count);
+        }
+        page(packageDir(pkg) + "/" + sourcePage, fingerprint, out -> {
+            header(out, source, "index.html", displayName(pkg));
+            out.write("<table class=\"source\">\n");
+            int number = 1;
+            for (String line : new String(text, StandardCharsets.UTF_8).split("\r?\n", -1)) {
+                int state = number < states.length ? states[number] : 0;
+                String css = state == 0 ? "" : state == COVERED ? " class=\"fc\"" : state == MISSED ? " class=\"nc\"" : " class=\"pc\"";
+                String count = lineHits == null ? "" : "<td class=\"nr\">" + (state == 0 ? "" : Long.toString(lineHits[number])) + "</td>";
+                out.write("<tr" + css + " id=\"L" + number + "\"><td class=\"nr\">" + number + "</td>" + count + "<td><pre>" + escape(line) + "</pre></td></tr>\n");
+                number++;
+            }
+            out.write("</table>\n");
+            footer(out);
+        });
+    }
+
+    private void renderClass(String pkg, coverageInfo coverage, String sourcePage) throws IOException {
+        FirstPassResult lines = coverage.lineContained;
+        long fingerprint = ClassHash.combine(ClassHash.hash(utf8(coverage.className + sourcePage)), counts.get(coverage).fingerprint());
+        for (int m = 0; m < lines.methodCount(); m++) {
+            fingerprint = ClassHash.combine(fingerprint, ClassHash.hash(utf8(lines.getMethod(m).toString())));
+            fingerprint = ClassHash.combine(fingerprint, ClassHash.combine(coverage.lineCovered.coveredCount(m),
+                    ClassHash.combine(coverage.branchTracker.getCoveredCount(m), coverage.branchTracker.getBranchCount(m))));
+            fingerprint = ClassHash.combine(fingerprint, coverage.lineCovered.isEntered(m) ? 1 : 0);
+        }
+        page(packageDir(pkg) + "/" + classPage(coverage), fingerprint, out -> {
+            String simpleName = coverage.className.substring(coverage.className.lastIndexOf('/') + 1);
+            header(out, simpleName, "index.html", displayName(pkg));
+            if (sourcePage != null)
+                out.write("<p>Source: <a href=\"" + escape(sourcePage) + "\">" + escape(sourcePage.substring(0, sourcePage.length() - 5)) + "</a></p>\n");
+            out.write("<table>\n<tr><th>Method</th><th>Lines</th><th>Branches</th></tr>\n");
+            for (int m = 0; m < lines.methodCount(); m++) {
+                int lineCount = lines.lineCount(m);
+                int branchCount = coverage.branchTracker.getBranchCount(m);
+                if (lineCount == 0 && branchCount == 0)
+                    continue;
+                String name = escape(lines.getMethod(m).toString());
+                if (sourcePage != null && lineCount > 0)
+                    name = "<a href=\"" + escape(sourcePage) + "#L" + lines.getLine(m, 0) + "\">" + name + "</a>";
+                String lineCell = !coverage.isMethodLevel(m) ? cell(coverage.lineCovered.coveredCount(m), lineCount)
+                        : coverage.lineCovered.isEntered(m) ? "<td class=\"fc\">entered</td>" : "<td class=\"nc\">not entered</td>";
+                out.write("<tr><td>" + name + "</td>" + lineCell
+                        + cell(coverage.branchTracker.getCoveredCount(m), branchCount) + "</tr>\n");
+            }
+            out.write("</table>\n");
+            footer(out);
+        });
+    }
+
+    private void renderPackage(String pkg, Map<String, List<coverageInfo>> sources, Counts total) throws IOException {
+        List<coverageInfo> classes = new ArrayList<>();
+        for (List<coverageInfo> list : sources.values())
+            classes.addAll(list);
+        long fingerprint = total.fingerprint();
+        for (coverageInfo coverage : classes)
+            fingerprint = ClassHash.combine(ClassHash.combine(fingerprint, ClassHash.hash(utf8(coverage.className))), counts.get(coverage).fingerprint());
+        page(packageDir(pkg) + "/index.html", fingerprint, out -> {
+            header(out, displayName(pkg), "../index.html", "all packages");
+            tableHeader(out, "Class");
+            for (coverageInfo coverage : classes) {
+                String simpleName = coverage.className.substring(coverage.className.lastIndexOf('/') + 1);
+                row(out, "<a href=\"" + escape(classPage(coverage)) + "\">" + escape(simpleName) + "</a>", counts.get(coverage));
+            }
+            row(out, "Total", total);
+            out.write("</table>\n");
+            footer(out);
+        });
+    }
+
+    private void renderIndex(Map<String, Counts> packageCounts) throws IOException {
+        Counts total = new Counts();
+        long fingerprint = 0;
+        for (Map.Entry<String, Counts> entry : packageCounts.entrySet()) {
+            total.add(entry.getValue());
+            fingerprint = ClassHash.combine(ClassHash.combine(fingerprint, ClassHash.hash(utf8(entry.getKey()))), entry.getValue().fingerprint());
+        }
+        page("index.html", fingerprint, out -> {
+            header(out, "Coverage report", null, null);
+            tableHeader(out, "Package");
+            for (Map.Entry<String, Counts> entry : packageCounts.entrySet())
+                row(out, "<a href=\"" + escape(packageDir(entry.getKey())) + "/index.html\">" + escape(displayName(entry.getKey())) + "</a>", entry.getValue());
+            row(out, "Total", total);
+            out.write("</table>\n");
+            footer(out);
+        });
+    }
+
+    /**
+     * report.xml: packages, classes and methods with their counters
+     */
+    private void writeXml(Map<String, Map<String, List<coverageInfo>>> packages, Map<String, Counts> packageCounts) throws IOException {
+        Counts total = new Counts();
+        try (BufferedWriter out = Files.newBufferedWriter(outputDir.resolve("report.xml"))) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<report>\n");
+            for (Map.Entry<String, Map<String, List<coverageInfo>>> pkg : packages.entrySet()) {
+                out.write(" <package name=\"" + escape(pkg.getKey()) + "\">\n");
+                for (Map.Entry<String, List<coverageInfo>> source : pkg.getValue().entrySet()) {
+                    for (coverageInfo coverage : source.getValue()) {
+                        out.write("  <class name=\"" + escape(coverage.className) + "\" id=\"" + Long.toHexString(coverage.classId)
+                                + "\" sourcefile=\"" + escape(source.getKey()) + "\">\n");
+                        FirstPassResult lines = coverage.lineContained;
+                        for (int m = 0; m < lines.methodCount(); m++) {
+                            FirstPassResult.MethodSignature method = lines.getMethod(m);
+                            out.write("   <method name=\"" + escape(method.getName()) + "\" desc=\"" + escape(method.getDesc()) + "\""
+                                    + (lines.lineCount(m) > 0 ? " line=\"" + lines.getLine(m, 0) + "\"" : "") + ">");
+                            if (coverage.isMethodLevel(m))
+                                counter(out, "METHOD", coverage.lineCovered.isEntered(m) ? 1 : 0, lines.lineCount(m) > 0 ? 1 : 0);
+                            else
+                                counter(out, "LINE", coverage.lineCovered.coveredCount(m), lines.lineCount(m));
+                            counter(out, "BRANCH", coverage.branchTracker.getCoveredCount(m), coverage.branchTracker.getBranchCount(m));
+                            out.write("</method>\n");
+                        }
+                        counters(out, "   ", counts.get(coverage));
+                        out.write("  </class>\n");
+                    }
+                }
+                counters(out, "  ", packageCounts.get(pkg.getKey()));
+                total.add(packageCounts.get(pkg.getKey()));
+                out.write(" </package>\n");
+            }
+            counters(out, " ", total);
+            out.write("</report>\n");
+        }
+    }
+
+    /**
+     * report.csv: one line per class
+     */
+    private void writeCsv(Map<String, Map<String, List<coverageInfo>>> packages) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(outputDir.resolve("report.csv"))) {
+            out.write("PACKAGE,CLASS,METHOD_MISSED,METHOD_COVERED,LINE_MISSED,LINE_COVERED,BRANCH_MISSED,BRANCH_COVERED\n");
+            for (Map.Entry<String, Map<String, List<coverageInfo>>> pkg : packages.entrySet()) {
+                for (List<coverageInfo> classes : pkg.getValue().values()) {
+                    for (coverageInfo coverage : classes) {
+                        Counts c = counts.get(coverage);
+                        out.write(displayName(pkg.getKey()) + "," + coverage.className.substring(coverage.className.lastIndexOf('/') + 1)
+                                + "," + (c.methods - c.coveredMethods) + "," + c.coveredMethods
+                                + "," + (c.lines - c.coveredLines) + "," + c.coveredLines
+                                + "," + (c.branches - c.coveredBranches) + "," + c.coveredBranches + "\n");
+                    }
+                }
+            }
+        }
+    }
+
+    private static void counter(Writer out, String type, int covered, int total) throws IOException {
+        if (total > 0)
+            out.write("<counter type=\"" + type + "\" missed=\"" + (total - covered) + "\" covered=\"" + covered + "\"/>");
+    }
+
+    private static void counters(Writer out, String indent, Counts c) throws IOException {
+        out.write(indent);
+        counter(out, "METHOD", c.coveredMethods, c.methods);
+        counter(out, "LINE", c.coveredLines, c.lines);
+        counter(out, "BRANCH", c.coveredBranches, c.branches);
+        out.write("\n");
+    }
+
+    private static Counts countsOf(coverageInfo coverage) {
+        Counts c = new Counts();
+        c.methods = coverage.lineContained.numOfMethods();
+        c.coveredMethods = coverage.lineCovered.numOfMethods();
+        if (!coverage.isMethodLevel()) { // lines are not recorded in method mode, nor for methods with an entry probe only
+            c.lines = coverage.recordedStatements();
+            c.coveredLines = coverage.lineCovered.numOfStatements();
+        }
+        for (int m = 0; m < coverage.lineContained.methodCount(); m++) {
+            c.branches += coverage.branchTracker.getBranchCount(m);
+            c.coveredBranches += coverage.branchTracker.getCoveredCount(m);
+        }
+        return c;
+    }
+
+    /**
+     * write a page unless it exists with the same fingerprint
+     * @param   path    relative to the output directory
+     */
+    private void page(String path, long fingerprint, Content content) throws IOException {
+        long key = ClassHash.combine(LAYOUT_VERSION, fingerprint);
+        fingerprints.put(path, key);
+        Path file = outputDir.resolve(path);
+        Long old = previous.get(path);
+        if (old != null && old == key && Files.exists(file)) {
+            unchanged.incrementAndGet();
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            content.write(out);
+        }
+        written.incrementAndGet();
+    }
+
+    private void readFingerprints() throws IOException {
+        Path file = outputDir.resolve(FINGERPRINTS);
+        if (!Files.exists(file))
+            return;
+        for (String line : Files.readAllLines(file)) {
+            int space = line.indexOf(' ');
+            if (space > 0)
+                previous.put(line.substring(space + 1), Long.parseUnsignedLong(line.substring(0, space), 16));
+        }
+    }
+
+    private void writeFingerprints() throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(outputDir.resolve(FINGERPRINTS))) {
+            for (Map.Entry<String, Long> entry : new TreeMap<>(fingerprints).entrySet())
+                out.write(Long.toHexString(entry.getValue()) + " " + entry.getKey() + "\n");
+        }
+    }
+
+    /**
+     * delete the pages of the previous report that this report does not have
+     */
+    private void deleteStalePages() throws IOException {
+        for (String path : previous.keySet()) {
+            if (!fingerprints.containsKey(path))
+                Files.deleteIfExists(outputDir.resolve(path));
+        }
+    }
+
+    private Path findSource(String pkg, String source) {
+        for (Path root : sourceRoots) {
+            Path file = pkg.isEmpty() ? root.resolve(source) : root.resolve(pkg).resolve(source);
+            if (Files.isRegularFile(file))
+                return file;
+        }
+        return null;
+    }
+
+    private static String packageOf(String className) {
+        int slash = className.lastIndexOf('/');
+        return slash < 0 ? "" : className.substring(0, slash);
+    }
+
+    /**
+     * @return  file name of the source of a class: its outer class name + .java
+     */
+    private static String sourceOf(String className) {
+        String simpleName = className.substring(className.lastIndexOf('/') + 1);
+        int dollar = simpleName.indexOf('$');
+        return (dollar > 0 ? simpleName.substring(0, dollar) : simpleName) + ".java";
+    }
+
+    private static String classPage(coverageInfo coverage) {
+        return coverage.className.substring(coverage.className.lastIndexOf('/') + 1) + ".html";
+    }
+
+    /**
+     * @return  directory of the pages of a package, relative to the output directory
+     */
+    private static String packageDir(String pkg) {
+        return pkg.isEmpty() ? "_default" : pkg.replace('/', '.');
+    }
+
+    private static String displayName(String pkg) {
+        return pkg.isEmpty() ? "(default)" : pkg.replace('/', '.');
+    }
+
+    private static void header(Writer out, String title, String up, String upTitle) throws IOException {
+        out.write("<!DOCTYPE html>\n<html><head><meta charset=\"UTF-8\"><title>" + escape(title) + "</title>\n"
+                + "<style>body{font-family:sans-serif}table{border-collapse:collapse}td,th{padding:2px 8px;text-align:left}"
+                + ".source td{padding:0 8px}pre{margin:0}.nr{color:#888;text-align:right}"
+                + ".fc{background:#cfc}.pc{background:#ffc}.nc{background:#fcc}</style></head><body>\n");
+        if (up != null)
+            out.write("<p><a href=\"" + up + "\">" + escape(upTitle) + "</a></p>\n");
+        out.write("<h1>" + escape(title) + "</h1>\n");
+    }
+
+    private static void footer(Writer out) throws IOException {
+        out.write("</body></html>\n");
+    }
+
+    private static void tableHeader(Writer out, String element) throws IOException {
+        out.write("<table>\n<tr><th>" + element + "</th><th>Methods</th><th>Lines</th><th>Branches</th></tr>\n");
+    }
+
+    private static void row(Writer out, String name, Counts c) throws IOException {
+        out.write("<tr><td>" + name + "</td>" + cell(c.coveredMethods, c.methods) + cell(c.coveredLines, c.lines)
+                + cell(c.coveredBranches, c.branches) + "</tr>\n");
+    }
+
+    private static String cell(int covered, int total) {
+        if (total == 0)
+            return "<td>-</td>";
+        return "<td>" + (covered * 100 / total) + "% (" + covered + "/" + total + ")</td>";
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String replacement = switch (c) {
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                case '&' -> "&amp;";
+                case '"' -> "&quot;";
+                default -> null;
+            };
+            if (replacement != null && sb == null)
+                sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+            if (sb != null) {
+                if (replacement != null)
+                    sb.append(replacement);
+                else
+                    sb.append(c);
+            }
+        }
+        return sb == null ? s : sb.toString();
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -1,12 +1,158 @@
+import java.util.Arrays;
 
 /**
  * Second pass information for a single class.<br>
  * Contain method signature -> covered lines.<br>
- * Same structure as FirstPass
+ * Covered lines are bitsets over the lines of the first pass: bit i of a method is its i-th line,
+ * counts are taken with Long.bitCount.<br>
+ * In counting mode each line also has a hit count, absent otherwise.
+ * In method mode no line is covered, entered methods are a bitset over the method indexes.
  * @author kt27
  */
-public class SecondPassResult extends FirstPassResult {
-    public SecondPassResult(String className) {
-        super(className);
+public class SecondPassResult {
+    private final FirstPassResult lineContained;
+    private long[][] covered = new long[0][]; // per method index, null while nothing is covered
+    private long[][] hits; // per method index and line, null unless counted
+    private long[] entered = new long[0]; // method indexes entered, method mode only
+
+    /**
+     * @param   lineContained   the lines the covered ones refer to
+     */
+    public SecondPassResult(FirstPassResult lineContained) {
+        this.lineContained = lineContained;
+    }
+
+    /**
+     * mark a line of a method as covered, lines unknown to the first pass are ignored
+     * @param   m   the method signature this line number to be associated with
+     * @param   line    the line number
+     */
+    public void saveLineNumber(FirstPassResult.MethodSignature m, int line) {
+        int index = lineContained.indexOf(m);
+        if (index < 0)
+            return;
+        int i = lineContained.lineIndex(index, line);
+        if (i >= 0)
+            cover(index, i);
+    }
+
+    /**
+     * mark the i-th line of the method at index as covered
+     */
+    public void cover(int index, int i) {
+        if (index >= covered.length)
+            covered = Arrays.copyOf(covered, lineContained.methodCount());
+        if (covered[index] == null)
+            covered[index] = new long[(lineContained.lineCount(index) + 63) >>> 6];
+        covered[index][i >>> 6] |= 1L << i;
+    }
+
+    /**
+     * @return  true if the i-th line of the method at index is covered
+     */
+    public boolean isCovered(int index, int i) {
+        return index < covered.length && covered[index] != null && (covered[index][i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * @return  number of covered lines of the method at index
+     */
+    public int coveredCount(int index) {
+        if (index >= covered.length || covered[index] == null)
+            return 0;
+        int n = 0;
+        for (long word : covered[index])
+            n += Long.bitCount(word);
+        return n;
+    }
+
+    /**
+     * set the hit count of a line, lines unknown to the first pass are ignored
+     */
+    public void setHits(FirstPassResult.MethodSignature m, int line, long count) {
+        int index = lineContained.indexOf(m);
+        int i = index < 0 ? -1 : lineContained.lineIndex(index, line);
+        if (i < 0)
+            return;
+        if (hits == null)
+            hits = new long[lineContained.methodCount()][];
+        if (hits[index] == null)
+            hits[index] = new long[lineContained.lineCount(index)];
+        hits[index][i] = count;
+    }
+
+    /**
+     * @return  true if hit counts were recorded (counting mode)
+     */
+    public boolean hasHits() {
+        return hits != null;
+    }
+
+    /**
+     * @return  the hit count of the i-th line of the method at index, 0 if not counted
+     */
+    public long getHits(int index, int i) {
+        return hits == null || index >= hits.length || hits[index] == null ? 0 : hits[index][i];
+    }
+
+    /**
+     * mark the method at index as entered (method mode)
+     */
+    public void enterMethod(int index) {
+        if (index < 0)
+            return;
+        if (index >> 6 >= entered.length)
+            entered = Arrays.copyOf(entered, (lineContained.methodCount() + 63) >>> 6);
+        entered[index >>> 6] |= 1L << index;
+    }
+
+    /**
+     * @return  true if the method at index was entered (method mode)
+     */
+    public boolean isEntered(int index) {
+        return index >> 6 < entered.length && (entered[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @return  number of methods with lines that have a covered line or were entered
+     */
+    public int numOfMethods() {
+        int n = 0;
+        for (int m = 0; m < lineContained.methodCount(); m++) {
+            if (coveredCount(m) > 0 || (isEntered(m) && lineContained.lineCount(m) > 0))
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return  number of covered lines in this class
+     */
+    public int numOfStatements() {
+        int n = 0;
+        for (int m = 0; m < covered.length; m++)
+            n += coveredCount(m);
+        return n;
+    }
+
+    /**
+     * for each method: print a list of covered line numbers:<br>
+     * className[method[lineNumbers]]
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(lineContained.getClassName()).append(System.lineSeparator());
+        for (int m = 0; m < covered.length; m++) {
+            if (coveredCount(m) == 0)
+                continue;
+            sb.append(lineContained.getMethod(m)).append(" : ");
+            for (int i = 0; i < lineContained.lineCount(m); i++) {
+                if (isCovered(m, i))
+                    sb.append(lineContained.getLine(m, i)).append(' ');
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
     }
 }
@@ -0,0 +1,360 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Regression test selection: a persistent index from each instrumented class to the tests that ran it.<br>
+ * A class is indexed by name with the content hash of the class file the tests ran (the class id computed by the
+ * agent), its tests as a bitset over the test table. Each test also keeps the hash of its own test class,
+ * which the agent never instruments, when the class path was given to the update.<br>
+ * update folds test index files (session blocks, see CoverageSession) into the index: the tests of the new sessions
+ * replace their old links, the others are kept, so running only the selected tests keeps the index complete.
+ * A class keeps the hash of its latest run; tests not run again against a changed class were not affected by it.<br>
+ * select hashes the class files of the current build and returns the tests that ran a class which changed or
+ * was removed since, and the tests whose test class changed. Tests not in the index yet (new tests) are unknown to it.<br>
+ * File layout (big endian): int MAGIC, short VERSION, int testCount, per test [string testId, long testClassHash (0 unknown)],
+ * int classCount, per class sorted by name [string className, long classId, int wordCount, long[] bitset of its tests]<br>
+ * string: int byte length, UTF-8 bytes
+ * @author kt27
+ */
+public class SelectionIndex {
+    public static final int MAGIC = 0xC0DE7E57;
+    public static final short VERSION = 1;
+
+    /**
+     * one indexed class: the hash of the version its tests ran and the tests
+     */
+    private static class IndexedClass {
+        long classId;
+        final BitSet tests;
+
+        IndexedClass(long classId, BitSet tests) {
+            this.classId = classId;
+            this.tests = tests;
+        }
+    }
+
+    private final List<String> tests = new ArrayList<>(); // test index -> test id
+    private final List<Long> testClassHashes = new ArrayList<>(); // test index -> hash of its test class, 0 if unknown
+    private final Map<String, Integer> testIndex = new HashMap<>();
+    private final Map<String, IndexedClass> classes = new TreeMap<>(); // internal class name -> class
+
+    private int updatedTests;
+    private int unknownClasses;
+
+    /**
+     * @return  the index stored in file, an empty one if the file does not exist
+     */
+    public static SelectionIndex read(Path file) throws IOException {
+        SelectionIndex index = new SelectionIndex();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 6 || buffer.getInt() != MAGIC)
+                throw new IOException("not a selection index file: " + file);
+            short version = buffer.getShort();
+            if (version != VERSION)
+                throw new IOException("unsupported selection index version " + version + ": " + file);
+            int testCount = buffer.getInt();
+            for (int i = 0; i < testCount; i++)
+                index.addTest(getString(buffer), buffer.getLong());
+            int classCount = buffer.getInt();
+            for (int i = 0; i < classCount; i++) {
+                String className = getString(buffer);
+                long classId = buffer.getLong();
+                long[] words = new long[buffer.getInt()];
+                buffer.asLongBuffer().get(words);
+                buffer.position(buffer.position() + words.length * 8);
+                index.classes.put(className, new IndexedClass(classId, BitSet.valueOf(words)));
+            }
+        } catch (NoSuchFileException e) {
+            // first run: empty index
+        }
+        return index;
+    }
+
+    /**
+     * fold the sessions of test index files into this index, see the class comment
+     * @param   files   test index files, and for offline instrumented classes the metadata file
+     * @param   testClassHashes hashes of the build the tests ran, see hashClasses, to record the hash of each test class.
+     *                          Empty if not known
+     */
+    public SelectionIndex update(Collection<Path> files, Map<String, Long> testClassHashes) throws IOException {
+        Map<Long, String> names = new HashMap<>(); // class id -> class name
+        Map<String, Set<Long>> sessions = new LinkedHashMap<>(); // test id -> classes it ran
+        ExecDataReader.Visitor visitor = new ExecDataReader.Visitor() {
+            @Override
+            public void visitClass(coverageInfo coverage) {
+                names.putIfAbsent(coverage.classId, coverage.className);
+            }
+
+            @Override
+            public void visitProbes(long classId, String className, int probeCount, long[] bits) {
+                // overall execution data, not attributed to a test
+            }
+
+            @Override
+            public void visitSession(String testId, long[] classIds, int[] probeCounts, long[][] bits) {
+                Set<Long> ran = sessions.computeIfAbsent(testId, id -> new HashSet<>());
+                for (long classId : classIds)
+                    ran.add(classId);
+            }
+        };
+        for (Path file : files)
+            ExecDataReader.accept(file, visitor);
+
+        BitSet refreshed = new BitSet();
+        for (String testId : sessions.keySet()) {
+            Long hash = testClassHashes.get(testClass(testId));
+            int test = addTest(testId, hash == null ? 0 : hash);
+            if (hash != null)
+                this.testClassHashes.set(test, hash);
+            refreshed.set(test);
+        }
+        // the tests run again replace their links
+        classes.values().removeIf(c -> {
+            c.tests.andNot(refreshed);
+            return c.tests.isEmpty();
+        });
+        for (Map.Entry<String, Set<Long>> session : sessions.entrySet()) {
+            int test = testIndex.get(session.getKey());
+            for (long classId : session.getValue()) {
+                String className = names.get(classId);
+                if (className == null) {
+                    unknownClasses++;
+                    continue;
+                }
+                IndexedClass indexed = classes.computeIfAbsent(className, name -> new IndexedClass(classId, new BitSet()));
+                indexed.classId = classId; // the latest run
+                indexed.tests.set(test);
+            }
+        }
+        updatedTests += sessions.size();
+        return this;
+    }
+
+    /**
+     * @param   current internal class name -> content hash of the current build, see hashClasses
+     * @return  the tests affected by the changes, see the class comment
+     */
+    public Set<String> select(Map<String, Long> current) {
+        BitSet selected = new BitSet();
+        for (Map.Entry<String, IndexedClass> entry : classes.entrySet()) {
+            Long hash = current.get(entry.getKey());
+            if (hash == null || hash != entry.getValue().classId)
+                selected.or(entry.getValue().tests);
+        }
+        for (int test = 0; test < tests.size(); test++) {
+            long recorded = testClassHashes.get(test);
+            Long hash = current.get(testClass(tests.get(test)));
+            // a test class no longer in the build is a deleted test
+            if (recorded != 0 && hash != null && hash != recorded)
+                selected.set(test);
+        }
+        Set<String> result = new TreeSet<>();
+        for (int test = selected.nextSetBit(0); test >= 0; test = selected.nextSetBit(test + 1))
+            result.add(tests.get(test));
+        return result;
+    }
+
+    /**
+     * @return  the classes of current that are indexed and changed or removed, by internal name
+     */
+    public Set<String> changedClasses(Map<String, Long> current) {
+        Set<String> result = new TreeSet<>();
+        for (Map.Entry<String, IndexedClass> entry : classes.entrySet()) {
+            Long hash = current.get(entry.getKey());
+            if (hash == null || hash != entry.getValue().classId)
+                result.add(entry.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * write the index, through a temporary file as ExecDataWriter does
+     */
+    public void write(Path file) throws IOException {
+        List<byte[]> names = new ArrayList<>();
+        long size = 4 + 2 + 4 + 4;
+        for (String test : tests) {
+            byte[] name = test.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += 4 + name.length + 8;
+        }
+        List<long[]> words = new ArrayList<>();
+        for (Map.Entry<String, IndexedClass> entry : classes.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            long[] bits = entry.getValue().tests.toLongArray();
+            names.add(name);
+            words.add(bits);
+            size += 4 + name.length + 8 + 4 + bits.length * 8L;
+        }
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("selection index too large for a single array: " + size);
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putInt(tests.size());
+        for (int test = 0; test < tests.size(); test++) {
+            putString(buffer, names.get(test));
+            buffer.putLong(testClassHashes.get(test));
+        }
+        buffer.putInt(classes.size());
+        int i = 0;
+        for (IndexedClass indexed : classes.values()) {
+            putString(buffer, names.get(tests.size() + i));
+            buffer.putLong(indexed.classId);
+            long[] bits = words.get(i++);
+            buffer.putInt(bits.length);
+            for (long word : bits)
+                buffer.putLong(word);
+        }
+        ExecDataWriter.writeAtomically(file, buffer.array());
+    }
+
+    /**
+     * hash all class files of a class path the way the agent does, in parallel
+     * @param   classPath   class directories and archives, missing entries are ignored. A class found in several entries
+     *                      is taken from the first, as by a class loader
+     * @return  internal class name -> content hash. Entries under META-INF (e.g. multi-release versions) are left out
+     */
+    public static Map<String, Long> hashClasses(List<Path> classPath, int parallelism) throws IOException {
+        List<Map<String, Long>> perEntry = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Path entry : classPath) {
+                Map<String, Long> hashes = new ConcurrentHashMap<>();
+                perEntry.add(hashes);
+                if (Files.isDirectory(entry)) {
+                    List<Path> files;
+                    try (Stream<Path> walk = Files.walk(entry)) {
+                        files = walk.filter(p -> p.toString().endsWith(".class") && Files.isRegularFile(p)).toList();
+                    }
+                    for (Path file : files) {
+                        String name = entry.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                        if (!name.startsWith("META-INF/"))
+                            tasks.add(pool.submit(() -> hashes.put(className(name), hash(file))));
+                    }
+                } else if (Files.isRegularFile(entry)) {
+                    tasks.add(pool.submit(() -> hashArchive(entry, hashes)));
+                }
+            }
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        Map<String, Long> result = new HashMap<>();
+        for (Map<String, Long> hashes : perEntry) {
+            for (Map.Entry<String, Long> hash : hashes.entrySet())
+                result.putIfAbsent(hash.getKey(), hash.getValue());
+        }
+        return result;
+    }
+
+    private static long hash(Path file) {
+        try {
+            return ClassHash.hash(Files.readAllBytes(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void hashArchive(Path archive, Map<String, Long> hashes) {
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/"))
+                    continue;
+                try (InputStream in = zip.getInputStream(entry)) {
+                    hashes.putIfAbsent(className(name), ClassHash.hash(in.readAllBytes()));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String className(String path) {
+        return path.substring(0, path.length() - ".class".length());
+    }
+
+    /**
+     * @return  the internal name of the test class of a test id className#methodName (see CoverageSessionExtension)
+     */
+    private static String testClass(String testId) {
+        int hash = testId.indexOf('#');
+        return (hash < 0 ? testId : testId.substring(0, hash)).replace('.', '/');
+    }
+
+    private int addTest(String testId, long testClassHash) {
+        return testIndex.computeIfAbsent(testId, id -> {
+            tests.add(id);
+            testClassHashes.add(testClassHash);
+            return tests.size() - 1;
+        });
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return  all tests of the index
+     */
+    public List<String> getTests() {
+        return tests;
+    }
+
+    public int getClassCount() {
+        return classes.size();
+    }
+
+    /**
+     * @return  number of tests folded in by update
+     */
+    public int getUpdatedTestCount() {
+        return updatedTests;
+    }
+
+    /**
+     * @return  number of classes run by the sessions folded in whose class block was in none of the files, left out
+     */
+    public int getUnknownClassCount() {
+        return unknownClasses;
+    }
+}
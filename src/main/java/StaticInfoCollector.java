@@ -2,8 +2,8 @@ import org.objectweb.asm.*;
 
 
 /**
- * Adapter between classReader and classWriter.<br>
- * Implement the core algorithm for first pass.
+ * Adapter between classReader and CoverageRecorder.<br>
+ * Implement the core algorithm for first pass: static info is collected in the same pass that inserts the probes.
  * @author kt27
  */
 public class StaticInfoCollector extends ClassVisitor implements Opcodes {
@@ -12,18 +12,18 @@ public class StaticInfoCollector extends ClassVisitor implements Opcodes {
     private final String className;
 
     /**
-     * @param   cv  the class visitor to be encapsulated, it should be a class writer
+     * @param   cv  the class visitor to be encapsulated, it should be the CoverageRecorder in front of a class writer
      * @param   staticInfo  the first pass object to be written into
      */
     public StaticInfoCollector(ClassVisitor cv, FirstPassResult staticInfo, String name) {
-        super(Opcodes.ASM5, cv);
+        super(Opcodes.ASM9, cv);
         this.staticInfo = staticInfo;
         this.className = name;
     }
 
 
     /**
-     * @return  Adapter for underlying initial method visitor of class writer.
+     * @return  Adapter for underlying method visitor of CoverageRecorder.
      * Adapter: save line number info and forward call
      */
     @Override
@@ -33,7 +33,7 @@ public class StaticInfoCollector extends ClassVisitor implements Opcodes {
     }
 
     /**
-     * Encapsulate a methodVisitor of class writer.
+     * Encapsulate a methodVisitor of CoverageRecorder.
      * Override the visitLineNumber method
      */
     private static class LineRecorder extends MethodVisitor implements Opcodes {
@@ -43,7 +43,7 @@ public class StaticInfoCollector extends ClassVisitor implements Opcodes {
 
         //
         public LineRecorder(MethodVisitor mv, FirstPassResult staticInfo, String methodName, String methodDesc) {
-            super(ASM5, mv);
+            super(ASM9, mv);
             this.staticInfo = staticInfo;
             this.methodName = methodName;
             this.methodDesc = methodDesc;
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Query side of the per-test coverage written by CoverageSession.<br>
+ * Loads session blocks and class blocks (from the test index file, and for offline instrumented classes
+ * from the metadata file) and answers which tests executed a class or a line of it.<br>
+ * Hits are kept per class as the bitsets of the sessions, a line is resolved to the probes proving it
+ * through the probe layout of its class.
+ * @author kt27
+ */
+public class TestIndex {
+
+    /**
+     * the probes of one class hit by one test
+     */
+    private static class Hits {
+        final int test;
+        final long[] bits;
+
+        Hits(int test, long[] bits) {
+            this.test = test;
+            this.bits = bits;
+        }
+    }
+
+    private final List<String> tests = new ArrayList<>(); // test index -> test id
+    private final Map<String, Integer> testIndex = new HashMap<>();
+    private final Map<Long, coverageInfo> classes = new HashMap<>(); // class id -> static information
+    private final Map<Long, List<Hits>> class2hits = new HashMap<>(); // class id -> tests that ran it
+
+    /**
+     * load test index files and metadata files, in any order
+     */
+    public static TestIndex read(Collection<Path> files) throws IOException {
+        TestIndex index = new TestIndex();
+        ExecDataReader.Visitor visitor = new ExecDataReader.Visitor() {
+            @Override
+            public void visitClass(coverageInfo coverage) {
+                index.classes.putIfAbsent(coverage.classId, coverage);
+            }
+
+            @Override
+            public void visitProbes(long classId, String className, int probeCount, long[] bits) {
+                // overall execution data, not attributed to a test
+            }
+
+            @Override
+            public void visitSession(String testId, long[] classIds, int[] probeCounts, long[][] bits) {
+                int test = index.testIndex.computeIfAbsent(testId, id -> {
+                    index.tests.add(id);
+                    return index.tests.size() - 1;
+                });
+                for (int i = 0; i < classIds.length; i++)
+                    index.class2hits.computeIfAbsent(classIds[i], id -> new ArrayList<>()).add(new Hits(test, bits[i]));
+            }
+        };
+        for (Path file : files)
+            ExecDataReader.accept(file, visitor);
+        return index;
+    }
+
+    /**
+     * @return  all tests recorded, in the order of their first session
+     */
+    public List<String> getTests() {
+        return tests;
+    }
+
+    /**
+     * @param   className   internal or binary class name
+     * @return  the tests that executed any code of the class
+     */
+    public Set<String> getTests(String className) {
+        return getTests(className, -1);
+    }
+
+    /**
+     * @param   className   internal or binary class name
+     * @param   line    a line number of the class, -1 for any
+     * @return  the tests that executed the line
+     */
+    public Set<String> getTests(String className, int line) {
+        String name = className.replace('.', '/');
+        Set<String> result = new TreeSet<>();
+        for (coverageInfo coverage : classes.values()) {
+            List<Hits> hits = class2hits.get(coverage.classId);
+            if (hits == null || !coverage.className.equals(name))
+                continue;
+            long[] mask = line < 0 ? null : lineMask(coverage.probeLayout, line);
+            for (Hits h : hits) {
+                if (mask == null || intersects(h.bits, mask))
+                    result.add(tests.get(h.test));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return  bitset of the probes proving line, all items of that line in any method
+     */
+    private static long[] lineMask(ProbeLayout layout, int line) {
+        long[] mask = new long[(layout.size() + 63) >>> 6];
+        for (int i = 0; i < layout.itemCount(); i++) {
+            ProbeLayout.Item item = layout.getItem(i);
+            if (item.kind == ProbeLayout.LINE && item.value == line) {
+                for (int probe : item.probes)
+                    mask[probe >>> 6] |= 1L << probe;
+            }
+        }
+        return mask;
+    }
+
+    private static boolean intersects(long[] bits, long[] mask) {
+        for (int i = 0; i < bits.length && i < mask.length; i++) {
+            if ((bits[i] & mask[i]) != 0)
+                return true;
+        }
+        return false;
+    }
+}
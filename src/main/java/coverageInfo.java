@@ -3,18 +3,111 @@
  * The overall two-part coverage information for a single class.<br>
  * First part: static line number association for each class: method.<br>
  * Second part: line number coverage for each class: method.<br>
+ * The second part is rebuilt from the probe array of the class at dump time.
  * @author kt27
  */
 public class coverageInfo {
     public FirstPassResult lineContained; // line numbers of methods
     public SecondPassResult lineCovered; // covered line numbers of methods
     public BranchTracker branchTracker;
+    public String className;
+    public long classId; // content hash of the original class file
+    public ProbeLayout probeLayout; // lines and branches -> probes proving them
+    private long[] entryOnly; // method indexes recording only their entry, built on first use
 
     public coverageInfo(FirstPassResult lineContained, SecondPassResult lineCovered) {
         this.lineContained = lineContained;
         this.lineCovered = lineCovered;
     }
 
+    /**
+     * Fold the hit probes into covered lines and covered branches.<br>
+     * Probes are read racily: a probe set concurrently is picked up by the next fold
+     * @param   probes  the probe array of this class
+     */
+    public synchronized void collect(boolean[] probes) {
+        for (int i = 0; i < probeLayout.itemCount(); i++) {
+            ProbeLayout.Item item = probeLayout.getItem(i);
+            if (!item.isCovered(probes))
+                continue;
+            if (item.kind == ProbeLayout.LINE)
+                lineCovered.saveLineNumber(item.method, item.value);
+            else if (item.kind == ProbeLayout.BRANCH)
+                branchTracker.coverBranch(item.method, item.value);
+            else
+                lineCovered.enterMethod(lineContained.indexOf(item.method));
+        }
+    }
+
+    /**
+     * @return  true if the class was instrumented in method mode: only method entries are recorded
+     */
+    public boolean isMethodLevel() {
+        for (int i = 0; i < probeLayout.itemCount(); i++) {
+            if (probeLayout.getItem(i).kind != ProbeLayout.METHOD)
+                return false;
+        }
+        return probeLayout.itemCount() > 0;
+    }
+
+    /**
+     * @return  true if the method at index records only its entry, not its lines and branches: method mode,
+     * or a method too large for finer probes (see CoverageRecorder.chooseEmission)
+     */
+    public boolean isMethodLevel(int index) {
+        long[] methods = entryOnly;
+        if (methods == null) {
+            methods = new long[(lineContained.methodCount() + 63) >>> 6];
+            for (int i = 0; i < probeLayout.itemCount(); i++) {
+                ProbeLayout.Item item = probeLayout.getItem(i);
+                int m = item.kind == ProbeLayout.METHOD ? lineContained.indexOf(item.method) : -1;
+                if (m >= 0)
+                    methods[m >>> 6] |= 1L << m;
+            }
+            entryOnly = methods;
+        }
+        return index >>> 6 < methods.length && (methods[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @return  number of lines of the methods recording their lines
+     */
+    public int recordedStatements() {
+        int statements = lineContained.numOfStatements();
+        for (int m = 0; m < lineContained.methodCount(); m++) {
+            if (isMethodLevel(m))
+                statements -= lineContained.lineCount(m);
+        }
+        return statements;
+    }
+
+    /**
+     * Set the hit counts of lines and branches from the probe counters (counting mode).<br>
+     * Each execution of a block hits exactly one of the probes proving it, so the count of a block is the sum
+     * over its probes. A line spread over several blocks (e.g. a loop header: initialization, condition, update)
+     * has an item per block and counts as often as its most executed block, a branch is the sum over its probes
+     * @param   counts  hit count per probe of this class
+     */
+    public synchronized void collectCounts(long[] counts) {
+        ProbeLayout.Item previous = null;
+        long hits = 0;
+        for (int i = 0; i < probeLayout.itemCount(); i++) {
+            ProbeLayout.Item item = probeLayout.getItem(i);
+            long sum = 0;
+            for (int probe : item.probes)
+                sum += counts[probe];
+            if (item.kind == ProbeLayout.LINE) {
+                boolean sameLine = previous != null && previous.kind == ProbeLayout.LINE
+                        && previous.method.equals(item.method) && previous.value == item.value; // the items of a line are adjacent
+                hits = sameLine ? Math.max(hits, sum) : sum;
+                lineCovered.setHits(item.method, item.value, hits);
+            } else if (item.kind == ProbeLayout.BRANCH) {
+                branchTracker.setHits(item.method, item.value, sum);
+            }
+            previous = item;
+        }
+    }
+
     public String getMethodCoverage() {
         if (lineContained.numOfMethods() == 0)
             return "no coverage";
@@ -23,11 +116,14 @@ public class coverageInfo {
         return percent + "(" + lineCovered.numOfMethods() + "/" + lineContained.numOfMethods() + ")";
     }
     public String getStatementCoverage() {
-        if (lineContained.numOfStatements() == 0)
+        if (isMethodLevel())
+            return "not recorded (method mode)";
+        int statements = recordedStatements();
+        if (statements == 0)
             return "no coverage";
-        double percent =  lineCovered.numOfStatements() * 1.0 / lineContained.numOfStatements();
+        double percent =  lineCovered.numOfStatements() * 1.0 / statements;
         percent = Math.round(percent*100.0)/100.0;
-        return percent + "(" + lineCovered.numOfStatements() + "/" + lineContained.numOfStatements() + ")";
+        return percent + "(" + lineCovered.numOfStatements() + "/" + statements + ")";
     }
 
 }
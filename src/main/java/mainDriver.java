@@ -1,12 +1,16 @@
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
+import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
+import java.nio.file.Path;
 import java.security.ProtectionDomain;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.Map;
-import java.util.SortedSet;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * the main class monitoring the coverage information <br>
@@ -17,71 +21,172 @@ public class mainDriver implements ClassFileTransformer {
 
 
     /**
-     * Mapping from className to printable coverage information.<br>
-     * The main data structure that is updated by record trigger
+     * The classes instrumented in this JVM, per class loader, with their static information.<br>
+     * The covered part is rebuilt from the class probe array at dump time.<br>
+     * Concurrent: classes may be transformed by parallel class loaders
      */
-    private static final Map<String, coverageInfo> class2coverage = new HashMap<>();
+    private static final ClassRegistry registry = new ClassRegistry();
 
     /**
-     * Mapping from className to branch coverage information.<br>
-     * The main data structure that is updated by recordBranch trigger
+     * Fold the probe arrays of all executed classes into the line and branch coverage model.<br>
+     * Application threads never touch the model, they only set probes: folding runs on the dumping thread
      */
-    private static final Map<String, BranchTracker> class2branchCoverage = new HashMap<>();
+    public static void collect() {
+        for (coverageInfo coverage : registry.classes()) {
+            ExecutionData data = ProbeRuntime.getExecutionData(coverage.classId);
+            if (data == null)
+                continue;
+            coverage.collect(ExecDataReader.toProbes(data.snapshot(), data.probes.length));
+            long[] counts = data.counts();
+            if (counts != null)
+                coverage.collectCounts(counts);
+        }
+    }
+
+    /**
+     * @return  the coverage of all classes instrumented in this JVM, probes not folded in
+     */
+    static Collection<coverageInfo> getInstrumentedClasses() {
+        return registry.classes();
+    }
+
+    /**
+     * @return  the registry of the classes instrumented in this JVM
+     */
+    static ClassRegistry getRegistry() {
+        return registry;
+    }
 
     /**
-     * the trigger invoke for each line executed.<br>
-     * imply that a line has been covered
-     * @param   line    the line number that trigger this method
+     * Write static information and execution data of all instrumented classes into file
+     * @param   file    the execution data file, replaced if it exists
      */
-    public static void record(String className, String methodName, String mDesc, int line) {
-        class2coverage.get(className).lineCovered.saveLineNumber(methodName, mDesc, line);
+    public static synchronized void dump(Path file) throws IOException {
+        ExecDataWriter.write(file, registry.classes(), ProbeRuntime.getAllExecutionData());
     }
 
     /**
-     * the trigger invoke for each valid jump instruction executed.<br>
-     * imply that current branch has been covered
-     * @param   branchId    the branch id that trigger this method
+     * print the coverage of all classes instrumented in this JVM
      */
-    public static void recordBranch(String className, String methodName, String mDesc, int branchId) {
-        class2branchCoverage.get(className).coverBranch(new FirstPassResult.MethodSignature(methodName, mDesc), branchId);
+    public static synchronized void printResult() {
+        collect();
+        printResult(registry.classes(), System.out);
     }
 
-    public static void printResult() {
-        for (Map.Entry<String, coverageInfo> classCoverageInfo : class2coverage.entrySet()) {
-            System.out.println("class name: " + classCoverageInfo.getKey());
-            System.out.println("Method coverage: " + classCoverageInfo.getValue().getMethodCoverage());
-            System.out.println("Statement coverage: " + classCoverageInfo.getValue().getStatementCoverage());
-            coverageInfo coverage = classCoverageInfo.getValue();
-            BranchTracker branchTracker = class2branchCoverage.get(classCoverageInfo.getKey());
-            for (FirstPassResult.MethodSignature methodSig: coverage.lineContained.method2lines.keySet()) {
-                System.out.println("************************************************");
-                System.out.println("method: " + methodSig.toString());
-                SortedSet<Integer> linesContained = coverage.lineContained.method2lines.get(methodSig);
-                SortedSet<Integer> linesCovered = coverage.lineCovered.method2lines.get(methodSig);
-                System.out.println("statements contained: " + linesContained);
-                System.out.println("statements covered: " + linesCovered);
-                System.out.println("branch coverage: " + branchTracker.getBranchCoverage(methodSig));
+    /**
+     * print a textual coverage summary, per class and method
+     * @param   classes coverage with the probes already collected, e.g. loaded by ExecDataReader
+     */
+    public static void printResult(Collection<coverageInfo> classes, PrintStream out) {
+        for (coverageInfo coverage : classes) {
+            out.println("class name: " + coverage.className);
+            out.println("Method coverage: " + coverage.getMethodCoverage());
+            out.println("Statement coverage: " + coverage.getStatementCoverage());
+            BranchTracker branchTracker = coverage.branchTracker;
+            FirstPassResult lineContained = coverage.lineContained;
+            for (int m = 0; m < lineContained.methodCount(); m++) {
+                if (lineContained.lineCount(m) == 0)
+                    continue;
+                FirstPassResult.MethodSignature methodSig = lineContained.getMethod(m);
+                out.println("************************************************");
+                out.println("method: " + methodSig.toString());
+                if (coverage.isMethodLevel(m)) {
+                    out.println("entered: " + coverage.lineCovered.isEntered(m));
+                    continue;
+                }
+                out.println("statements contained: " + lines(coverage, m, false));
+                out.println("statements covered: " + lines(coverage, m, true));
+                out.println("branch coverage: " + branchTracker.getBranchCoverage(methodSig));
+                if (coverage.lineCovered.hasHits())
+                    out.println("statement hits: " + hits(coverage, m));
+                if (branchTracker.hasHits() && branchTracker.getBranchCount(m) > 0)
+                    out.println("branch hits: " + branchHits(branchTracker, m));
 
 
             }
-            System.out.println("---------------------------------------------------");
-            System.out.println("---------------------------------------------------");
-            System.out.println();
+            out.println("---------------------------------------------------");
+            out.println("---------------------------------------------------");
+            out.println();
+        }
+    }
+
+    /**
+     * @return  the contained or covered lines of the method at index as [l1, l2, ...], null if none is covered
+     */
+    private static String lines(coverageInfo coverage, int index, boolean coveredOnly) {
+        if (coveredOnly && coverage.lineCovered.coveredCount(index) == 0)
+            return null;
+        StringJoiner lines = new StringJoiner(", ", "[", "]");
+        for (int i = 0; i < coverage.lineContained.lineCount(index); i++) {
+            if (!coveredOnly || coverage.lineCovered.isCovered(index, i))
+                lines.add(Integer.toString(coverage.lineContained.getLine(index, i)));
         }
+        return lines.toString();
+    }
+
+    /**
+     * @return  the hit count of each line of the method at index as [line:count, ...]
+     */
+    private static String hits(coverageInfo coverage, int index) {
+        StringJoiner hits = new StringJoiner(", ", "[", "]");
+        for (int i = 0; i < coverage.lineContained.lineCount(index); i++)
+            hits.add(coverage.lineContained.getLine(index, i) + ":" + coverage.lineCovered.getHits(index, i));
+        return hits.toString();
+    }
+
+    /**
+     * @return  the hit count of each branch of the method at index as [branchId:count, ...]
+     */
+    private static String branchHits(BranchTracker branchTracker, int index) {
+        StringJoiner hits = new StringJoiner(", ", "[", "]");
+        for (int id = 0; id < branchTracker.getBranchCount(index); id++)
+            hits.add(id + ":" + branchTracker.getHits(index, id));
+        return hits.toString();
     }
 
 
-    private final String projectName;
+    private final ClassFilter filter;
+    private final AgentOptions options;
+    private final String key; // options.instrumentationKey(), identical bytes share their instrumented version under it
+    private final InstrumentationCache cache; // null if disabled
+    private final ProbeStripper stripper; // null unless in adaptive mode
+    private final AgentMetrics metrics; // null if turned off
+    private final Map<Class<?>, InstrumentedClass> prepared = new ConcurrentHashMap<>(); // loaded class -> instrumented ahead of its retransformation
+
 
+    public mainDriver(AgentOptions options) {
+        this.filter = new ClassFilter(options);
+        this.options = options;
+        this.key = options.instrumentationKey();
+        this.cache = options.cacheDir == null ? null
+                : new InstrumentationCache(Path.of(options.cacheDir), options.cacheSize << 20, key);
+        // stripped probes would stop counting: no adaptive mode in counting mode
+        this.stripper = options.adaptiveInterval > 0 && !options.isCounting() && !options.attached ? new ProbeStripper(options.adaptiveInterval * 1000) : null;
+        this.metrics = options.metrics ? new AgentMetrics(options.isCounting(), stripper, options.growthFile != null) : null;
+    }
 
-    public mainDriver(String projectName) {
-        this.projectName = projectName;
+    /**
+     * @return  the probe stripper of the adaptive mode, null if disabled
+     */
+    public ProbeStripper getStripper() {
+        return stripper;
+    }
+
+    /**
+     * @return  the metrics of this transformer, null if turned off
+     */
+    public AgentMetrics getMetrics() {
+        return metrics;
+    }
+
+    public mainDriver(String agentArgs) {
+        this(AgentOptions.parse(agentArgs));
     }
 
     /**
      * driver for class file pre-processing<br>
-     * For each non-test class file, apply two-pass transformation on it
-     * @param   className   class name, only non-test file get selected and transformed
+     * For each class file selected by the filter, apply the single-pass transformation on it
+     * @param   className   class name, see ClassFilter for the classes selected and transformed
      * @param   classfileBuffer class file bytecode
      */
     public byte[] transform(ClassLoader loader,
@@ -90,60 +195,150 @@ public class mainDriver implements ClassFileTransformer {
                             ProtectionDomain protectionDomain,
                             byte[] classfileBuffer) throws IllegalClassFormatException {
 
-        if (className.contains(projectName) && !className.contains("/test/") && !className.contains("Test")) { // do not coverage junit class
-            FirstPassResult firstPassInfo = new FirstPassResult(className);
-            // record method->lines into FirstPassInfo for className
-            byte[] output = passOne(classfileBuffer, firstPassInfo, className);
-            // setup with empty second pass information
-            class2coverage.put(className, new coverageInfo(firstPassInfo, new SecondPassResult(className)));
-            BranchTracker branchTracker = new BranchTracker(className);
-            class2branchCoverage.put(className, branchTracker);
-            output = passTwo(output, className, branchTracker); // add several bytecodes
-            // for each method, add:
-            // an invocation of collect method for each line of code
-            // when the method is invoked: we can know that line has been covered
+        if (filter.isIncluded(loader, className, protectionDomain, classfileBuffer) && !CoverageRecorder.isInstrumented(classfileBuffer)) { // offline instrumented classes record by themselves
+            long start = metrics == null ? 0 : System.nanoTime();
+            long classId = ClassHash.hash(classfileBuffer);
+            if (metrics != null)
+                metrics.hashed(System.nanoTime() - start);
+            if (classBeingRedefined != null && stripper != null) {
+                // retransformation: the original bytes again, the hit probes are left out
+                InstrumentedClass instrumented = instrumentClass(className, classId, classfileBuffer, options, stripper.getStripped(classId), metrics);
+                coverageInfo registered = registry.get(loader, className);
+                if (registered != null && registered.classId == classId) {
+                    if (metrics != null)
+                        metrics.transformed(classfileBuffer.length, instrumented.classfile.length, false, System.nanoTime() - start);
+                    return instrumented.classfile; // same probe layout as the registered one
+                }
+            }
+            // the bytes of a retransformation are reconstituted by the JVM when no agent kept the loaded ones:
+            // a prepared class is found by the class, not by the hash
+            InstrumentedClass instrumented = classBeingRedefined == null ? null : prepared.remove(classBeingRedefined);
+            if (instrumented == null)
+                instrumented = registry.getInstrumented(classId, key); // same bytes defined by another loader: analyzed once
+            if (instrumented == null && cache != null)
+                instrumented = cache.get(classId); // same bytes instrumented by an earlier run: no ASM involved
+            boolean reused = instrumented != null;
+            if (instrumented == null) {
+                instrumented = instrumentClass(className, classId, classfileBuffer, options, null, metrics);
+                if (cache != null)
+                    cache.put(classId, instrumented);
+            }
+            registry.register(loader, className, instrumented, key);
+            if (options.attached) // the instrumented code looks its probes up by class id, they must exist before it runs
+                ProbeRuntime.getProbes(instrumented.coverage.classId, className, instrumented.coverage.probeLayout.size());
+            if (metrics != null)
+                metrics.transformed(classfileBuffer.length, instrumented.classfile.length, reused, System.nanoTime() - start);
+            return instrumented.classfile;
+        } else {
+            if (metrics != null)
+                metrics.skipped();
+            return classfileBuffer;
+        }
+    }
 
-            return output;
-        } else return classfileBuffer;
+    /**
+     * instrument a class ahead of its retransformation, so that the transformation inside
+     * retransformClasses is a lookup. Used by the dynamic attach on many threads
+     * @param   loaded  the class to retransform
+     * @param   classfile   its class file, read from its class loader. If it does not match the loaded class
+     *                      the retransformation fails and is retried with the bytes given by the JVM
+     */
+    public void prepare(Class<?> loaded, byte[] classfile) {
+        if (CoverageRecorder.isInstrumented(classfile))
+            return;
+        String className = loaded.getName().replace('.', '/');
+        prepared.put(loaded, instrumentClass(className, ClassHash.hash(classfile), classfile, options, null, metrics));
     }
 
     /**
-     * @param   classByte   input class bytecode
-     * @param   firstPassInfo   FirstPass object include static method-lines association <br>
-     * stream class ByteCode from input to output, only line number info is recorded into first-pass object:<br>
-     * 1. classReader invoke StaticInfoCollector.visitMethod for each method, get an adapter(lineRecorder) for underlying classWriter methodVisitor.<br>
-     * 2. classReader invoke corresponding method of lineRecorder on each instruction element of the method.<br>
-     * 3. for each invocation of lineRecorder.visitLineNumber, the method-lineNumber association is added to first-pass object<br>
-     * 4. normal forwarding to the underlying classWriter
+     * drop the classes prepared but never retransformed
      */
-    private byte[] passOne(byte[] classByte, FirstPassResult firstPassInfo, String name) {
-        byte[] outPutByte;
-        ClassReader reader = new ClassReader(classByte);
-        ClassWriter writer = new ClassWriter(reader, 0);
-        StaticInfoCollector adapter = new StaticInfoCollector(writer, firstPassInfo, name);
-        reader.accept(adapter, 0);
-        outPutByte = writer.toByteArray();
-        return outPutByte;
+    public void clearPrepared() {
+        prepared.clear();
     }
 
+    /**
+     * @return  the filter selecting the classes to instrument
+     */
+    public ClassFilter getFilter() {
+        return filter;
+    }
 
     /**
-     * @param    name    class name
-     * 1. classReader invoke CoverageRecorder.visitMethod for each method, get a adapter encapsulating classWriter methodVisitor<br>
-     * 2. classReader invoke corresponding method of the adapter on each instruction element of the method<br>
-     * 3. for each invocation of adapter's visitLineNumber:<br>
-     * forward calls to classWriter to insert a method invocation of mainDriver.record before a plain delegation
-     * 4. for each invocation of adapter's visitJumpInsn:<br>
-     * Register the current branch, forward calls to classWriter to insert a method invocation of mainDriver.recordBranch before a plain delegation
-     *
+     * instrument a single class, without registering it in this JVM.<br>
+     * shared by the agent, the instrumentation cache and the offline instrumenter
+     * @param   className   internal class name
+     * @param   classId     the content hash of classfileBuffer
+     * @return  the instrumented class file and its static information
+     */
+    public static InstrumentedClass instrumentClass(String className, long classId, byte[] classfileBuffer) {
+        return instrumentClass(className, classId, classfileBuffer, new AgentOptions(), null);
+    }
+
+    /**
+     * @param   options the options changing the instrumented bytes, see AgentOptions.instrumentationKey
+     * @param   stripped    probes to leave out, null to insert all. The probe layout does not depend on it
+     */
+    public static InstrumentedClass instrumentClass(String className, long classId, byte[] classfileBuffer, AgentOptions options, boolean[] stripped) {
+        return instrumentClass(className, classId, classfileBuffer, options, stripped, null);
+    }
+
+    /**
+     * @param   metrics where the time of the pass and the probes inserted are added, null to measure nothing
+     */
+    public static InstrumentedClass instrumentClass(String className, long classId, byte[] classfileBuffer, AgentOptions options,
+                                                    boolean[] stripped, AgentMetrics metrics) {
+        // setup with empty second pass information
+        FirstPassResult firstPassInfo = new FirstPassResult(className);
+        coverageInfo coverage = new coverageInfo(firstPassInfo, new SecondPassResult(firstPassInfo));
+        BranchTracker branchTracker = new BranchTracker(firstPassInfo);
+        ProbeLayout probeLayout = new ProbeLayout();
+        coverage.branchTracker = branchTracker;
+        coverage.className = className;
+        coverage.classId = classId;
+        coverage.probeLayout = probeLayout;
+        // record method->lines into FirstPassInfo for className, and for each method, add:
+        // a fetch of the class probe array at method entry
+        // a probe store for each line of code and each branch
+        // when the probe is set: we can know that line has been covered
+        byte[] output = instrument(classfileBuffer, className, classId, firstPassInfo, branchTracker, probeLayout, options, stripped, metrics);
+        return new InstrumentedClass(coverage, output);
+    }
+
+    /**
+     * @param   classByte   input class bytecode
+     * @param   name    class name
+     * @param   firstPassInfo   FirstPass object include static method-lines association <br>
+     * stream class ByteCode from input to output in a single pass, StaticInfoCollector -> CoverageRecorder -> classWriter:<br>
+     * 1. classReader invoke StaticInfoCollector.visitMethod for each method, get an adapter(lineRecorder) encapsulating the CoverageRecorder adapter.<br>
+     * 2. classReader invoke corresponding method of lineRecorder on each instruction element of the method.<br>
+     * 3. for each invocation of lineRecorder.visitLineNumber, the method-lineNumber association is added to first-pass object,
+     * then CoverageRecorder registers a line probe and inserts a probe store before a plain delegation<br>
+     * 4. for each invocation of visitJumpInsn:<br>
+     * CoverageRecorder registers the current branch and a branch probe, inserts a probe store before a plain delegation<br>
+     * 5. frames are read expanded and kept: probes add no branch, only the probe local is appended to each existing frame.
+     * classWriter only computes max stack/locals, so no class is ever loaded for getCommonSuperClass<br>
+     * 6. method mode: only an entry probe per method, see CoverageRecorder
      */
-    private byte[] passTwo(byte[] classByte, String name, BranchTracker branchTracker) {
+    private static byte[] instrument(byte[] classByte, String name, long classId, FirstPassResult firstPassInfo,
+                              BranchTracker branchTracker, ProbeLayout probeLayout, AgentOptions options, boolean[] stripped,
+                              AgentMetrics metrics) {
         byte[] output;
         ClassReader reader = new ClassReader(classByte);
-        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_FRAMES);
-        CoverageRecorder adapter = new CoverageRecorder(writer, name, branchTracker);
-        reader.accept(adapter, 0);
+        // method mode adds no local and only raises the max stack itself: frames stay compressed, nothing is computed
+        boolean methodLevel = options.mode.equals(AgentOptions.MODE_METHOD);
+        ClassWriter writer = new ClassWriter(reader, methodLevel ? 0 : ClassWriter.COMPUTE_MAXS);
+        CoverageRecorder recorder = new CoverageRecorder(writer, name, classId, firstPassInfo, branchTracker, probeLayout, options, stripped);
+        recorder.setConstantPoolSize(reader.getItemCount());
+        if (metrics != null && metrics.recordsGrowth())
+            recorder.recordGrowth();
+        StaticInfoCollector adapter = new StaticInfoCollector(recorder, firstPassInfo, name);
+        long start = metrics == null ? 0 : System.nanoTime();
+        reader.accept(adapter, methodLevel ? 0 : ClassReader.EXPAND_FRAMES);
+        long accepted = metrics == null ? 0 : System.nanoTime();
         output = writer.toByteArray();
+        if (metrics != null)
+            metrics.instrumented(accepted - start, System.nanoTime() - accepted, recorder);
         return output;
     }
 
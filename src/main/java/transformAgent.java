@@ -1,23 +1,215 @@
+import java.io.File;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Java agent startup<br>
- * Register and invoke the main driver
+ * Register and invoke the main driver, write the execution data file at exit.<br>
+ * Loaded into a running JVM, the agent instruments the classes already loaded (see AttachAgent).<br>
+ * The main method runs the post-processing commands on execution data files.
  * @author kt27
  */
 public class transformAgent {
     public static void premain(String agentArgs, Instrumentation inst) {
-        mainDriver transformer = new mainDriver(agentArgs); // should be the project name
-        inst.addTransformer(transformer);
+        AgentOptions options = AgentOptions.parse(agentArgs);
+        ProbeRuntime.agentLoaded = true;
+        mainDriver transformer = new mainDriver(options);
+        if (options.adaptiveInterval > 0 && options.isCounting())
+            System.err.println("coverage: adaptive mode disabled in counting mode");
+        ProbeStripper stripper = transformer.getStripper();
+        boolean adaptive = stripper != null && inst.isRetransformClassesSupported();
+        inst.addTransformer(transformer, adaptive);
+        if (adaptive)
+            stripper.start(inst);
+        else if (stripper != null)
+            System.err.println("coverage: retransformation not supported by this JVM, adaptive mode disabled");
+        CoverageSession.configure(options.getTestFile(), adaptive ? stripper : null);
+        if (options.control != null || options.jmx) {
+            CoverageController controller = new CoverageController(adaptive ? stripper : null);
+            try {
+                if (options.control != null)
+                    controller.listen(options.control);
+                if (options.jmx)
+                    controller.registerMBean();
+            } catch (Exception e) {
+                System.err.println("coverage: control channel disabled: " + e);
+            }
+        }
+        startMetrics(transformer.getMetrics(), options);
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
-                mainDriver.printResult();
+                Path file = options.getDestFile();
+                try {
+                    mainDriver.dump(file);
+                } catch (IOException e) {
+                    System.err.println("coverage: failed to write " + file + ": " + e);
+                }
+                writeGrowth(transformer.getMetrics(), options);
             }
         });
     }
 
-    public static void main(String[] args) {
+    /**
+     * register the metrics MBean and start the metrics log line, as the options ask
+     * @param   metrics null if turned off
+     */
+    static void startMetrics(AgentMetrics metrics, AgentOptions options) {
+        if (metrics == null)
+            return;
+        if (options.jmx) {
+            try {
+                metrics.registerMBean();
+            } catch (Exception e) {
+                System.err.println("coverage: metrics MBean disabled: " + e);
+            }
+        }
+        if (options.metricsLogInterval > 0)
+            metrics.start(options.metricsLogInterval * 1000);
+    }
+
+    /**
+     * write the method growth file if the options ask for it
+     * @param   metrics null if turned off
+     */
+    static void writeGrowth(AgentMetrics metrics, AgentOptions options) {
+        Path file = options.getGrowthFile();
+        if (metrics == null || file == null)
+            return;
+        try {
+            metrics.writeGrowth(file);
+        } catch (IOException e) {
+            System.err.println("coverage: failed to write " + file + ": " + e);
+        }
+    }
+
+    /**
+     * entry point when the agent is loaded into a running JVM
+     */
+    public static void agentmain(String agentArgs, Instrumentation inst) {
+        AttachAgent.agentmain(agentArgs, inst);
+    }
+
+    /**
+     * command line:<br>
+     * print execfile... : print the textual coverage summary of the given execution data files
+     * (for offline instrumented classes: the metadata file followed by the execution data files)<br>
+     * instrument projectName source target metadatafile : instrument a class directory or an archive ahead of time<br>
+     * control address snapshot|reset|delta execfile : fetch live execution data from the control channel of a running agent<br>
+     * merge outfile execfile|directory... : merge execution data files of many JVMs into one<br>
+     * report outputDir sourcepath execfile... : write the HTML, XML and CSV report, sourcepath lists the source roots
+     * separated by the path separator (may be empty)<br>
+     * tests className[:line] testfile... : list the tests that executed a class or a line, from test index files
+     * (for offline instrumented classes: the metadata file followed by the test index files)<br>
+     * attach pid [agentArgs|detach] : load the agent into a running JVM, or end its recording<br>
+     * testindex indexfile classpath testfile... : fold test index files into the selection index, created if missing.
+     * classpath is the class path the tests ran with, separated by the path separator (may be empty)<br>
+     * select indexfile classpath : list the tests affected by the changes of the build on classpath since the index
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("print")) {
+            List<Path> files = new ArrayList<>();
+            for (int i = 1; i < args.length; i++)
+                files.add(Path.of(args[i]));
+            mainDriver.printResult(ExecDataReader.read(files).values(), System.out);
+        } else if (args.length == 5 && args[0].equals("instrument")) {
+            long start = System.nanoTime();
+            OfflineInstrumenter instrumenter = new OfflineInstrumenter(AgentOptions.parse(args[1]),
+                    Runtime.getRuntime().availableProcessors());
+            try {
+                instrumenter.instrument(Path.of(args[2]), Path.of(args[3]));
+                instrumenter.writeMetadata(Path.of(args[4]));
+            } finally {
+                instrumenter.shutdown();
+            }
+            System.out.println("instrumented " + instrumenter.getInstrumentedCount() + " classes ("
+                    + instrumenter.getSkippedCount() + " failed) in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } else if (args.length == 4 && args[0].equals("control")) {
+            ExecDataWriter.writeAtomically(Path.of(args[3]), CoverageController.request(args[1], args[2]));
+        } else if (args.length >= 3 && args[0].equals("merge")) {
+            long start = System.nanoTime();
+            List<Path> files = new ArrayList<>();
+            for (int i = 2; i < args.length; i++)
+                files.add(Path.of(args[i]));
+            ExecDataMerger merger = new ExecDataMerger().merge(files, Runtime.getRuntime().availableProcessors());
+            merger.write(Path.of(args[1]));
+            List<String> conflicts = merger.getConflicts();
+            for (String conflict : conflicts)
+                System.err.println("coverage: conflict: " + conflict);
+            System.out.println("merged " + merger.getFileCount() + " files, " + merger.getClassCount() + " classes ("
+                    + conflicts.size() + " conflicts) in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } else if (args.length >= 4 && args[0].equals("report")) {
+            long start = System.nanoTime();
+            List<Path> sourceRoots = paths(args[2]);
+            List<Path> files = new ArrayList<>();
+            for (int i = 3; i < args.length; i++)
+                files.add(Path.of(args[i]));
+            Collection<coverageInfo> classes = ExecDataReader.read(files).values();
+            ReportGenerator generator = new ReportGenerator(Path.of(args[1]), sourceRoots);
+            generator.generate(classes, Runtime.getRuntime().availableProcessors());
+            System.out.println("report of " + classes.size() + " classes: " + generator.getWrittenCount() + " pages written, "
+                    + generator.getUnchangedCount() + " unchanged in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } else if (args.length >= 3 && args[0].equals("tests")) {
+            List<Path> files = new ArrayList<>();
+            for (int i = 2; i < args.length; i++)
+                files.add(Path.of(args[i]));
+            int colon = args[1].lastIndexOf(':');
+            String className = colon < 0 ? args[1] : args[1].substring(0, colon);
+            int line = colon < 0 ? -1 : Integer.parseInt(args[1].substring(colon + 1));
+            for (String test : TestIndex.read(files).getTests(className, line))
+                System.out.println(test);
+        } else if (args.length >= 4 && args[0].equals("testindex")) {
+            long start = System.nanoTime();
+            Path indexFile = Path.of(args[1]);
+            List<Path> files = new ArrayList<>();
+            for (int i = 3; i < args.length; i++)
+                files.add(Path.of(args[i]));
+            Map<String, Long> hashes = SelectionIndex.hashClasses(paths(args[2]), Runtime.getRuntime().availableProcessors());
+            SelectionIndex index = SelectionIndex.read(indexFile).update(files, hashes);
+            index.write(indexFile);
+            System.out.println("indexed " + index.getUpdatedTestCount() + " tests, " + index.getTests().size() + " tests and "
+                    + index.getClassCount() + " classes in the index (" + index.getUnknownClassCount()
+                    + " classes without static information) in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } else if (args.length == 3 && args[0].equals("select")) {
+            long start = System.nanoTime();
+            SelectionIndex index = SelectionIndex.read(Path.of(args[1]));
+            Map<String, Long> hashes = SelectionIndex.hashClasses(paths(args[2]), Runtime.getRuntime().availableProcessors());
+            Set<String> selected = index.select(hashes);
+            for (String test : selected)
+                System.out.println(test);
+            System.err.println("coverage: " + index.changedClasses(hashes).size() + " changed classes, selected " + selected.size()
+                    + " of " + index.getTests().size() + " tests in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } else if ((args.length == 2 || args.length == 3) && args[0].equals("attach")) {
+            AttachAgent.attach(args[1], args.length == 3 ? args[2] : "");
+        } else {
+            System.err.println("usage: print <execfile>...");
+            System.err.println("       instrument <projectName> <source dir or archive> <target> <metadatafile>");
+            System.err.println("       control <port or socket path> snapshot|reset|delta <execfile>");
+            System.err.println("       merge <outfile> <execfile or directory>...");
+            System.err.println("       report <outputDir> <sourcepath> <execfile>...");
+            System.err.println("       tests <className>[:line] <testfile>...");
+            System.err.println("       attach <pid> [agentArgs|detach]");
+            System.err.println("       testindex <indexfile> <classpath> <testfile>...");
+            System.err.println("       select <indexfile> <classpath>");
+            System.exit(1);
+        }
+    }
 
+    /**
+     * @param   paths   paths separated by the path separator, may be empty
+     */
+    private static List<Path> paths(String paths) {
+        List<Path> result = new ArrayList<>();
+        for (String path : paths.split(File.pathSeparator)) {
+            if (!path.isEmpty())
+                result.add(Path.of(path));
+        }
+        return result;
     }
-}
\ No newline at end of file
+}
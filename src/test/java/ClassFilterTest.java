@@ -0,0 +1,115 @@
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Glob matching and class selection of ClassFilter.
+ * @author kt27
+ */
+class ClassFilterTest {
+
+    private static boolean matches(String glob, String className) {
+        return ClassFilter.match(ClassFilter.compile(glob), 0, className, 0);
+    }
+
+    private static ClassFilter filter(String agentArgs) {
+        return new ClassFilter(AgentOptions.parse(agentArgs));
+    }
+
+    @Test
+    void leadingDoubleStarMatchesNoOrAnyPackages() {
+        assertTrue(matches("**.Foo", "Foo"));
+        assertTrue(matches("**.Foo", "a/Foo"));
+        assertTrue(matches("**.Foo", "a/b/Foo"));
+        assertFalse(matches("**.Foo", "aFoo"));
+        assertFalse(matches("**.Foo", "a/FooBar"));
+    }
+
+    @Test
+    void trailingDoubleStarMatchesThePackageAndBelow() {
+        assertTrue(matches("a.b.**", "a/b"));
+        assertTrue(matches("a.b.**", "a/b/C"));
+        assertTrue(matches("a.b.**", "a/b/c/D"));
+        assertFalse(matches("a.b.**", "a/bc"));
+        assertFalse(matches("a.b.**", "a/bc/D"));
+    }
+
+    @Test
+    void singleWildcardsStayWithinASegment() {
+        assertTrue(matches("a.*.C", "a/x/C"));
+        assertFalse(matches("a.*.C", "a/x/y/C"));
+        assertTrue(matches("a.Fo?", "a/Foo"));
+        assertFalse(matches("a.Fo?", "a/Fooo"));
+        assertFalse(matches("a.b?C", "a/b/C"));
+        assertTrue(matches("com.**.service.*", "com/a/b/service/X"));
+        assertFalse(matches("com.**.service.*", "com/a/b/service/y/X"));
+    }
+
+    @Test
+    void dotAndSlashAreTheSameSeparator() {
+        assertArrayEquals(ClassFilter.compile("com/acme/**"), ClassFilter.compile("com.acme.**"));
+        assertTrue(matches("com.acme.Foo", "com/acme/Foo"));
+        assertTrue(matches("com/acme/Foo", "com/acme/Foo"));
+        assertTrue(matches("com.acme.Foo$Inner", "com/acme/Foo$Inner"));
+    }
+
+    @Test
+    void defaultExcludesLeaveOutTestClasses() {
+        ClassFilter filter = filter("demo");
+        assertTrue(filter.isIncluded("demo/App"));
+        assertTrue(filter.isIncluded("a/demo/B"));
+        assertTrue(filter.isIncluded("demo/TestDataLoader"));
+        assertFalse(filter.isIncluded("demo/FooTest"));
+        assertFalse(filter.isIncluded("demo/FooTest$Inner"));
+        assertFalse(filter.isIncluded("demo/FooTests"));
+        assertFalse(filter.isIncluded("demo/FooTestCase"));
+        assertFalse(filter.isIncluded("demo/test/Helper"));
+        assertFalse(filter.isIncluded("other/App"));
+    }
+
+    @Test
+    void givenExcludesReplaceTheDefaults() {
+        ClassFilter filter = filter("x,includes=com.acme.**,excludes=**.internal.**");
+        assertTrue(filter.isIncluded("com/acme/FooTest"));
+        assertFalse(filter.isIncluded("com/acme/internal/Foo"));
+    }
+
+    @Test
+    void generatedClassesAreExcludedUnlessAskedFor() {
+        assertFalse(filter("demo").isIncluded("demo/Foo$$Lambda"));
+        assertFalse(filter("demo").isIncluded("demo/$Proxy3"));
+        assertTrue(filter("demo,excludegenerated=false").isIncluded("demo/Foo$$Lambda"));
+    }
+
+    @Test
+    void projectNameWithTrailingSeparator() {
+        assertEquals("coverage/bench/workload.**", ClassFilter.projectPattern("coverage/bench/workload/"));
+        assertEquals("com.acme.**", ClassFilter.projectPattern("com.acme."));
+        assertEquals("**.demo.**", ClassFilter.projectPattern("demo"));
+        assertEquals("**", ClassFilter.projectPattern(""));
+        ClassFilter filter = filter("coverage/bench/workload/");
+        assertTrue(filter.isIncluded("coverage/bench/workload/Workloads"));
+        assertFalse(filter.isIncluded("coverage/bench/Workload"));
+    }
+
+    @Test
+    void onlyTheAgentsOwnAsmIsExcluded() throws IOException {
+        byte[] classfile;
+        try (InputStream in = ClassReader.class.getResourceAsStream("ClassReader.class")) {
+            classfile = in.readAllBytes();
+        }
+        ClassFilter filter = filter("x,includes=org.objectweb.asm.**");
+        ClassLoader other = new ClassLoader(ClassFilterTest.class.getClassLoader()) {
+        };
+        assertTrue(filter.isIncluded(other, "org/objectweb/asm/ClassReader", null, classfile));
+        assertFalse(filter.isIncluded(ClassReader.class.getClassLoader(), "org/objectweb/asm/ClassReader", null, classfile));
+        assertFalse(filter.isIncluded(null, "org/objectweb/asm/ClassReader", null, classfile));
+    }
+}
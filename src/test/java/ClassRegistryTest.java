@@ -0,0 +1,52 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Registrations of identical and redefined bytes, and the probes of a class no loader defines any more.
+ * Class ids are made up, so the probes of the other tests are left alone.
+ * @author kt27
+ */
+class ClassRegistryTest {
+
+    private static InstrumentedClass sample(long classId) throws IOException {
+        byte[] original;
+        try (InputStream in = CoverageSample.class.getResourceAsStream("CoverageSample.class")) {
+            original = in.readAllBytes();
+        }
+        return mainDriver.instrumentClass("CoverageSample", classId, original);
+    }
+
+    @Test
+    void probesLeaveWithTheLastRegistration() throws IOException {
+        long first = 0x5EED0101L, second = 0x5EED0102L;
+        InstrumentedClass v1 = sample(first), v2 = sample(second);
+        ClassLoader a = new ClassLoader(null) {
+        };
+        ClassLoader b = new ClassLoader(null) {
+        };
+        ClassRegistry registry = new ClassRegistry();
+        ClassRegistry.Registration registration = registry.register(a, "CoverageSample", v1, "k");
+        assertSame(registration, registry.register(a, "CoverageSample", v1, "k")); // a retransformation
+        registry.register(b, "CoverageSample", v1, "k");
+        ProbeRuntime.getProbes(first, "CoverageSample", v1.coverage.probeLayout.size())[0] = true;
+        assertEquals(2, registry.getRegistrationCount());
+        assertEquals(1, registry.getClassCount());
+
+        registry.register(a, "CoverageSample", v2, "k"); // redefined, b still defines the first bytes
+        assertSame(v2.coverage, registry.get(a, "CoverageSample"));
+        assertNotNull(ProbeRuntime.getExecutionData(first));
+
+        registry.register(b, "CoverageSample", v2, "k");
+        assertEquals(2, registry.getRegistrationCount());
+        assertEquals(1, registry.getClassCount());
+        assertNull(ProbeRuntime.getExecutionData(first));
+        assertNull(registry.getInstrumented(first, "k"));
+    }
+}
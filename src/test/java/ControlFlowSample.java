@@ -0,0 +1,76 @@
+/**
+ * Branches, loops, switches and an exception leaving a block, instrumented by the tests.
+ * ControlFlowTest refers to the lines of this file: move nothing around.
+ * @author kt27
+ */
+public class ControlFlowSample {
+
+    public static int ifElse(int a) {
+        int r;
+        if (a > 0)
+            r = 1;
+        else
+            r = 2;
+        return r;
+    }
+
+    public static int loop(int n) {
+        int s = 0;
+        for (int i = 0; i < n; i++)
+            s += i;
+        return s;
+    }
+
+    public static int tableSwitch(int k) {
+        switch (k) {
+            case 0:
+                return 10;
+            case 1:
+                return 11;
+            case 2:
+                return 12;
+            default:
+                return -1;
+        }
+    }
+
+    public static int lookupSwitch(int k) {
+        switch (k) {
+            case 1:
+            case 1000:
+                return 1;
+            case 100000:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    public static int wideSwitch(int k) {
+        int r;
+        switch (k) {
+            case 0: r = 10; break;
+            case 1: r = 11; break;
+            case 2: r = 12; break;
+            case 3: r = 13; break;
+            case 4: r = 14; break;
+            case 5: r = 15; break;
+            case 6: r = 16; break;
+            case 7: r = 17; break;
+            case 8: r = 18; break;
+            default: r = -1;
+        }
+        return r;
+    }
+
+    public static int throwing(int a) {
+        int r = a * 2;
+        check(r);
+        return r;
+    }
+
+    private static void check(int r) {
+        if (r < 0)
+            throw new IllegalArgumentException("negative");
+    }
+}
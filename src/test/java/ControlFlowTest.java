@@ -0,0 +1,188 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Probes placed by ControlFlowAnalyzer and inserted by CoverageRecorder, checked by running ControlFlowSample:
+ * the covered lines and branch directions folded from its probe array.
+ * Each test instruments the sample under a class id of its own and defines it in a loader of its own.
+ * @author kt27
+ */
+class ControlFlowTest {
+
+    /**
+     * the instrumented sample, defined by a loader of its own
+     */
+    private static final class Sample {
+        final long classId;
+        final coverageInfo coverage;
+        final Class<?> loaded;
+
+        Sample(long classId) throws IOException, ClassNotFoundException {
+            this(classId, AgentOptions.parse(""));
+        }
+
+        Sample(long classId, AgentOptions options) throws IOException, ClassNotFoundException {
+            byte[] original;
+            try (InputStream in = ControlFlowSample.class.getResourceAsStream("ControlFlowSample.class")) {
+                original = in.readAllBytes();
+            }
+            InstrumentedClass instrumented = mainDriver.instrumentClass("ControlFlowSample", classId, original, options, null);
+            this.classId = classId;
+            this.coverage = instrumented.coverage;
+            this.loaded = Class.forName("ControlFlowSample", true, new ClassLoader(ControlFlowTest.class.getClassLoader()) {
+                @Override
+                protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                    if (!name.equals("ControlFlowSample"))
+                        return super.loadClass(name, resolve);
+                    synchronized (getClassLoadingLock(name)) {
+                        Class<?> c = findLoadedClass(name);
+                        return c != null ? c : defineClass(name, instrumented.classfile, 0, instrumented.classfile.length);
+                    }
+                }
+            });
+        }
+
+        int invoke(String method, int argument) throws ReflectiveOperationException {
+            Method m = loaded.getMethod(method, int.class);
+            return (Integer) m.invoke(null, argument);
+        }
+
+        /**
+         * fold the probes hit so far
+         */
+        void collect() {
+            coverage.collect(ProbeRuntime.getExecutionData(classId).probes);
+        }
+
+        List<Integer> coveredLines(String method) {
+            int index = indexOf(method);
+            List<Integer> lines = new ArrayList<>();
+            for (int i = 0; i < coverage.lineContained.lineCount(index); i++) {
+                if (coverage.lineCovered.isCovered(index, i))
+                    lines.add(coverage.lineContained.getLine(index, i));
+            }
+            return lines;
+        }
+
+        /**
+         * @return  the covered flag of each branch direction of method, in block order: taken jump before
+         *          fall-through, switch default before the cases
+         */
+        boolean[] coveredBranches(String method) {
+            int index = indexOf(method);
+            boolean[] covered = new boolean[coverage.branchTracker.getBranchCount(index)];
+            for (int id = 0; id < covered.length; id++)
+                covered[id] = coverage.branchTracker.isCovered(index, id);
+            return covered;
+        }
+
+        int indexOf(String method) {
+            for (int m = 0; m < coverage.lineContained.methodCount(); m++) {
+                if (coverage.lineContained.getMethod(m).getName().equals(method))
+                    return m;
+            }
+            throw new IllegalArgumentException(method);
+        }
+    }
+
+    @Test
+    void ifElseWithOneArmTaken() throws Exception {
+        Sample sample = new Sample(0x5EED0201L);
+        assertEquals(1, sample.invoke("ifElse", 5));
+        sample.collect();
+        assertEquals(List.of(10, 11, 14), sample.coveredLines("ifElse"));
+        assertArrayEquals(new boolean[]{false, true}, sample.coveredBranches("ifElse")); // a <= 0 jumps to the else arm
+    }
+
+    @Test
+    void loopNotEnteredThenEntered() throws Exception {
+        Sample sample = new Sample(0x5EED0202L);
+        assertEquals(0, sample.invoke("loop", 0));
+        sample.collect();
+        assertEquals(List.of(18, 19, 21), sample.coveredLines("loop"));
+        assertArrayEquals(new boolean[]{true, false}, sample.coveredBranches("loop")); // the exit jump only
+
+        assertEquals(3, sample.invoke("loop", 3));
+        sample.collect();
+        assertEquals(List.of(18, 19, 20, 21), sample.coveredLines("loop"));
+        assertArrayEquals(new boolean[]{true, true}, sample.coveredBranches("loop"));
+    }
+
+    @Test
+    void countedLoopHeaderCountsAsItsCondition() throws Exception {
+        Sample sample = new Sample(0x5EED0207L, AgentOptions.parse("mode=count"));
+        assertEquals(10, sample.invoke("loop", 5));
+        sample.coverage.collectCounts(ProbeRuntime.getExecutionData(sample.classId).counts());
+        int method = sample.indexOf("loop");
+        FirstPassResult lines = sample.coverage.lineContained;
+        // 5 iterations: the condition is tested 6 times, the header is not the sum of initialization, condition and update
+        assertEquals(6, sample.coverage.lineCovered.getHits(method, lines.lineIndex(method, 19)));
+        assertEquals(5, sample.coverage.lineCovered.getHits(method, lines.lineIndex(method, 20)));
+        assertEquals(1, sample.coverage.lineCovered.getHits(method, lines.lineIndex(method, 21)));
+        assertEquals(1, sample.coverage.branchTracker.getHits(method, 0)); // the exit jump
+        assertEquals(5, sample.coverage.branchTracker.getHits(method, 1));
+    }
+
+    @Test
+    void tableSwitchCoversTheTakenTargets() throws Exception {
+        Sample sample = new Sample(0x5EED0203L);
+        assertEquals(11, sample.invoke("tableSwitch", 1));
+        assertEquals(-1, sample.invoke("tableSwitch", 7));
+        sample.collect();
+        assertEquals(List.of(25, 29, 33), sample.coveredLines("tableSwitch"));
+        assertArrayEquals(new boolean[]{true, false, true, false}, sample.coveredBranches("tableSwitch"));
+    }
+
+    @Test
+    void lookupSwitchKeysSharingATargetAreOneDirection() throws Exception {
+        Sample sample = new Sample(0x5EED0204L);
+        assertEquals(1, sample.invoke("lookupSwitch", 1000));
+        sample.collect();
+        assertEquals(List.of(38, 41), sample.coveredLines("lookupSwitch"));
+        assertArrayEquals(new boolean[]{false, true, false}, sample.coveredBranches("lookupSwitch"));
+    }
+
+    @Test
+    void blockWithTooManyProbesGetsItsOwn() throws Exception {
+        Sample sample = new Sample(0x5EED0205L);
+        FirstPassResult.MethodSignature method = sample.coverage.lineContained.getMethod(sample.indexOf("wideSwitch"));
+        List<int[]> switchLine = new ArrayList<>();
+        for (int i = 0; i < sample.coverage.probeLayout.itemCount(); i++) {
+            ProbeLayout.Item item = sample.coverage.probeLayout.getItem(i);
+            assertTrue(item.probes.length <= ControlFlowAnalyzer.MAX_PROBES_PER_BLOCK);
+            if (item.method.equals(method) && item.kind == ProbeLayout.LINE && item.value == 51)
+                switchLine.add(item.probes);
+        }
+        assertEquals(1, switchLine.size());
+        assertEquals(1, switchLine.get(0).length); // the switch block leads into 10 probes, it gets its own
+        assertEquals(14, sample.invoke("wideSwitch", 4));
+        sample.collect();
+        assertEquals(List.of(51, 56, 63), sample.coveredLines("wideSwitch"));
+    }
+
+    @Test
+    void blockLeftByAnExceptionIsNotCovered() throws Exception {
+        Sample sample = new Sample(0x5EED0206L);
+        InvocationTargetException thrown = assertThrows(InvocationTargetException.class, () -> sample.invoke("throwing", -1));
+        assertInstanceOf(IllegalArgumentException.class, thrown.getCause());
+        sample.collect();
+        assertEquals(List.of(), sample.coveredLines("throwing")); // known gap: the probe of the block sits at its return
+        assertEquals(List.of(73, 74), sample.coveredLines("check"));
+
+        assertEquals(4, sample.invoke("throwing", 2));
+        sample.collect();
+        assertEquals(List.of(67, 68, 69), sample.coveredLines("throwing"));
+    }
+}
@@ -0,0 +1,99 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Live snapshot, delta and reset answers of the control channel, decoded by ExecDataReader.
+ * Probe arrays are registered directly in ProbeRuntime, each test under class ids of its own.
+ * @author kt27
+ */
+class CoverageControllerTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * the blocks of an answer, by class id
+     */
+    private static final class Answer {
+        final Map<Long, long[]> probes = new HashMap<>();
+        final Map<Long, Integer> probeCounts = new HashMap<>();
+        final Map<Long, long[]> counts = new HashMap<>();
+    }
+
+    private Answer decode(byte[] content) throws IOException {
+        Path file = Files.createTempFile(dir, "answer", ".exec");
+        ExecDataWriter.writeAtomically(file, content);
+        Answer answer = new Answer();
+        ExecDataReader.accept(file, new ExecDataReader.Visitor() {
+            @Override
+            public void visitClass(coverageInfo coverage) {
+            }
+
+            @Override
+            public void visitProbes(long classId, String className, int probeCount, long[] bits) {
+                answer.probes.put(classId, bits);
+                answer.probeCounts.put(classId, probeCount);
+            }
+
+            @Override
+            public void visitCounts(long classId, long[] counts) {
+                answer.counts.put(classId, counts);
+            }
+        });
+        return answer;
+    }
+
+    @Test
+    void snapshotDeltaAndResetRoundTrip() throws IOException {
+        long classId = 0x5EED0001L;
+        boolean[] probes = ProbeRuntime.getProbes(classId, "ControllerSample", 70);
+        probes[1] = true;
+        probes[65] = true;
+        CoverageController controller = new CoverageController(null);
+
+        Answer snapshot = decode(controller.execute(CoverageController.SNAPSHOT));
+        assertEquals(70, snapshot.probeCounts.get(classId));
+        assertArrayEquals(new long[]{1L << 1, 1L << 1}, snapshot.probes.get(classId));
+
+        probes[2] = true;
+        Answer delta = decode(controller.execute(CoverageController.DELTA));
+        assertArrayEquals(new long[]{1L << 2, 0}, delta.probes.get(classId)); // only the probe hit since the snapshot
+        assertFalse(decode(controller.execute(CoverageController.DELTA)).probes.containsKey(classId));
+
+        Answer reset = decode(controller.execute(CoverageController.RESET));
+        assertArrayEquals(new long[]{1L << 1 | 1L << 2, 1L << 1}, reset.probes.get(classId));
+        assertArrayEquals(new long[]{0, 0}, decode(controller.snapshot()).probes.get(classId));
+
+        probes[1] = true;
+        assertArrayEquals(new long[]{1L << 1, 0}, decode(controller.delta()).probes.get(classId)); // hit again after the reset
+    }
+
+    @Test
+    void snapshotCarriesHitCounts() throws IOException {
+        long classId = 0x5EED0002L;
+        boolean[] probes = ProbeRuntime.getProbes(classId, "CountingSample", 3);
+        long[] counters = ProbeRuntime.getCounters(classId, "CountingSample", 3);
+        for (int i = 0; i < 3; i++)
+            ProbeRuntime.count(counters, 0);
+        ProbeRuntime.count(counters, 2);
+        probes[0] = true;
+        probes[2] = true;
+        CoverageController controller = new CoverageController(null);
+
+        Answer snapshot = decode(controller.snapshot());
+        assertArrayEquals(new long[]{3, 0, 1}, snapshot.counts.get(classId));
+        assertArrayEquals(new long[]{3, 0, 1}, decode(controller.snapshotAndReset()).counts.get(classId));
+        assertArrayEquals(new long[]{0, 0, 0}, decode(controller.snapshot()).counts.get(classId));
+        assertFalse(decode(controller.delta()).counts.containsKey(classId)); // a delta carries no counts
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * A small class with lines, a loop and branches, instrumented by the tests.
+ * @author kt27
+ */
+public class CoverageSample {
+
+    public static int sum(int n) {
+        int s = 0;
+        for (int i = 0; i < n; i++) {
+            if (i % 3 == 0)
+                s += i;
+            else
+                s -= 1;
+        }
+        return s;
+    }
+
+    public static String sign(int a) {
+        return a < 0 ? "negative" : "positive";
+    }
+}
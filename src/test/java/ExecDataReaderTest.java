@@ -0,0 +1,55 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Loading execution data files recorded in different modes of the same class.
+ * @author kt27
+ */
+class ExecDataReaderTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void probesOfAnotherLayoutAreSkipped() throws IOException {
+        byte[] original;
+        try (InputStream in = CoverageSample.class.getResourceAsStream("CoverageSample.class")) {
+            original = in.readAllBytes();
+        }
+        long classId = ClassHash.hash(original);
+        coverageInfo lines = mainDriver.instrumentClass("CoverageSample", classId, original).coverage;
+        coverageInfo methods = mainDriver.instrumentClass("CoverageSample", classId, original, AgentOptions.parse("mode=method"), null).coverage;
+        int lineProbes = lines.probeLayout.size();
+        int methodProbes = methods.probeLayout.size();
+        assertNotEquals(lineProbes, methodProbes);
+
+        Path lineFile = dir.resolve("lines.exec");
+        new ExecDataWriter().addClass(lines).write(lineFile);
+        Path methodFile = dir.resolve("methods.exec");
+        boolean[] allMethods = new boolean[methodProbes];
+        Arrays.fill(allMethods, true);
+        new ExecDataWriter().addProbes(classId, "CoverageSample", allMethods).write(methodFile);
+
+        // the method mode bits are shorter than the line mode layout: skipped, not read past their end
+        coverageInfo read = ExecDataReader.read(List.of(lineFile, methodFile)).get(classId);
+        assertEquals(0, read.lineCovered.numOfStatements());
+
+        Path hitFile = dir.resolve("hit.exec");
+        boolean[] allLines = new boolean[lineProbes];
+        Arrays.fill(allLines, true);
+        new ExecDataWriter().addProbes(classId, "CoverageSample", allLines).write(hitFile);
+        read = ExecDataReader.read(List.of(methodFile, lineFile, hitFile)).get(classId);
+        assertEquals(lines.lineContained.numOfStatements(), read.lineCovered.numOfStatements());
+        assertTrue(read.lineCovered.numOfStatements() > 0);
+    }
+}
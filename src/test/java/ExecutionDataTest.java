@@ -0,0 +1,130 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hit counters striped by thread: the owner of a stripe, the shared cells of a stripe another live thread owns,
+ * the takeover of the stripe of a terminated owner, and counts read with and without reset while threads count.
+ * @author kt27
+ */
+class ExecutionDataTest {
+
+    private static final int MASK = ExecutionData.STRIPE_COUNT - 1;
+
+    /**
+     * @return  a new thread running task whose id maps to stripe
+     */
+    private static Thread onStripe(int stripe, Runnable task) {
+        while (true) {
+            Thread thread = new Thread(task);
+            if ((thread.threadId() & MASK) == stripe)
+                return thread;
+        }
+    }
+
+    private static void count(ExecutionData data, int probe, int times) {
+        long[] counters = data.counterStripe();
+        for (int i = 0; i < times; i++)
+            ProbeRuntime.count(counters, probe);
+    }
+
+    @Test
+    void stripeOwnerSharedCellsAndTakeover() throws Exception {
+        ExecutionData data = new ExecutionData(0x5EED0301L, "StripeSample", 2);
+        int stripe = 3;
+        long[][] cells = new long[3][];
+        CountDownLatch owning = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread owner = onStripe(stripe, () -> {
+            cells[0] = data.counterStripe();
+            count(data, 0, 5);
+            owning.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        owner.start();
+        owning.await();
+
+        Thread other = onStripe(stripe, () -> {
+            cells[1] = data.counterStripe();
+            count(data, 0, 7);
+            count(data, 1, 1);
+        });
+        other.start();
+        other.join();
+        assertEquals(0, cells[0][2]); // plain increments by the owner
+        assertEquals(1, cells[1][2]); // atomic adds into the shared cells while the owner lives
+        assertNotSame(cells[0], cells[1]);
+        assertArrayEquals(new long[]{12, 1}, data.counts());
+
+        release.countDown();
+        owner.join();
+        Thread successor = onStripe(stripe, () -> {
+            cells[2] = data.counterStripe();
+            count(data, 1, 2);
+        });
+        successor.start();
+        successor.join();
+        assertSame(cells[0], cells[2]); // taken over with the counts of the terminated owner
+        assertArrayEquals(new long[]{12, 3}, data.counts());
+    }
+
+    @Test
+    void countsOfManyThreadsAddUpAcrossResets() throws Exception {
+        ExecutionData data = new ExecutionData(0x5EED0302L, "ThreadsSample", 3);
+        int threads = 2 * ExecutionData.STRIPE_COUNT + 3; // more threads than stripes: some share cells
+        int rounds = 20000;
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        AtomicInteger sharing = new AtomicInteger();
+        List<Thread> started = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                long[] counters = data.counterStripe(); // fetched while all threads live
+                if (counters[counters.length - 1] != 0)
+                    sharing.incrementAndGet();
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                for (int i = 0; i < rounds; i++) {
+                    ProbeRuntime.count(counters, 0);
+                    if (i % 2 == 0)
+                        ProbeRuntime.count(counters, 2);
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+        start.await();
+        long[] taken = new long[3];
+        do {
+            long[] counts = data.countsAndReset(); // racing with the increments
+            for (int i = 0; i < taken.length; i++)
+                taken[i] += counts[i];
+        } while (started.stream().anyMatch(Thread::isAlive));
+        for (Thread thread : started)
+            thread.join();
+        long[] rest = data.counts();
+        for (int i = 0; i < taken.length; i++)
+            taken[i] += rest[i];
+
+        assertTrue(sharing.get() > 0);
+        assertArrayEquals(new long[]{(long) threads * rounds, 0, (long) threads * rounds / 2}, taken);
+        assertArrayEquals(rest, data.countsAndReset());
+        assertArrayEquals(new long[3], data.counts());
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Offline instrumentation of a class directory holding an archive, and its metadata file read back.
+ * @author kt27
+ */
+class OfflineInstrumenterTest {
+
+    @TempDir
+    Path dir;
+
+    private static byte[] sampleClass() throws IOException {
+        try (InputStream in = CoverageSample.class.getResourceAsStream("CoverageSample.class")) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    void instrumentsDirectoriesAndArchivesAndWritesTheirMetadata() throws IOException {
+        byte[] original = sampleClass();
+        byte[] text = "not a class".getBytes(StandardCharsets.UTF_8);
+        Path source = Files.createDirectories(dir.resolve("source"));
+        Files.write(source.resolve("CoverageSample.class"), original);
+        Files.write(source.resolve("notes.txt"), text);
+        Files.createDirectories(source.resolve("lib"));
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(source.resolve("lib/sample.jar")))) {
+            out.putNextEntry(new ZipEntry("META-INF/notes.txt"));
+            out.write(text);
+            out.putNextEntry(new ZipEntry("CoverageSample.class"));
+            out.write(original);
+        }
+
+        Path target = dir.resolve("target");
+        Path metadata = dir.resolve("metadata.exec");
+        OfflineInstrumenter instrumenter = new OfflineInstrumenter(AgentOptions.parse(""), 2);
+        try {
+            instrumenter.instrument(source, target);
+            instrumenter.writeMetadata(metadata);
+        } finally {
+            instrumenter.shutdown();
+        }
+
+        assertEquals(2, instrumenter.getInstrumentedCount());
+        assertEquals(0, instrumenter.getSkippedCount());
+        assertTrue(CoverageRecorder.isInstrumented(Files.readAllBytes(target.resolve("CoverageSample.class"))));
+        assertArrayEquals(text, Files.readAllBytes(target.resolve("notes.txt")));
+        try (ZipFile jar = new ZipFile(target.resolve("lib/sample.jar").toFile())) {
+            List<String> names = new ArrayList<>();
+            jar.stream().forEach(entry -> names.add(entry.getName()));
+            assertEquals(List.of("META-INF/notes.txt", "CoverageSample.class"), names);
+            assertArrayEquals(text, jar.getInputStream(jar.getEntry("META-INF/notes.txt")).readAllBytes());
+            assertTrue(CoverageRecorder.isInstrumented(jar.getInputStream(jar.getEntry("CoverageSample.class")).readAllBytes()));
+        }
+
+        long classId = ClassHash.hash(original);
+        coverageInfo expected = mainDriver.instrumentClass("CoverageSample", classId, original).coverage;
+        Map<Long, coverageInfo> classes = ExecDataReader.read(List.of(metadata));
+        assertEquals(1, classes.size()); // the same bytes in the directory and in the archive
+        coverageInfo read = classes.get(classId);
+        assertNotNull(read);
+        assertEquals("CoverageSample", read.className);
+        assertEquals(expected.lineContained.methodCount(), read.lineContained.methodCount());
+        for (int m = 0; m < expected.lineContained.methodCount(); m++) {
+            assertEquals(expected.lineContained.getMethod(m), read.lineContained.getMethod(m));
+            assertEquals(expected.lineContained.lineCount(m), read.lineContained.lineCount(m));
+            for (int i = 0; i < expected.lineContained.lineCount(m); i++)
+                assertEquals(expected.lineContained.getLine(m, i), read.lineContained.getLine(m, i));
+            assertEquals(expected.branchTracker.getBranchCount(m), read.branchTracker.getBranchCount(m));
+        }
+        assertEquals(expected.probeLayout.size(), read.probeLayout.size());
+        assertEquals(expected.probeLayout.itemCount(), read.probeLayout.itemCount());
+        for (int i = 0; i < expected.probeLayout.itemCount(); i++) {
+            ProbeLayout.Item item = expected.probeLayout.getItem(i);
+            ProbeLayout.Item readItem = read.probeLayout.getItem(i);
+            assertEquals(item.method, readItem.method);
+            assertEquals(item.kind, readItem.kind);
+            assertEquals(item.value, readItem.value);
+            assertArrayEquals(item.probes, readItem.probes);
+        }
+        assertFalse(read.lineCovered.isCovered(0, 0)); // static information only
+    }
+}
@@ -0,0 +1,132 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test index files folded into the selection index, the tests selected by changed, removed and test classes,
+ * and the index written and read back.
+ * Class blocks come from the sample class instrumented under made-up names and class ids.
+ * @author kt27
+ */
+class SelectionIndexTest {
+
+    @TempDir
+    Path dir;
+
+    private static final long A = 0xA1, B = 0xB1, C = 0xC1;
+
+    private static coverageInfo indexedClass(String className, long classId) throws IOException {
+        try (InputStream in = CoverageSample.class.getResourceAsStream("CoverageSample.class")) {
+            return mainDriver.instrumentClass(className, classId, in.readAllBytes()).coverage;
+        }
+    }
+
+    /**
+     * a test index file with the class blocks of app/A, app/B and app/C (as of classIds) and one session per test
+     */
+    private Path testIndexFile(String name, long[] classIds, Map<String, long[]> sessions) throws IOException {
+        ExecDataWriter writer = new ExecDataWriter();
+        String[] names = {"app/A", "app/B", "app/C"};
+        for (int i = 0; i < names.length; i++)
+            writer.addClass(indexedClass(names[i], classIds[i]));
+        for (Map.Entry<String, long[]> session : sessions.entrySet()) {
+            long[] ran = session.getValue();
+            int[] probeCounts = new int[ran.length];
+            long[][] bits = new long[ran.length][];
+            for (int i = 0; i < ran.length; i++) {
+                probeCounts[i] = 1;
+                bits[i] = new long[]{1};
+            }
+            writer.addSession(session.getKey(), ran, probeCounts, bits);
+        }
+        Path file = dir.resolve(name);
+        writer.write(file);
+        return file;
+    }
+
+    private static Map<String, Long> build(long a, long b, long c, long aTest, long bTest) {
+        Map<String, Long> hashes = new HashMap<>();
+        hashes.put("app/A", a);
+        hashes.put("app/B", b);
+        hashes.put("app/C", c);
+        hashes.put("app/ATest", aTest);
+        hashes.put("app/BTest", bTest);
+        return hashes;
+    }
+
+    private SelectionIndex twoRuns() throws IOException {
+        long[] ids = {A, B, C};
+        Map<String, long[]> first = new HashMap<>();
+        first.put("app.ATest#one", new long[]{A, B});
+        first.put("app.ATest#two", new long[]{B});
+        Map<String, long[]> second = new HashMap<>();
+        second.put("app.BTest#one", new long[]{C, 0xDEAD}); // a class without class block
+        return new SelectionIndex().update(List.of(testIndexFile("first.exec", ids, first), testIndexFile("second.exec", ids, second)),
+                build(A, B, C, 100, 200));
+    }
+
+    @Test
+    void foldsSessionsOfSeveralFiles() throws IOException {
+        SelectionIndex index = twoRuns();
+        assertEquals(Set.of("app.ATest#one", "app.ATest#two", "app.BTest#one"), Set.copyOf(index.getTests()));
+        assertEquals(3, index.getClassCount());
+        assertEquals(3, index.getUpdatedTestCount());
+        assertEquals(1, index.getUnknownClassCount());
+    }
+
+    @Test
+    void selectsTheTestsOfChangedRemovedAndTestClasses() throws IOException {
+        SelectionIndex index = twoRuns();
+        assertEquals(Set.of(), index.select(build(A, B, C, 100, 200)));
+        assertEquals(Set.of("app.ATest#one"), index.select(build(0xA2, B, C, 100, 200)));
+        assertEquals(Set.of("app.ATest#one", "app.ATest#two"), index.select(build(A, 0xB2, C, 100, 200)));
+        Map<String, Long> removed = build(A, B, C, 100, 200);
+        removed.remove("app/C");
+        assertEquals(Set.of("app.BTest#one"), index.select(removed));
+        assertEquals(Set.of("app/C"), index.changedClasses(removed));
+        assertEquals(Set.of("app.BTest#one"), index.select(build(A, B, C, 100, 201))); // the test class changed
+        Map<String, Long> deleted = build(A, B, C, 100, 200);
+        deleted.remove("app/BTest");
+        assertEquals(Set.of(), index.select(deleted)); // a deleted test is not selected
+    }
+
+    @Test
+    void rerunTestsReplaceTheirLinksOthersAreKept() throws IOException {
+        SelectionIndex index = twoRuns();
+        // only ATest#one ran again, against a changed app/A and without touching app/B any more
+        Map<String, long[]> rerun = new HashMap<>();
+        rerun.put("app.ATest#one", new long[]{0xA2});
+        index.update(List.of(testIndexFile("rerun.exec", new long[]{0xA2, B, C}, rerun)), build(0xA2, B, C, 100, 200));
+
+        assertEquals(3, index.getTests().size());
+        assertEquals(Set.of(), index.select(build(0xA2, B, C, 100, 200)));
+        assertEquals(Set.of("app.ATest#two"), index.select(build(0xA2, 0xB2, C, 100, 200)));
+        assertEquals(Set.of("app.ATest#one"), index.select(build(A, B, C, 100, 200))); // back to the old app/A
+        assertEquals(Set.of("app.BTest#one"), index.select(build(0xA2, B, 0xC2, 100, 200)));
+    }
+
+    @Test
+    void writeAndReadBack() throws IOException {
+        SelectionIndex index = twoRuns();
+        Path file = dir.resolve("selection.idx");
+        index.write(file);
+        SelectionIndex read = SelectionIndex.read(file);
+        assertEquals(index.getTests(), read.getTests());
+        assertEquals(index.getClassCount(), read.getClassCount());
+        for (Map<String, Long> current : List.of(build(A, B, C, 100, 200), build(0xA2, B, C, 100, 200),
+                build(A, 0xB2, C, 100, 200), build(A, B, 0xC2, 100, 200), build(A, B, C, 101, 200)))
+            assertEquals(index.select(current), read.select(current));
+
+        assertTrue(SelectionIndex.read(dir.resolve("missing.idx")).getTests().isEmpty()); // first run
+    }
+}